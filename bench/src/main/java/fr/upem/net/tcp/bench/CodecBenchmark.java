@@ -0,0 +1,79 @@
+package fr.upem.net.tcp.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.upem.net.tcp.reader.FrameReader;
+import fr.upem.net.tcp.reader.Message;
+import fr.upem.net.tcp.reader.MessageReader;
+import fr.upem.net.tcp.reader.Reader;
+
+/**
+ * Encode and decode a single frame of each opcode
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+	@Param({ "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18", "19",
+			"20", "21", "22", "23", "24", "25", "26" })
+	public int indice;
+
+	private Message message;
+	private ByteBuffer frame;
+	private final ByteBuffer frameBuffer = ByteBuffer.allocate(1_024);
+	private final ByteBuffer messageBuffer = ByteBuffer.allocate(1_024);
+	private Reader frameReader;
+	private Reader messageReader;
+
+	@Setup
+	public void setup() {
+		message = Samples.of(indice);
+		frame = message.getBuffer();
+		frameReader = new FrameReader(frameBuffer);
+		messageReader = new MessageReader(messageBuffer);
+	}
+
+	@Benchmark
+	public ByteBuffer encode() {
+		return message.getBuffer();
+	}
+
+	@Benchmark
+	public Object decodeFrameReader() {
+		return decode(frameReader, frameBuffer);
+	}
+
+	@Benchmark
+	public Object decodeMessageReader() {
+		return decode(messageReader, messageBuffer);
+	}
+
+	/* the frame is decoded, then the reader is asked for more to release the buffer */
+	private Object decode(Reader reader, ByteBuffer bb) {
+		bb.put(frame.duplicate());
+		if (reader.process() != Reader.ProcessStatus.DONE)
+			throw new AssertionError();
+		Object value = reader.get();
+		reader.reset();
+		if (reader.process() != Reader.ProcessStatus.REFILL)
+			throw new AssertionError();
+		return value;
+	}
+}
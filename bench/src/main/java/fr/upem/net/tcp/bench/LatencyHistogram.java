@@ -0,0 +1,78 @@
+package fr.upem.net.tcp.bench;
+
+/**
+ * A histogram of latencies with a relative precision of about 3%.
+ *
+ * The values below 32 have their own bucket, each power of two above is split
+ * in 32 buckets. Recording a value is a few shifts and an increment, without
+ * allocation. Not thread-safe: each thread records in its own histogram and
+ * they are merged at the end.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private final long[] counts = new long[SUB_BUCKETS + (Long.SIZE - SUB_BITS) * SUB_BUCKETS];
+	private long total;
+	private long max;
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/* the lowest value recorded in the bucket */
+	private static long lowest(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+	}
+
+	/**
+	 * @param value a latency, the negative ones being recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts[index(value)]++;
+		total++;
+		if (value > max)
+			max = value;
+	}
+
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	public long count() {
+		return total;
+	}
+
+	public long max() {
+		return max;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the lowest value of the bucket holding the percentile, 0 if the
+	 *         histogram is empty
+	 */
+	public long percentile(double percentile) {
+		long rank = (long) Math.ceil(percentile / 100 * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0)
+				return Math.min(lowest(i), max);
+		}
+		return 0;
+	}
+}
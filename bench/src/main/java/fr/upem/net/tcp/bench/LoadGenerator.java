@@ -0,0 +1,513 @@
+package fr.upem.net.tcp.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import fr.upem.net.tcp.reader.FrameReader;
+import fr.upem.net.tcp.reader.Message;
+import fr.upem.net.tcp.reader.Reader;
+import fr.upem.net.tcp.reader.TlsStream;
+
+/**
+ * Simulate many ChatHack users from a single JVM.
+ *
+ * The sessions are nonblocking channels spread over a few select loops. Each
+ * one logs in, with or without password, then sends public messages and
+ * private connection requests at a fixed rate. The public messages start with
+ * the System.nanoTime() of their sending, so every session receiving one
+ * records its send-to-receive latency. A private request is timed until the
+ * answer of the server, the sessions accepting every request they receive.
+ *
+ * The rates are per session: with N sessions sending r messages per second,
+ * the server receives N * r messages and writes N * N * r of them per second.
+ *
+ * With -tls true the sessions connect in TLS, the certificate of the server
+ * being checked with the default trust store, and a session is connecting
+ * until the end of its handshake. The duration of the full and resumed
+ * handshakes is reported: the sessions share one SSLContext, but a TLS 1.3
+ * ticket is used once, so few concurrent sessions resume one.
+ */
+public class LoadGenerator {
+
+	static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+	static final int BUFFER_SIZE = 1_024;
+	static final int OUT_BUFFER_SIZE = 16 * 1_024;
+	/* connections not established yet, TLS handshakes included, allowed for each loop */
+	static final int MAX_CONNECTING = 64;
+
+	private final InetSocketAddress server;
+	private int sessions = 100;
+	private int loops = 1;
+	private double rate = 1;
+	private double privateRate = 0;
+	private int size = 64;
+	private int duration = 30;
+	private String password;
+	private String prefix = "load";
+	private SSLContext tls;
+
+	private final LongAdder connected = new LongAdder();
+	private final LongAdder logged = new LongAdder();
+	private final LongAdder refused = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final LongAdder privateSent = new LongAdder();
+	private final LongAdder privateAnswered = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder resumed = new LongAdder();
+	private final LongAdder handshakeNanos = new LongAdder();
+	private final LongAdder resumedNanos = new LongAdder();
+
+	private String padding;
+
+	public LoadGenerator(InetSocketAddress server) {
+		this.server = server;
+	}
+
+	private enum State {
+		CONNECTING, LOGIN, CONNECTED
+	}
+
+	private class Session {
+		final Loop loop;
+		final String name;
+		final SocketChannel sc;
+		final SelectionKey key;
+		final ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
+		final ByteBuffer bbout = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+		final Reader reader = new FrameReader(bbin);
+		final TlsStream tlsStream;
+		/* private requests waiting for an answer, by target */
+		final HashMap<String, Long> pending = new HashMap<>();
+		State state = State.CONNECTING;
+		long nextPublic = Long.MAX_VALUE;
+		long nextPrivate = Long.MAX_VALUE;
+		long deadline = Long.MAX_VALUE;
+
+		Session(Loop loop, String name) throws IOException {
+			this.loop = loop;
+			this.name = name;
+			sc = SocketChannel.open();
+			sc.configureBlocking(false);
+			sc.connect(server);
+			key = sc.register(loop.selector, SelectionKey.OP_CONNECT, this);
+			if (tls != null) {
+				SSLEngine engine = tls.createSSLEngine(server.getHostString(), server.getPort());
+				engine.setUseClientMode(true);
+				tlsStream = new TlsStream(engine, sc, loop.tlsBuffers, null, null);
+			} else {
+				tlsStream = null;
+			}
+		}
+
+		void doConnect() throws IOException {
+			if (!sc.finishConnect())
+				return;
+			connected.increment();
+			if (tlsStream != null)
+				tlsStream.start();
+			Message login = password == null ? Message.createNon(Message.CONNEXION_SANS_MDP, name)
+					: Message.createNomMdp(name, password);
+			send(login);
+			established();
+		}
+
+		/* the login is written once the TLS handshake is over */
+		void established() {
+			if (state != State.CONNECTING || (tlsStream != null && !tlsStream.isEstablished()))
+				return;
+			state = State.LOGIN;
+			loop.connecting--;
+			if (tlsStream == null)
+				return;
+			handshakes.increment();
+			if (tlsStream.isResumed()) {
+				resumed.increment();
+				resumedNanos.add(tlsStream.handshakeNanos());
+			} else {
+				handshakeNanos.add(tlsStream.handshakeNanos());
+			}
+		}
+
+		/* the message is skipped when the server does not read fast enough */
+		boolean send(Message message) {
+			ByteBuffer frame = message.getBuffer();
+			if (frame.remaining() > bbout.remaining()) {
+				skipped.increment();
+				return false;
+			}
+			bbout.put(frame);
+			updateInterestOps();
+			return true;
+		}
+
+		void updateInterestOps() {
+			if (!key.isValid())
+				return;
+			boolean pending = bbout.position() > 0 && (tlsStream == null || tlsStream.isEstablished());
+			if (tlsStream != null && tlsStream.hasOutput())
+				pending = true;
+			key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		void doWrite() throws IOException {
+			bbout.flip();
+			if (tlsStream == null)
+				sc.write(bbout);
+			else
+				tlsStream.write(bbout);
+			bbout.compact();
+			updateInterestOps();
+		}
+
+		/* the records already read are decrypted again as long as they hold frames */
+		void doRead() throws IOException {
+			int read = tlsStream == null ? sc.read(bbin) : tlsStream.read(bbin);
+			if (read == -1)
+				throw new IOException("connection closed by the server");
+			established();
+			do {
+				processIn();
+			} while (tlsStream != null && tlsStream.hasInput() && tlsStream.drain(bbin) > 0);
+			updateInterestOps();
+		}
+
+		private void processIn() throws IOException {
+			for (;;) {
+				switch (reader.process()) {
+				case DONE:
+					Message message = (Message) reader.get();
+					reader.reset();
+					treat(message);
+					break;
+				case REFILL:
+					return;
+				case ERROR:
+					throw new IOException("malformed frame");
+				}
+			}
+		}
+
+		private void treat(Message message) {
+			long now = System.nanoTime();
+			switch (message.indice) {
+			case Message.LOGIN_ACCEPTED:
+				state = State.CONNECTED;
+				logged.increment();
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				// spread the sessions over the first period
+				if (rate > 0)
+					nextPublic = now + (long) (random.nextDouble() * period(rate));
+				if (privateRate > 0)
+					nextPrivate = now + (long) (random.nextDouble() * period(privateRate));
+				loop.schedule(this);
+				break;
+			case Message.LOGIN_REFUSED:
+				refused.increment();
+				close();
+				break;
+			case Message.RECEPTION_MESSAGE_PUBLIC:
+				received.increment();
+				String text = message.getMessage();
+				int space = text.indexOf(' ');
+				if (space <= 0)
+					break;
+				try {
+					loop.publicLatency.record(TimeUnit.NANOSECONDS.toMicros(now - Long.parseLong(text, 0, space, 10)));
+				} catch (NumberFormatException e) {
+					// a message from a real user
+				}
+				break;
+			case Message.DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR:
+				send(Message.createNon(Message.ACCEPTE_LA_CONNEXION_PRIVEE_DU_CLIENT, message.getNom()));
+				break;
+			case Message.PING:
+				// a session sending nothing is pinged by the server
+				send(Message.createBattement(Message.PONG, message.getIdenticationCode()));
+				break;
+			case Message.CONNEXION_PRIVEE_ACCEPTE:
+			case Message.CONNEXION_PRIVEE_REFUSE:
+				Long start = pending.remove(message.getNom());
+				if (start != null) {
+					privateAnswered.increment();
+					loop.privateLatency.record(TimeUnit.NANOSECONDS.toMicros(now - start));
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		/* send what is due at now and compute the next deadline */
+		void tick(long now) {
+			if (nextPublic <= now) {
+				if (send(Message.createMessagePublic(now + " " + padding)))
+					sent.increment();
+				nextPublic = next(nextPublic, now, rate);
+			}
+			if (nextPrivate <= now) {
+				String target = prefix + ThreadLocalRandom.current().nextInt(sessions);
+				if (!target.equals(name) && !pending.containsKey(target)
+						&& send(Message.createDemandeConnexionClient(target, "127.0.0.1", 7777))) {
+					pending.put(target, now);
+					privateSent.increment();
+				}
+				nextPrivate = next(nextPrivate, now, privateRate);
+			}
+		}
+
+		void close() {
+			if (!sc.isOpen())
+				return;
+			if (state == State.CONNECTING)
+				loop.connecting--;
+			deadline = Long.MAX_VALUE;
+			if (tlsStream != null)
+				tlsStream.close();
+			try {
+				sc.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+		}
+	}
+
+	private static long period(double rate) {
+		return (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+	}
+
+	/* keep the rate, unless we are late by more than one second */
+	private static long next(long previous, long now, double rate) {
+		long next = previous + period(rate);
+		if (now - next > TimeUnit.SECONDS.toNanos(1))
+			next = now + period(rate);
+		return next;
+	}
+
+	private class Loop implements Runnable {
+		final Selector selector;
+		final int first;
+		final int count;
+		final ArrayList<Session> all = new ArrayList<>();
+		final PriorityQueue<Session> deadlines = new PriorityQueue<>(
+				(s1, s2) -> Long.compare(s1.deadline, s2.deadline));
+		final LatencyHistogram publicLatency = new LatencyHistogram();
+		final LatencyHistogram privateLatency = new LatencyHistogram();
+		final TlsStream.Buffers tlsBuffers = tls == null ? null : TlsStream.buffers(TlsStream.bufferSize(tls));
+		int connecting;
+
+		Loop(int first, int count) throws IOException {
+			this.selector = Selector.open();
+			this.first = first;
+			this.count = count;
+		}
+
+		void schedule(Session session) {
+			session.deadline = Math.min(session.nextPublic, session.nextPrivate);
+			if (session.deadline != Long.MAX_VALUE)
+				deadlines.add(session);
+		}
+
+		private void openSessions() throws IOException {
+			while (connecting < MAX_CONNECTING && all.size() < count) {
+				all.add(new Session(this, prefix + (first + all.size())));
+				connecting++;
+			}
+		}
+
+		private void runDeadlines() {
+			long now = System.nanoTime();
+			Session session;
+			while ((session = deadlines.peek()) != null && session.deadline <= now) {
+				deadlines.poll();
+				if (!session.sc.isOpen())
+					continue;
+				session.tick(now);
+				schedule(session);
+			}
+		}
+
+		private long timeout() {
+			Session session = deadlines.peek();
+			if (session == null)
+				return 100;
+			return Math.max(0, TimeUnit.NANOSECONDS.toMillis(session.deadline - System.nanoTime()));
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!Thread.interrupted()) {
+					openSessions();
+					long timeout = timeout();
+					if (timeout == 0)
+						selector.selectNow(this::treatKey);
+					else
+						selector.select(this::treatKey, timeout);
+					runDeadlines();
+				}
+			} catch (IOException | UncheckedIOException e) {
+				logger.log(Level.SEVERE, "Load loop stopped", e);
+			} finally {
+				all.forEach(Session::close);
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// ignore exception
+				}
+			}
+		}
+
+		private void treatKey(SelectionKey key) {
+			Session session = (Session) key.attachment();
+			try {
+				if (key.isValid() && key.isConnectable())
+					session.doConnect();
+				if (key.isValid() && key.isWritable())
+					session.doWrite();
+				if (key.isValid() && key.isReadable())
+					session.doRead();
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Session " + session.name + " closed", e);
+				errors.increment();
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Run the sessions for the configured duration, printing a summary every
+	 * second and the latency percentiles at the end
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void launch() throws IOException, InterruptedException {
+		padding = "x".repeat(size);
+		Loop[] all = new Loop[loops];
+		Thread[] threads = new Thread[loops];
+		for (int i = 0; i < loops; i++) {
+			int first = i * sessions / loops;
+			all[i] = new Loop(first, (i + 1) * sessions / loops - first);
+			threads[i] = new Thread(all[i], "load-" + i);
+			threads[i].start();
+		}
+
+		long lastSent = 0;
+		long lastReceived = 0;
+		for (int s = 1; s <= duration; s++) {
+			Thread.sleep(1_000);
+			long sentNow = sent.sum();
+			long receivedNow = received.sum();
+			System.out.printf("%4ds connected=%d logged=%d refused=%d sent=%d/s received=%d/s skipped=%d errors=%d%n", s,
+					connected.sum(), logged.sum(), refused.sum(), sentNow - lastSent, receivedNow - lastReceived,
+					skipped.sum(), errors.sum());
+			lastSent = sentNow;
+			lastReceived = receivedNow;
+		}
+
+		for (int i = 0; i < loops; i++) {
+			threads[i].interrupt();
+			all[i].selector.wakeup();
+		}
+		LatencyHistogram publicLatency = new LatencyHistogram();
+		LatencyHistogram privateLatency = new LatencyHistogram();
+		for (int i = 0; i < loops; i++) {
+			threads[i].join();
+			publicLatency.add(all[i].publicLatency);
+			privateLatency.add(all[i].privateLatency);
+		}
+
+		System.out.printf("sent %d public messages, %.0f msg/s, received %d, %.0f msg/s%n", sent.sum(),
+				(double) sent.sum() / duration, received.sum(), (double) received.sum() / duration);
+		print("public latency", publicLatency);
+		System.out.printf("sent %d private requests, %d answered%n", privateSent.sum(), privateAnswered.sum());
+		print("private latency", privateLatency);
+		long full = handshakes.sum() - resumed.sum();
+		if (tls != null)
+			System.out.printf("tls %d full handshakes, mean %.1f ms, %d resumed, mean %.1f ms%n", full,
+					full == 0 ? 0 : handshakeNanos.sum() / 1e6 / full, resumed.sum(),
+					resumed.sum() == 0 ? 0 : resumedNanos.sum() / 1e6 / resumed.sum());
+	}
+
+	private static void print(String title, LatencyHistogram histogram) {
+		System.out.printf("%s (us): count=%d p50=%d p90=%d p99=%d p99.9=%d max=%d%n", title, histogram.count(),
+				histogram.percentile(50), histogram.percentile(90), histogram.percentile(99),
+				histogram.percentile(99.9), histogram.max());
+	}
+
+	private static void usage() {
+		System.out.println("Usage : LoadGenerator host port [-sessions n] [-loops n] [-rate msg/s] [-private req/s]"
+				+ " [-size bytes] [-duration s] [-password pw] [-prefix name] [-tls true]");
+		System.out.println("The rates are per session, -password logs in with CONNEXION_AVEC_MDP");
+		System.out.println("-tls true connects in TLS, the server certificate being checked with -Djavax.net.ssl.trustStore");
+	}
+
+	public static void main(String[] args) throws NumberFormatException, IOException, InterruptedException {
+		if (args.length < 2 || args.length % 2 != 0) {
+			usage();
+			return;
+		}
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress(args[0], Integer.parseInt(args[1])));
+		for (int i = 2; i < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-sessions":
+				generator.sessions = Integer.parseInt(value);
+				break;
+			case "-loops":
+				generator.loops = Integer.parseInt(value);
+				break;
+			case "-rate":
+				generator.rate = Double.parseDouble(value);
+				break;
+			case "-private":
+				generator.privateRate = Double.parseDouble(value);
+				break;
+			case "-size":
+				generator.size = Integer.parseInt(value);
+				break;
+			case "-duration":
+				generator.duration = Integer.parseInt(value);
+				break;
+			case "-password":
+				generator.password = value;
+				break;
+			case "-prefix":
+				generator.prefix = value;
+				break;
+			case "-tls":
+				try {
+					generator.tls = Boolean.parseBoolean(value) ? SSLContext.getDefault() : null;
+				} catch (NoSuchAlgorithmException e) {
+					throw new IOException("TLS is not available", e);
+				}
+				break;
+			default:
+				usage();
+				return;
+			}
+		}
+		generator.launch();
+	}
+}
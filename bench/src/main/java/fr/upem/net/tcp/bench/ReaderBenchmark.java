@@ -0,0 +1,91 @@
+package fr.upem.net.tcp.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.upem.net.tcp.reader.FrameReader;
+import fr.upem.net.tcp.reader.Message;
+import fr.upem.net.tcp.reader.MessageReader;
+import fr.upem.net.tcp.reader.Reader;
+
+/**
+ * Decode a stream of public messages arriving in fragments of a given size, a
+ * fragment of 1_024 bytes being a read bringing many pipelined frames at once
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReaderBenchmark {
+
+	static final int FRAMES = 100;
+
+	@Param({ "1", "7", "64", "1024" })
+	public int fragment;
+
+	private ByteBuffer stream;
+	private final ByteBuffer frameBuffer = ByteBuffer.allocate(1_024);
+	private final ByteBuffer messageBuffer = ByteBuffer.allocate(1_024);
+	private Reader frameReader;
+	private Reader messageReader;
+
+	@Setup
+	public void setup() {
+		ByteBuffer frame = Message.createMessagePublic(Samples.TEXT).getBuffer();
+		stream = ByteBuffer.allocate(FRAMES * frame.remaining());
+		for (int i = 0; i < FRAMES; i++)
+			stream.put(frame.duplicate());
+		stream.flip();
+		frameReader = new FrameReader(frameBuffer);
+		messageReader = new MessageReader(messageBuffer);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int frameReader() {
+		return feed(frameReader, frameBuffer);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int messageReader() {
+		return feed(messageReader, messageBuffer);
+	}
+
+	private int feed(Reader reader, ByteBuffer bb) {
+		int decoded = 0;
+		ByteBuffer src = stream.duplicate();
+		while (src.hasRemaining()) {
+			int size = Math.min(fragment, Math.min(src.remaining(), bb.remaining()));
+			int limit = src.limit();
+			src.limit(src.position() + size);
+			bb.put(src);
+			src.limit(limit);
+			Reader.ProcessStatus status;
+			while ((status = reader.process()) == Reader.ProcessStatus.DONE) {
+				decoded++;
+				reader.reset();
+			}
+			if (status == Reader.ProcessStatus.ERROR)
+				throw new AssertionError();
+		}
+		if (decoded != FRAMES)
+			throw new AssertionError(decoded);
+		return decoded;
+	}
+}
@@ -0,0 +1,72 @@
+package fr.upem.net.tcp.bench;
+
+import java.nio.ByteBuffer;
+
+import fr.upem.net.tcp.reader.Message;
+
+/**
+ * A representative message for each opcode
+ */
+public class Samples {
+
+	public static final String TEXT = "Bonjour a tous, ceci est un message public de taille moyenne pour le chat.";
+
+	private Samples() {
+	}
+
+	public static Message of(int indice) {
+		switch (indice) {
+		case Message.CONNEXION_SANS_MDP:
+		case Message.DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR:
+		case Message.ACCEPTE_LA_CONNEXION_PRIVEE_DU_CLIENT:
+		case Message.REFUS_DE_CONNEXION_PRIVEE_DU_CLIENT:
+			return Message.createNon(indice, "utilisateur");
+		case Message.CONNEXION_AVEC_MDP:
+			return Message.createNomMdp("utilisateur", "motdepasse");
+		case Message.LOGIN_ACCEPTED:
+			return Message.createValidationConnexion(true);
+		case Message.LOGIN_REFUSED:
+			return Message.createValidationConnexion(false);
+		case Message.ENVOIE_MESSAGE_PUBLIC:
+			return Message.createMessagePublic(TEXT);
+		case Message.RECEPTION_MESSAGE_PUBLIC:
+			return Message.createNomMessage("utilisateur", TEXT);
+		case Message.DEMANDE_CONNEXION_PRIVEE_DU_CLIENT:
+			return Message.createDemandeConnexionClient("utilisateur", "192.168.0.1", 7777);
+		case Message.CONNEXION_PRIVEE_ACCEPTE:
+			return Message.createValidationConnexionPrive(true, "utilisateur", 42);
+		case Message.CONNEXION_PRIVEE_REFUSE:
+			return Message.createValidationConnexionPrive(false, "utilisateur", 42);
+		case Message.ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR:
+			return Message.createEnvoieDesDonneeConnexionServeur("utilisateur", 7777, 42);
+		case Message.CONNEXION_PRIVEE:
+			return Message.createConnexionPrive(42);
+		case Message.MESSAGE_PRIVE:
+			return Message.createMessagePrive(TEXT);
+		case Message.ENVOIE_DE_FICHIER:
+			return Message.createNomFichier("utilisateur", TEXT);
+		case Message.DEBUT_DE_FICHIER:
+			return Message.createDebutFichier("utilisateur", "photo.jpg", 1 << 20, 3);
+		case Message.MORCEAU_DE_FICHIER:
+			return Message.createMorceauFichier(3, ByteBuffer.allocate(Message.TAILLE_MORCEAU));
+		case Message.DEBUT_MESSAGE_PUBLIC:
+			return Message.createDebutMessagePublic("utilisateur", 40_000, 3);
+		case Message.FRAGMENT_MESSAGE_PUBLIC:
+			return Message.createFragmentMessagePublic(3, ByteBuffer.allocate(Message.TAILLE_MORCEAU));
+		case Message.REJOINDRE_SALON:
+		case Message.QUITTER_SALON:
+			return Message.createSalon(indice, "salon");
+		case Message.ENVOIE_MESSAGE_SALON:
+			return Message.createMessageSalon("salon", TEXT);
+		case Message.RECEPTION_MESSAGE_SALON:
+			return Message.createReceptionMessageSalon("salon", "utilisateur", TEXT);
+		case Message.COMPRESSION:
+			return Message.createCompression(6);
+		case Message.PING:
+		case Message.PONG:
+			return Message.createBattement(indice, 123456789L);
+		default:
+			throw new IllegalArgumentException("indice inconnue " + indice);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package fr.upem.net.tcp.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of TLS on the bytes of the server, with the engines it uses, in
+ * memory.
+ *
+ * tls encrypts one write of batch bytes, as Context.doWrite does with the
+ * frames drained in bbout, and decrypts it on the side of the client;
+ * plaintext copies the same bytes twice, as a reference. The batch is the
+ * number of bytes coalesced in a write: each one is a record of its own.
+ *
+ * handshakeFull and handshakeResumed connect a new pair of engines, the
+ * second one resuming the session of the previous connection with its ticket.
+ * The certificate is an EC one created by keytool at setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsBenchmark {
+
+	private static final String PASSWORD = "benchmark";
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	@Param({ "64", "1024", "16384" })
+	public int batch;
+
+	private SSLContext serverContext;
+	private SSLContext clientContext;
+	private SSLEngine server;
+	private SSLEngine client;
+	private ByteBuffer frames;
+	private ByteBuffer net;
+	private ByteBuffer app;
+	private ByteBuffer copy;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException, GeneralSecurityException {
+		Path dir = Files.createTempDirectory("chathack-tls");
+		File keystore = dir.resolve("server.p12").toFile();
+		keystore.deleteOnExit();
+		dir.toFile().deleteOnExit();
+		Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+				"-genkeypair", "-keyalg", "EC", "-alias", "server", "-dname", "CN=localhost", "-validity", "1",
+				"-storetype", "PKCS12", "-keystore", keystore.toString(), "-storepass", PASSWORD).inheritIO().start();
+		if (keytool.waitFor() != 0)
+			throw new IOException("keytool failed");
+
+		KeyStore keyStore = KeyStore.getInstance(keystore, PASSWORD.toCharArray());
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, PASSWORD.toCharArray());
+		serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keyManagers.getKeyManagers(), null, null);
+		// the certificate of the key entry is trusted
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+		int size = serverContext.createSSLEngine().getSession().getPacketBufferSize();
+		net = ByteBuffer.allocateDirect(size);
+		app = ByteBuffer.allocateDirect(size);
+		copy = ByteBuffer.allocateDirect(size);
+		byte[] bytes = new byte[batch];
+		ThreadLocalRandom.current().nextBytes(bytes);
+		frames = ByteBuffer.allocateDirect(batch).put(bytes).flip();
+
+		server = serverEngine();
+		client = clientContext.createSSLEngine("localhost", 7777);
+		client.setUseClientMode(true);
+		handshake(client, server);
+	}
+
+	private SSLEngine serverEngine() {
+		SSLEngine engine = serverContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		return engine;
+	}
+
+	@Benchmark
+	public ByteBuffer plaintext() {
+		net.clear();
+		net.put(frames.rewind());
+		copy.clear();
+		return copy.put(net.flip());
+	}
+
+	@Benchmark
+	public ByteBuffer tls() throws SSLException {
+		net.clear();
+		check(server.wrap(frames.rewind(), net));
+		app.clear();
+		check(client.unwrap(net.flip(), app));
+		return app;
+	}
+
+	/* a client without host and port has no session to resume */
+	@Benchmark
+	public SSLEngine handshakeFull() throws SSLException {
+		SSLEngine engine = clientContext.createSSLEngine();
+		engine.setUseClientMode(true);
+		handshake(engine, serverEngine());
+		return engine;
+	}
+
+	@Benchmark
+	public SSLEngine handshakeResumed() throws SSLException {
+		SSLEngine engine = clientContext.createSSLEngine("localhost", 7777);
+		engine.setUseClientMode(true);
+		handshake(engine, serverEngine());
+		return engine;
+	}
+
+	private static void check(SSLEngineResult result) {
+		if (result.getStatus() != SSLEngineResult.Status.OK)
+			throw new AssertionError(result);
+	}
+
+	/*
+	 * Run the handshake of two engines, the tasks in this thread, until the
+	 * client took the ticket the server sends after it
+	 */
+	private void handshake(SSLEngine clientEngine, SSLEngine serverEngine) throws SSLException {
+		ByteBuffer toServer = ByteBuffer.allocate(net.capacity());
+		ByteBuffer toClient = ByteBuffer.allocate(net.capacity());
+		clientEngine.beginHandshake();
+		serverEngine.beginHandshake();
+		do {
+			step(clientEngine, toServer, toClient);
+			step(serverEngine, toClient, toServer);
+		} while (clientEngine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+				|| serverEngine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING || toClient.position() > 0
+				|| toServer.position() > 0);
+	}
+
+	private void step(SSLEngine engine, ByteBuffer out, ByteBuffer in) throws SSLException {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			task.run();
+		if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+			engine.wrap(EMPTY, out);
+			return;
+		}
+		in.flip();
+		if (in.hasRemaining()) {
+			app.clear();
+			engine.unwrap(in, app);
+		}
+		in.compact();
+	}
+}
@@ -0,0 +1,95 @@
+package fr.upem.net.tcp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.upem.net.tcp.bench.Samples;
+import fr.upem.net.tcp.parsing.CredentialStore;
+import fr.upem.net.tcp.reader.Message;
+
+/**
+ * Cost of a public message sent to every client of a reactor, queued and
+ * written the way ServerChat.broadcast and Context.doWrite do it, the clients
+ * being in-memory channels.
+ *
+ * sharedFrame is what the server does: the frame is encoded once and every
+ * Context gets a duplicate of it. encodePerRecipient encodes the message for
+ * each Context, as a reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int recipients;
+
+	private ServerChat server;
+	private Context producer;
+	private Context[] contexts;
+	private MemoryChannel[] channels;
+	private Message message;
+
+	@Setup
+	public void setup() throws IOException {
+		server = new ServerChat(0, CredentialStore.empty(), 0);
+		Reactor reactor = new Reactor(server);
+		producer = new Context(server, reactor, new MemoryKey(new MemoryChannel()));
+		producer.name = "producteur";
+		contexts = new Context[recipients];
+		channels = new MemoryChannel[recipients];
+		for (int i = 0; i < recipients; i++) {
+			channels[i] = new MemoryChannel();
+			contexts[i] = new Context(server, reactor, new MemoryKey(channels[i]));
+		}
+		message = Message.createNomMessage(producer.name, Samples.TEXT);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		server.shutdown();
+	}
+
+	@Benchmark
+	public long sharedFrame() throws IOException {
+		ByteBuffer frame = message.getBuffer().asReadOnlyBuffer();
+		for (Context context : contexts)
+			context.queueFrame(frame.duplicate(), producer);
+		return flush();
+	}
+
+	@Benchmark
+	public long encodePerRecipient() throws IOException {
+		for (Context context : contexts)
+			context.queueMessage(message, producer);
+		return flush();
+	}
+
+	/* the total number of bytes written to the clients so far */
+	private long flush() throws IOException {
+		for (Context context : contexts)
+			context.doWrite();
+		long written = 0;
+		for (MemoryChannel channel : channels)
+			written += channel.written;
+		return written;
+	}
+}
@@ -0,0 +1,44 @@
+package fr.upem.net.tcp.server;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectionKey;
+
+/**
+ * A SelectionKey of a MemoryChannel, which is never registered on a Selector
+ */
+class MemoryKey extends AbstractSelectionKey {
+
+	private final SelectableChannel channel;
+	private int interestOps;
+
+	MemoryKey(SelectableChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public SelectableChannel channel() {
+		return channel;
+	}
+
+	@Override
+	public Selector selector() {
+		return null;
+	}
+
+	@Override
+	public int interestOps() {
+		return interestOps;
+	}
+
+	@Override
+	public MemoryKey interestOps(int ops) {
+		interestOps = ops;
+		return this;
+	}
+
+	@Override
+	public int readyOps() {
+		return interestOps;
+	}
+}
@@ -0,0 +1,134 @@
+package fr.upem.net.tcp.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class HistoryRingTest {
+
+	/* a frame of length bytes, all of them equal to value */
+	private static ByteBuffer frame(int value, int length) {
+		ByteBuffer frame = ByteBuffer.allocate(length);
+		while (frame.hasRemaining())
+			frame.put((byte) value);
+		return frame.flip();
+	}
+
+	private static byte[] concat(ByteBuffer... frames) {
+		ByteBuffer all = ByteBuffer.allocate(Arrays.stream(frames).mapToInt(ByteBuffer::remaining).sum());
+		for (ByteBuffer frame : frames)
+			all.put(frame.duplicate());
+		return all.array();
+	}
+
+	private static void assertReplay(HistoryRing history, ByteBuffer... frames) {
+		HistoryRing.Replay replay = history.replay();
+		assertEquals(frames.length, replay.count);
+		byte[] bytes = new byte[replay.frames.remaining()];
+		replay.frames.get(bytes);
+		assertArrayEquals(concat(frames), bytes);
+		assertEquals(bytes.length, history.bytes());
+	}
+
+	@Test
+	void keepsNothingWithoutCount() {
+		HistoryRing history = new HistoryRing(0, 100);
+		assertEquals(HistoryRing.NOT_KEPT, history.add(frame(1, 10)));
+		assertReplay(history);
+	}
+
+	@Test
+	void refusesAFrameLargerThanTheArena() {
+		HistoryRing history = new HistoryRing(4, 10);
+		ByteBuffer a = frame(1, 4);
+		assertEquals(1, history.add(a));
+		assertEquals(HistoryRing.NOT_KEPT, history.add(frame(2, 11)));
+		assertReplay(history, a);
+		assertEquals(1, history.replay().sequence);
+	}
+
+	@Test
+	void evictsTheOldestPastTheCount() {
+		HistoryRing history = new HistoryRing(3, 100);
+		ByteBuffer[] frames = new ByteBuffer[5];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = frame(i, i + 1);
+			assertEquals(i + 1, history.add(frames[i]));
+		}
+		assertReplay(history, frames[2], frames[3], frames[4]);
+		assertEquals(5, history.replay().sequence);
+	}
+
+	@Test
+	void leavesTheFrameAdded() {
+		HistoryRing history = new HistoryRing(3, 100);
+		ByteBuffer a = frame(1, 8);
+		a.position(3);
+		history.add(a);
+		assertEquals(3, a.position());
+		assertReplay(history, frame(1, 5));
+	}
+
+	@Test
+	void wrapsAroundTheArena() {
+		HistoryRing history = new HistoryRing(10, 10);
+		ByteBuffer a = frame('a', 4), b = frame('b', 4), c = frame('c', 4), d = frame('d', 4);
+		history.add(a);
+		history.add(b);
+		// c does not fit after b: a is evicted and c goes at the start of the arena
+		history.add(c);
+		assertReplay(history, b, c);
+		// d does not fit between c and b: b is evicted and d goes after c
+		history.add(d);
+		assertReplay(history, c, d);
+	}
+
+	@Test
+	void evictsUpToTheEndOfTheArenaForAWrappedFrame() {
+		HistoryRing history = new HistoryRing(10, 10);
+		ByteBuffer a = frame('a', 3), b = frame('b', 3), c = frame('c', 3), d = frame('d', 3), e = frame('e', 5);
+		history.add(a);
+		history.add(b);
+		history.add(c);
+		history.add(d);
+		assertReplay(history, b, c, d);
+		// e only fits once b and c, at the end of the arena, are evicted
+		history.add(e);
+		assertReplay(history, d, e);
+	}
+
+	/*
+	 * Whatever the sizes, the history is the last frames added, within its count
+	 * and capacity, and always holds the last frame when it fits
+	 */
+	@Test
+	void keepsASuffixOfTheFramesAdded() {
+		Random random = new Random(0);
+		int count = 16, capacity = 1_000;
+		HistoryRing history = new HistoryRing(count, capacity);
+		ArrayList<ByteBuffer> added = new ArrayList<>();
+		for (int i = 0; i < 10_000; i++) {
+			ByteBuffer frame = frame(i, 1 + random.nextInt(random.nextBoolean() ? 40 : 400));
+			added.add(frame);
+			assertEquals(added.size(), history.add(frame));
+
+			HistoryRing.Replay replay = history.replay();
+			assertTrue(replay.count >= 1 && replay.count <= count);
+			assertTrue(replay.frames.remaining() <= capacity);
+			ArrayDeque<ByteBuffer> last = new ArrayDeque<>();
+			for (int j = added.size() - replay.count; j < added.size(); j++)
+				last.add(added.get(j));
+			byte[] bytes = new byte[replay.frames.remaining()];
+			replay.frames.get(bytes);
+			assertArrayEquals(concat(last.toArray(ByteBuffer[]::new)), bytes);
+		}
+	}
+}
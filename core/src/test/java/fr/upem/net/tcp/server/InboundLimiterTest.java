@@ -0,0 +1,92 @@
+package fr.upem.net.tcp.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import fr.upem.net.tcp.reader.Message;
+
+class InboundLimiterTest {
+
+	private static final long SECOND = 1_000_000_000;
+	private static final int PUBLIC = Message.ENVOIE_MESSAGE_PUBLIC;
+	private static final int FILE = Message.MORCEAU_DE_FICHIER;
+	private static final int CONTROL = Message.PING;
+
+	/* 4 public frames and 1 KiB per second, file and control frames unlimited */
+	private static InboundLimiter publicOnly(double burstSeconds) {
+		return new InboundLimiter(new long[] { 4, 1_024, 0, 0, 0, 0 }, burstSeconds, 0);
+	}
+
+	@Test
+	void unlimitedClassIsNeverInDebt() {
+		InboundLimiter limiter = publicOnly(1);
+		for (int i = 0; i < 1_000; i++) {
+			assertEquals(0, limiter.charge(FILE, 1 << 20, 0));
+			assertEquals(0, limiter.charge(CONTROL, 8, 0));
+		}
+	}
+
+	@Test
+	void bucketsStartFullWithTheirBurst() {
+		InboundLimiter limiter = publicOnly(1);
+		for (int i = 0; i < 4; i++)
+			assertEquals(0, limiter.charge(PUBLIC, 10, 0));
+		// the fifth frame owes a frame, a quarter of a second
+		assertEquals(SECOND / 4, limiter.charge(PUBLIC, 10, 0));
+	}
+
+	@Test
+	void burstHoldsAtLeastOneFrame() {
+		InboundLimiter limiter = publicOnly(0.1);
+		assertEquals(0, limiter.charge(PUBLIC, 10, 0));
+		assertEquals(SECOND / 4, limiter.charge(PUBLIC, 10, 0));
+	}
+
+	@Test
+	void debtIsTheLongestOfTheFramesAndTheBytes() {
+		InboundLimiter limiter = publicOnly(1);
+		// 1536 bytes owe 512 bytes, half a second, more than the frames
+		assertEquals(SECOND / 2, limiter.charge(PUBLIC, 1_536, 0));
+		// once repaid, the bucket of the bytes is empty and the next frame owes its bytes
+		assertEquals(SECOND / 4, limiter.charge(PUBLIC, 256, SECOND / 2));
+	}
+
+	@Test
+	void debtIsRepaidWithTheTimeElapsed() {
+		InboundLimiter limiter = publicOnly(1);
+		for (int i = 0; i < 4; i++)
+			limiter.charge(PUBLIC, 1, 0);
+		assertEquals(SECOND / 4, limiter.charge(PUBLIC, 1, 0));
+		// a frame charged before the debt is repaid adds to it
+		assertEquals(SECOND / 2, limiter.charge(PUBLIC, 1, 0));
+		assertEquals(SECOND / 4, limiter.charge(PUBLIC, 1, SECOND / 2));
+		assertEquals(0, limiter.charge(PUBLIC, 1, SECOND));
+	}
+
+	@Test
+	void refillIsCappedByTheBurst() {
+		InboundLimiter limiter = publicOnly(1);
+		limiter.charge(PUBLIC, 1, 0);
+		// an hour idle only refills one second of frames
+		for (int i = 0; i < 4; i++)
+			assertEquals(0, limiter.charge(PUBLIC, 1, 3_600 * SECOND));
+		assertEquals(SECOND / 4, limiter.charge(PUBLIC, 1, 3_600 * SECOND));
+	}
+
+	@Test
+	void classesAreRepaidIndependently() {
+		InboundLimiter limiter = new InboundLimiter(new long[] { 4, 0, 0, 0, 4, 0 }, 1, 0);
+		for (int i = 0; i < 4; i++)
+			limiter.charge(PUBLIC, 1, 0);
+		assertEquals(SECOND / 4, limiter.charge(PUBLIC, 1, 0));
+		// the control frames have their own bucket, full
+		for (int i = 0; i < 4; i++)
+			assertEquals(0, limiter.charge(CONTROL, 1, SECOND / 8));
+		// charging the control frames neither refilled nor moved the time of the public bucket
+		assertEquals(SECOND / 4, limiter.charge(PUBLIC, 1, SECOND / 4));
+		// the control bucket got half a frame back since its last charge
+		assertEquals(SECOND / 8, limiter.charge(CONTROL, 1, SECOND / 4));
+		assertEquals(0, limiter.charge(PUBLIC, 1, SECOND));
+	}
+}
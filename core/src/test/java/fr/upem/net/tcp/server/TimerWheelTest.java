@@ -0,0 +1,141 @@
+package fr.upem.net.tcp.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+
+	private static final long TICK = 100;
+	private static final int SLOTS = 8;
+
+	private final TimerWheel wheel = new TimerWheel(TICK, SLOTS, 0);
+	/* the names of the timers run, in order */
+	private final ArrayList<String> runs = new ArrayList<>();
+
+	private TimerWheel.Timer timer(String name) {
+		return new TimerWheel.Timer(() -> runs.add(name));
+	}
+
+	@Test
+	void expiresAtTheTickOfItsDeadlineRoundedUp() {
+		TimerWheel.Timer timer = timer("a");
+		wheel.schedule(timer, 250, 0);
+		assertEquals(100, wheel.nanosToNextTick(0));
+		assertEquals(0, wheel.advance(299));
+		assertTrue(timer.isScheduled());
+		assertEquals(1, wheel.advance(300));
+		assertEquals(List.of("a"), runs);
+		assertFalse(timer.isScheduled());
+		assertEquals(0, wheel.size());
+		assertEquals(-1, wheel.nanosToNextTick(300));
+	}
+
+	@Test
+	void expiresAtTheNextTickAtTheEarliest() {
+		wheel.schedule(timer("a"), 0, 0);
+		wheel.schedule(timer("b"), -5, 0);
+		assertEquals(0, wheel.advance(99));
+		assertEquals(2, wheel.advance(100));
+	}
+
+	@Test
+	void keepsATimerFurtherThanATurnInItsSlot() {
+		// tick 11 is in the slot of tick 3
+		wheel.schedule(timer("far"), 11 * TICK, 0);
+		wheel.schedule(timer("near"), 3 * TICK, 0);
+		assertEquals(1, wheel.advance(3 * TICK));
+		assertEquals(List.of("near"), runs);
+		assertEquals(0, wheel.advance(10 * TICK));
+		assertEquals(1, wheel.advance(11 * TICK));
+		assertEquals(List.of("near", "far"), runs);
+	}
+
+	@Test
+	void schedulingAgainReplacesTheDeadline() {
+		TimerWheel.Timer timer = timer("a");
+		wheel.schedule(timer, TICK, 0);
+		wheel.schedule(timer, 5 * TICK, 0);
+		assertEquals(1, wheel.size());
+		assertEquals(0, wheel.advance(4 * TICK));
+		assertEquals(1, wheel.advance(5 * TICK));
+	}
+
+	@Test
+	void cancelledTimerDoesNotRun() {
+		TimerWheel.Timer a = timer("a"), b = timer("b");
+		wheel.schedule(a, TICK, 0);
+		wheel.schedule(b, TICK, 0);
+		wheel.cancel(a);
+		wheel.cancel(a);
+		assertEquals(1, wheel.size());
+		assertEquals(1, wheel.advance(TICK));
+		assertEquals(List.of("b"), runs);
+	}
+
+	@Test
+	void timerCancelledByAnotherOfTheSameSlotDoesNotRun() {
+		TimerWheel.Timer[] others = new TimerWheel.Timer[2];
+		TimerWheel.Timer cancelling = new TimerWheel.Timer(() -> {
+			runs.add("cancelling");
+			wheel.cancel(others[0]);
+			wheel.cancel(others[1]);
+		});
+		others[0] = timer("first");
+		others[1] = timer("last");
+		// the timers of a slot run in the order they were scheduled: one before, one after
+		wheel.schedule(others[0], TICK, 0);
+		wheel.schedule(cancelling, TICK, 0);
+		wheel.schedule(others[1], TICK, 0);
+		int expired = wheel.advance(TICK);
+		assertEquals(List.of("first", "cancelling"), runs);
+		assertEquals(2, expired);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	void timerRescheduledByAnotherOfTheSameSlotRunsAtItsNewDeadline() {
+		TimerWheel.Timer later = timer("later");
+		TimerWheel.Timer rescheduling = new TimerWheel.Timer(() -> {
+			runs.add("rescheduling");
+			wheel.schedule(later, 2 * TICK, TICK);
+		});
+		wheel.schedule(rescheduling, TICK, 0);
+		wheel.schedule(later, TICK, 0);
+		assertEquals(1, wheel.advance(TICK));
+		assertEquals(List.of("rescheduling"), runs);
+		assertTrue(later.isScheduled());
+		assertEquals(0, wheel.advance(2 * TICK));
+		assertEquals(1, wheel.advance(3 * TICK));
+		assertEquals(List.of("rescheduling", "later"), runs);
+	}
+
+	@Test
+	void timerReschedulingItselfRunsOncePerDeadline() {
+		TimerWheel.Timer[] self = new TimerWheel.Timer[1];
+		self[0] = new TimerWheel.Timer(() -> {
+			runs.add("self");
+			wheel.schedule(self[0], 0, runs.size() * TICK);
+		});
+		wheel.schedule(self[0], 0, 0);
+		assertEquals(1, wheel.advance(TICK));
+		assertEquals(1, wheel.size());
+		// a late advance runs it once for each tick elapsed, never twice in a tick
+		assertEquals(3, wheel.advance(4 * TICK));
+		assertEquals(4, runs.size());
+	}
+
+	@Test
+	void advancesPastTheTicksWithoutTimers() {
+		assertEquals(0, wheel.advance(1_000 * TICK));
+		TimerWheel.Timer timer = timer("a");
+		wheel.schedule(timer, TICK, 1_000 * TICK);
+		assertEquals(TICK, wheel.nanosToNextTick(1_000 * TICK));
+		assertEquals(1, wheel.advance(1_001 * TICK));
+	}
+}
@@ -2,21 +2,36 @@ package fr.upem.net.tcp.client;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.*;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import fr.upem.net.tcp.reader.Compression;
 import fr.upem.net.tcp.reader.Message;
-import fr.upem.net.tcp.reader.MessageReader;
+import fr.upem.net.tcp.reader.FrameReader;
 import fr.upem.net.tcp.reader.Reader;
+import fr.upem.net.tcp.reader.TlsStream;
 
 import static fr.upem.net.tcp.reader.Message.*;
 
@@ -40,12 +55,23 @@ public class ClientChat {
         final private ClientChat client;
         final private Queue<Message> pqueue = new LinkedList<>();
         final private Queue<String> requestQueue = new LinkedList<>();
-        final private ByteBuffer pbbin = ByteBuffer.allocate(BUFFER_SIZE);
+        final private Queue<FileSender> files = new LinkedList<>();
+        private ByteBuffer pbbin = ByteBuffer.allocate(BUFFER_SIZE);
         final private ByteBuffer pbbout = ByteBuffer.allocate(BUFFER_SIZE);
         private boolean closed = false;
         final private SelectionKey key;
-        private MessageReader messageReader;
+        private FrameReader messageReader;
         private MessageWriter messageWriter;
+        // once the compression is granted, the bytes read are inflated from zbbin and pbbout is deflated in zbbout
+        private Compression compression;
+        private ByteBuffer zbbin;
+        private ByteBuffer zbbout;
+        // nothing but the COMPRESSION frame is sent until the server answers it
+        private boolean negotiating = false;
+        // the TLS session below the streams, the compressed ones included, null in plaintext
+        private TlsStream tls;
+        // when the last message was queued
+        private long lastQueued = System.nanoTime();
 
         /**
          * Context's constructor
@@ -58,8 +84,19 @@ public class ClientChat {
             this.psc = (SocketChannel) key.channel();
             this.client = client;
             this.isPrivate = isPrivate;
-            messageReader = new MessageReader(pbbin);
+            this.negotiating = !isPrivate && COMPRESSION_LEVEL > 0;
+            messageReader = new FrameReader(pbbin, MAX_FRAME_SIZE);
             messageWriter = new MessageWriter(pbbout);
+            if(client.tls != null) {
+                InetSocketAddress server = (InetSocketAddress) client.serverAddress;
+                // the host and port let the connections to the same server resume its session
+                SSLEngine engine = client.tls.createSSLEngine(server.getHostString(), server.getPort());
+                engine.setUseClientMode(true);
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(parameters);
+                tls = new TlsStream(engine, psc, client.tlsBuffers, null, null);
+            }
         }
 
         /**
@@ -67,11 +104,47 @@ public class ClientChat {
          * @param msg : message to send
          */
         private void queueMessage(Message msg) {
+            lastQueued = System.nanoTime();
             pqueue.add(msg);
             processOut();
             updateInterestOps();
         }
 
+        /**
+         * announces a file to its recipient and queues it, its chunks are sent once the announce is written
+         * @param dest : the login of the recipient
+         * @param path : the file to send
+         * @throws IOException if the file cannot be opened
+         */
+        private void queueFile(String dest, Path path) throws IOException {
+            FileSender sender = new FileSender(path, ++client.transferts);
+            queueMessage(Message.createDebutFichier(dest, path.getFileName().toString(), sender.size, sender.id));
+            files.add(sender);
+            updateInterestOps();
+        }
+
+        /**
+         * queues a public message, split in fragments when it is longer than a chunk so that the server forwards
+         * it as it arrives instead of waiting for the whole message
+         * @param text : the message
+         */
+        private void queuePublicMessage(String text) {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(text);
+            if(bytes.remaining() <= TAILLE_MORCEAU) {
+                queueMessage(Message.createMessagePublic(text));
+                return;
+            }
+            int id = ++client.transferts;
+            pqueue.add(Message.createDebutMessagePublic(client.login, bytes.remaining(), id));
+            while(bytes.hasRemaining()) {
+                int size = Math.min(TAILLE_MORCEAU, bytes.remaining());
+                pqueue.add(Message.createFragmentMessagePublic(id, bytes.slice(bytes.position(), size)));
+                bytes.position(bytes.position() + size);
+            }
+            processOut();
+            updateInterestOps();
+        }
+
         /**
          * adds a request into the queue, process the bbout buffer, and finally updates the interestOps
          * @param request : http request to send to send
@@ -129,13 +202,31 @@ public class ClientChat {
                                 client.PrivateMessageFromAClientToAnotherOne(msg); break;
                             case 15 :
                                 client.sendFileFromAClientToAnotherOne(msg); break;
+                            case 16 :
+                                client.fileStartedByAnotherClient(msg); break;
+                            case 17 :
+                                client.fileChunkFromAnotherClient(msg); break;
+                            case 18 :
+                                client.publicMessageStartedByAnotherClient(msg); break;
+                            case 19 :
+                                client.publicFragmentFromAnotherClient(msg); break;
+                            case 23 :
+                                client.roomMessageServerToClient(msg); break;
+                            case 24 :
+                                compressionGranted(msg.getNiveau()); break;
+                            case 25 :
+                                queueMessage(Message.createBattement(PONG, msg.getIdenticationCode())); break;
+                            case 26 :
+                                logger.log(Level.FINE, "PONG en " + (System.nanoTime() - msg.getIdenticationCode()) / 1_000 + " us"); break;
 
                         }
                         messageReader.reset();
-                        return;
+                        break;
                     case REFILL:
-                        logger.log(Level.INFO, "Le serveur s'est deconnecte");
-                        System.exit(0);
+                        if(closed) {
+                            logger.log(Level.INFO, "Le serveur s'est deconnecte");
+                            System.exit(0);
+                        }
                         return;
                     case ERROR:
                         silentlyClose();
@@ -144,16 +235,29 @@ public class ClientChat {
             }
         }
 
+        /**
+         * sends a PING if nothing was queued for HEARTBEAT_MILLIS, so that the NAT mappings of the connection
+         * are kept alive and the server does not close it as idle
+         */
+        private void heartbeat() {
+            long now = System.nanoTime();
+            if(psc.isOpen() && now - lastQueued >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS)) {
+                queueMessage(Message.createBattement(PING, now));
+            }
+        }
+
         /**
          * Process the bbout buffer by pulling the queue and writes into the bbout buffer
          */
         private void processOut() {
-            Message m;
-            do {
-                m = pqueue.poll();
-                messageWriter.process(m);
+            FileSender sender = files.peek();
+            // the chunk being deflated or encrypted goes through pbbout and must not be cut by a message
+            if(negotiating || ((compression != null || tls != null) && sender != null && sender.inChunk())) {
+                return;
+            }
+            while(!pqueue.isEmpty() && messageWriter.process(pqueue.peek())) {
+                pqueue.poll();
             }
-            while(pbbout.remaining() >= Integer.BYTES && pqueue.size() > 0);
         }
 
         /**
@@ -161,10 +265,15 @@ public class ClientChat {
          */
         private void updateInterestOps() {
             int newOps = 0;
-            if(pbbin.hasRemaining() && !closed) {
+            ByteBuffer input = compression == null ? pbbin : zbbin;
+            if(input.hasRemaining() && !closed) {
                 newOps |= SelectionKey.OP_READ;
             }
-            if(pbbout.position() > 0 ) {
+            // nothing is given to the TLS session before the end of the handshake, but the records of the handshake
+            boolean established = tls == null || tls.isEstablished();
+            if((established && (pbbout.position() > 0 || (!negotiating && (!pqueue.isEmpty() || !files.isEmpty()))
+                    || (compression != null && (zbbout.position() > 0 || compression.isPending()))))
+                    || (tls != null && tls.hasOutput())) {
                 newOps |= SelectionKey.OP_WRITE;
             }
             if(newOps != 0) {
@@ -179,6 +288,9 @@ public class ClientChat {
          * Close the current socket channel without message
          */
         private void silentlyClose() {
+            if(tls != null) {
+                tls.close();
+            }
             try {
                 psc.close();
             } catch (IOException e) {
@@ -191,27 +303,178 @@ public class ClientChat {
          * @throws IOException
          */
         private void doRead() throws IOException {
-            if(psc.read(pbbin) == -1) {
+            if(compression != null) {
+                doReadCompressed();
+                return;
+            }
+            if(read(pbbin) == -1) {
                 closed = true;
             }
             processIn();
+            resizeInput();
+            // the records already read may hold more than pbbin could take
+            while(tls != null && psc.isOpen() && tls.hasInput() && tls.drain(pbbin) > 0) {
+                processIn();
+                resizeInput();
+            }
+            updateInterestOps();
+        }
+
+        /**
+         * Reads the socket, or the plaintext of the TLS session
+         * @param bb : the buffer to fill, in write-mode
+         * @return the number of bytes read on the socket, -1 at the end of the stream
+         * @throws IOException
+         */
+        private int read(ByteBuffer bb) throws IOException {
+            return tls == null ? psc.read(bb) : tls.read(bb);
+        }
+
+        /**
+         * Writes on the socket, or encrypts in the TLS session as much as the socket takes
+         * @param bb : the buffer to write, in read-mode
+         * @throws IOException
+         */
+        private void write(ByteBuffer bb) throws IOException {
+            if(tls == null) {
+                psc.write(bb);
+            }
+            else {
+                tls.write(bb);
+            }
+        }
+
+        /**
+         * Reads the compressed stream in zbbin and inflates it in pbbin, again as long as the inflated bytes fill it
+         * @throws IOException if the stream is not a deflate stream
+         */
+        private void doReadCompressed() throws IOException {
+            boolean end = read(zbbin) == -1;
+            boolean filled;
+            do {
+                zbbin.flip();
+                do {
+                    try {
+                        compression.inflate(zbbin, pbbin);
+                    } catch (DataFormatException e) {
+                        throw new IOException("Flux compresse invalide", e);
+                    }
+                    filled = !pbbin.hasRemaining();
+                    processIn();
+                    resizeInput();
+                } while(filled && psc.isOpen());
+                zbbin.compact();
+            } while(tls != null && psc.isOpen() && tls.hasInput() && tls.drain(zbbin) > 0);
+            if(end) {
+                closed = true;
+                processIn();
+            }
             updateInterestOps();
         }
 
         /**
-         * Writes the messages/http requests to the server and update the interest ops
+         * Doubles pbbin when it is full of the beginning of a frame, the reader having checked the frame fits in
+         * MAX_FRAME_SIZE, and goes back to BUFFER_SIZE once it is empty
+         */
+        private void resizeInput() {
+            int capacity;
+            if(!psc.isOpen()) {
+                return;
+            }
+            if(!pbbin.hasRemaining() && pbbin.capacity() < MAX_FRAME_SIZE) {
+                capacity = Math.min(2 * pbbin.capacity(), MAX_FRAME_SIZE);
+            }
+            else if(pbbin.position() == 0 && pbbin.capacity() > BUFFER_SIZE) {
+                capacity = BUFFER_SIZE;
+            }
+            else {
+                return;
+            }
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            resized.put(pbbin.flip());
+            pbbin = resized;
+            messageReader.setBuffer(pbbin);
+        }
+
+        /**
+         * Writes the messages/http requests to the server, then at most one chunk of the current file,
+         * and update the interest ops
+         * The messages are never blocked for more than one chunk by a file transfer
          * @throws IOException
          */
         private void doWrite() throws IOException {
-            pbbout.flip();
-            psc.write(pbbout);
-            pbbout.compact();
+            if(compression != null || tls != null) {
+                doWriteBuffered();
+                return;
+            }
+            FileSender sender = files.peek();
+            if(sender == null || !sender.inChunk()) {
+                pbbout.flip();
+                psc.write(pbbout);
+                pbbout.compact();
+                processOut();
+            }
+            if(sender != null && (sender.inChunk() || pbbout.position() == 0)) {
+                if(sender.write(psc)) {
+                    files.poll();
+                    sender.close();
+                }
+            }
+            updateInterestOps();
+        }
+
+        /**
+         * Puts the messages then at most one chunk of the current file in pbbout, deflates it in zbbout
+         * with a sync flush once pbbout is empty if the stream is compressed, and writes the result,
+         * through the TLS session if there is one
+         * @throws IOException
+         */
+        private void doWriteBuffered() throws IOException {
+            FileSender sender = files.peek();
+            processOut();
+            if(sender != null && (sender.inChunk() || pqueue.isEmpty())) {
+                if(sender.read(pbbout)) {
+                    files.poll();
+                    sender.close();
+                }
+            }
+            ByteBuffer out = pbbout;
+            if(compression != null) {
+                pbbout.flip();
+                compression.deflate(pbbout, zbbout);
+                pbbout.compact();
+                if(pbbout.position() == 0) {
+                    compression.flush(zbbout);
+                }
+                out = zbbout;
+            }
+            out.flip();
+            write(out);
+            out.compact();
+            updateInterestOps();
+        }
+
+        /**
+         * id = 24 : the server answered the compression asked at the connection, with the level granted
+         * Both streams are compressed from now if it is not 0, and the messages held are sent
+         * @param level : the level granted
+         */
+        private void compressionGranted(int level) {
+            negotiating = false;
+            if(level > 0) {
+                compression = new Compression(level);
+                zbbin = ByteBuffer.allocate(BUFFER_SIZE);
+                zbbout = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+            logger.log(Level.INFO, "Compression de niveau " + level);
+            processOut();
             updateInterestOps();
         }
 
         /**
          * Tests if the socket is finally connected to the server
          * If the socket channel is private connection one, sends a message to the serve
+         * Otherwise asks for the compression of the streams if it is wanted, before any other message
          * Finally updates the interest ops
          * @throws IOException
          */
@@ -219,6 +482,9 @@ public class ClientChat {
             if (!((SocketChannel) key.channel()).finishConnect()){
                 return;
             }
+            if(tls != null) {
+                tls.start();
+            }
             Context c = (Context)key.attachment();
             if(c.isPrivate == true) {
                 int id = client.sockets.get(psc);
@@ -226,12 +492,65 @@ public class ClientChat {
                 queueMessage(msg);
                 client.privateChat++;
             }
+            else if(negotiating) {
+                pbbout.put(Message.createCompression(COMPRESSION_LEVEL).getBuffer());
+            }
             updateInterestOps();
         }
     }
 
 
     static private int BUFFER_SIZE = 1_024;
+    // larger than the frames accepted by the server, with room for the name it adds to a public message
+    static private int MAX_FRAME_SIZE = 128 * 1_024;
+    // the public messages received by fragments are assembled in memory, and dropped if no fragment came for that long
+    static private int MAX_PUBLIC_MESSAGE = 1 << 20;
+    static private long PUBLIC_MESSAGE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // the level of compression asked to the server for the public connection, none if it is 0
+    static private int COMPRESSION_LEVEL = Integer.getInteger("chathack.compression", 0);
+    // the connections are in TLS, the certificate of the server being checked with the default trust store
+    static private boolean TLS = Boolean.getBoolean("chathack.tls");
+    // a PING is sent on the public connection once nothing was sent for that long, never if it is 0
+    static private long HEARTBEAT_MILLIS = Long.getLong("chathack.heartbeat.millis", 0);
+
+    /**
+     * a public message received by fragments, its buffer grown as they arrive
+     * up to the size announced
+     */
+    static private class FragmentedMessage {
+        final String sender;
+        final int size;
+        ByteBuffer bytes;
+        long lastFragment;
+
+        FragmentedMessage(String sender, int size, long now) {
+            this.sender = sender;
+            this.size = size;
+            this.bytes = ByteBuffer.allocate(Math.min(size, BUFFER_SIZE));
+            this.lastFragment = now;
+        }
+
+        /**
+         * @return false if the fragment goes past the size announced
+         */
+        boolean add(ByteBuffer fragment, long now) {
+            if(fragment.remaining() > size - bytes.position()) {
+                return false;
+            }
+            if(fragment.remaining() > bytes.remaining()) {
+                int capacity = Math.max(2 * bytes.capacity(), bytes.position() + fragment.remaining());
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(size, capacity));
+                bytes = grown.put(bytes.flip());
+            }
+            bytes.put(fragment);
+            lastFragment = now;
+            return true;
+        }
+
+        boolean isComplete() {
+            return bytes.position() == size;
+        }
+    }
     static private Logger logger = Logger.getLogger(ClientChat.class.getName());
     private SelectionKey key;
     final private SocketChannel sc;
@@ -250,6 +569,15 @@ public class ClientChat {
     private final HashMap<Integer, String> privateChats = new HashMap<>();
     private final HashMap<SocketChannel, Integer> sockets = new HashMap<>();
     private final HashMap<SocketChannel, SelectionKey> privateKeys = new HashMap<>();
+    private final HashMap<Integer, FileReceiver> receivers = new HashMap<>();
+    private final HashMap<Integer, FragmentedMessage> publicMessages = new HashMap<>();
+    private long lastPublicMessagesCheck = System.nanoTime();
+    private int transferts = 0;
+    // the lines of the console, treated by the selector thread: a full queue blocks the console thread
+    private final BlockingQueue<String> commands = new ArrayBlockingQueue<>(64);
+    // shared by the public and private connections, which resume the TLS session of the first one
+    private final SSLContext tls;
+    private final TlsStream.Buffers tlsBuffers;
     /**
      * ClientChat's constructor
      * @param serverAddress : the address of the server
@@ -259,6 +587,12 @@ public class ClientChat {
         this.serverAddress = serverAddress;
         sc = SocketChannel.open();
         selector = Selector.open();
+        try {
+            tls = TLS ? SSLContext.getDefault() : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS indisponible", e);
+        }
+        tlsBuffers = TLS ? TlsStream.buffers(TlsStream.bufferSize(tls)) : null;
     }
     /**
      * id = 0 : a connexion demand has been received without a  password
@@ -326,6 +660,16 @@ public class ClientChat {
         System.out.println(msg.getNom() + " dit : " + msg.getMessage());
     }
 
+    /**
+     * id = 23 : The server has sent a message of a room the user joined
+     * Displays the room, the sender and the message
+     * @param msg : the received message
+     */
+    private void roomMessageServerToClient(Message msg) {
+        logger.log(Level.INFO,"#" + msg.getSalon() + " " + msg.getNom() + " dit : " + msg.getMessage());
+        System.out.println("#" + msg.getSalon() + " " + msg.getNom() + " dit : " + msg.getMessage());
+    }
+
     /**
      * id = 6 : a private connexion demand has been received by the client
      * Displays a message to informs the user and updates the list of received demands
@@ -474,6 +818,119 @@ public class ClientChat {
     private void sendFileFromAClientToAnotherOne(Message msg) {
     }
 
+    /**
+     * id = 16 : Another client starts sending a file
+     * Creates the file in the current directory, with its final size, to receive the chunks
+     * @param msg : the received message
+     */
+    private void fileStartedByAnotherClient(Message msg) {
+        Path path;
+        try {
+            path = Paths.get(msg.getFile()).getFileName();
+        } catch(InvalidPathException e) {
+            path = null;
+        }
+        if(path == null) {
+            logger.log(Level.INFO, "Nom de fichier invalide de la part de " + msg.getNom());
+            return;
+        }
+        try {
+            FileReceiver receiver = new FileReceiver(path, msg.getTaille(), msg.getNom());
+            if(receiver.isComplete()) {
+                receiver.close();
+                System.out.println("Fichier " + path + " recu de " + msg.getNom());
+                return;
+            }
+            receivers.put(msg.getIdTransfert(), receiver);
+            System.out.println("Reception du fichier " + path + " de " + msg.getNom() + " (" + msg.getTaille() + " octets)");
+        } catch(IOException e) {
+            logger.log(Level.INFO, "Impossible de recevoir le fichier " + path, e);
+            System.out.println("Impossible de recevoir le fichier " + path + " de " + msg.getNom());
+        }
+    }
+
+    /**
+     * id = 17 : A chunk of a file sent by another client
+     * Writes it in the file, which is closed when complete
+     * @param msg : the received message
+     */
+    private void fileChunkFromAnotherClient(Message msg) {
+        FileReceiver receiver = receivers.get(msg.getIdTransfert());
+        if(receiver == null) {
+            return;
+        }
+        try {
+            receiver.write(msg.getMorceau());
+            if(receiver.isComplete()) {
+                receivers.remove(msg.getIdTransfert());
+                receiver.close();
+                System.out.println("Fichier " + receiver.path + " recu de " + receiver.sender);
+            }
+        } catch(IOException e) {
+            logger.log(Level.INFO, "Erreur pendant la reception de " + receiver.path, e);
+            receivers.remove(msg.getIdTransfert());
+            try {
+                receiver.close();
+            } catch(IOException ignored) {
+                // ignore exception
+            }
+        }
+    }
+
+    /**
+     * id = 18 : another client starts a public message sent by fragments
+     * @param msg : the received message
+     */
+    private void publicMessageStartedByAnotherClient(Message msg) {
+        long now = System.nanoTime();
+        dropStalledPublicMessages(now);
+        if(msg.getTaille() > MAX_PUBLIC_MESSAGE) {
+            logger.log(Level.INFO, "Message public trop long de la part de " + msg.getNom());
+            return;
+        }
+        publicMessages.put(msg.getIdTransfert(), new FragmentedMessage(msg.getNom(), (int) msg.getTaille(), now));
+    }
+
+    /**
+     * id = 19 : a fragment of a public message, displayed once complete
+     * @param msg : the received message
+     */
+    private void publicFragmentFromAnotherClient(Message msg) {
+        FragmentedMessage message = publicMessages.get(msg.getIdTransfert());
+        if(message == null) {
+            return;
+        }
+        if(!message.add(msg.getMorceau(), System.nanoTime())) {
+            publicMessages.remove(msg.getIdTransfert());
+            return;
+        }
+        if(message.isComplete()) {
+            publicMessages.remove(msg.getIdTransfert());
+            String text = StandardCharsets.UTF_8.decode(message.bytes.flip()).toString();
+            logger.log(Level.INFO,message.sender + " dit : " + text);
+            System.out.println(message.sender + " dit : " + text);
+        }
+    }
+
+    /**
+     * Drop the public messages whose sender stopped sending fragments, or left:
+     * the server does not tell it. Checked at most once per second.
+     * @param now : the current System.nanoTime()
+     */
+    private void dropStalledPublicMessages(long now) {
+        if(now - lastPublicMessagesCheck < TimeUnit.SECONDS.toNanos(1)) {
+            return;
+        }
+        lastPublicMessagesCheck = now;
+        publicMessages.values().removeIf(message -> {
+            if(now - message.lastFragment < PUBLIC_MESSAGE_TIMEOUT_NANOS) {
+                return false;
+            }
+            logger.log(Level.INFO, "Message public de " + message.sender + " abandonne");
+            return true;
+        });
+    }
+
     private void displayPrivateCommands() {
         logger.log(Level.INFO, "Entrez une commande : ");
         if(privateChatReceived > 0) {
@@ -526,245 +983,298 @@ public class ClientChat {
         Scanner scanner = new Scanner(System.in);
         System.out.println("TEST 2");
         Thread input = new Thread(() -> {
-            Message msg;
-            String entree;
             logger.log(Level.INFO, "Entrer un pseudo");
             System.out.println("Entrer un pseudo");
-            while(scanner.hasNext()) {
-                entree = scanner.nextLine();
-                String replaceEntree = entree.replaceAll("\\s", "");
-                if(!replaceEntree.equals("")) {
-                    if(logged == false) {
-                        //Connexion
-                        login = entree;
-
-                        if(!login.equals("") && !login.equals(null)
-                                && !login.contains(" ") && !login.contains("\t")
-                                && !login.contains("\n") && !login.contains("\f")
-                                && !login.contains("\r") && login.length() >= 3) {
-                            //Login Valide
-                            // IDEE: DEMANDE DE CONNEXION SANS MDP? Indice: 0 ?
-
-                            msg = new Message(CONNEXION_SANS_MDP,0  ,0  ,"" , "", "",
-                                    "", "");
-                            publicContext.queueMessage(msg);
+            try {
+                while(scanner.hasNext()) {
+                    commands.put(scanner.nextLine());
+                    selector.wakeup();
+                }
+            } catch(InterruptedException e) {
+                // the client stops reading the console
+            }
+            scanner.close();
+        });
+        input.start();
+        while (!Thread.interrupted()) {
+            try {
+                if(HEARTBEAT_MILLIS > 0) {
+                    selector.select(this::processSelectedKeys, HEARTBEAT_MILLIS);
+                    publicContext.heartbeat();
+                } else {
+                    selector.select(this::processSelectedKeys);
+                }
+                String command;
+                while((command = commands.poll()) != null) {
+                    try {
+                        processCommand(command, publicContext);
+                    } catch(RuntimeException e) {
+                        // a malformed command must not stop the selector thread
+                        logger.log(Level.INFO, "Commande invalide : " + command, e);
+                        System.out.println("Commande invalide : " + command);
+                    }
+                }
+            } catch (UncheckedIOException excep) {
+                throw excep.getCause();
+            }
+        }
+
+    }
+
+    /**
+     * Treats a line of the console, in the selector thread which is the only one to touch the contexts and the
+     * state of the client
+     * @param entree : the line
+     * @param publicContext : the context of the connection to the server
+     */
+    private void processCommand(String entree, Context publicContext) {
+        Message msg;
+        String replaceEntree = entree.replaceAll("\\s", "");
+        if(!replaceEntree.equals("")) {
+            if(logged == false) {
+                //Connexion
+                login = entree;
+
+                if(!login.equals("") && !login.equals(null)
+                        && !login.contains(" ") && !login.contains("\t")
+                        && !login.contains("\n") && !login.contains("\f")
+                        && !login.contains("\r") && login.length() >= 3) {
+                    //Login Valide
+                    // IDEE: DEMANDE DE CONNEXION SANS MDP? Indice: 0 ?
+
+                    msg = new Message(CONNEXION_SANS_MDP,0  ,0  ,"" , "", "",
+                            "", "");
+                    publicContext.queueMessage(msg);
+                } else {
+                    logger.log(Level.INFO, "Au moins 3 caracteres sans espacements");
+                    logger.log(Level.INFO, "Entrer un autre pseudo");
+                    System.out.println("Au moins 3 caracteres sans espacements");
+                    System.out.println("Entrer un autre pseudo");
+                }
+            } else {
+            //Chat privee
+                if(entree.charAt(0) == '/') {
+                    char rep = entree.charAt(1);
+                    replaceEntree = entree.replaceAll("\\s", "");
+                    if (replaceEntree.equals("/q")) {
+                        //On quitte tous les chats prives, le serveur n'y prend pas part
+                        if(privateChat == 0) {
+                            logger.log(Level.INFO,"Vous n'etes pas en chat privee");
+                            System.out.println("Vous n'etes pas en chat privee");
                         } else {
-                            logger.log(Level.INFO, "Au moins 3 caracteres sans espacements");
-                            logger.log(Level.INFO, "Entrer un autre pseudo");
-                            System.out.println("Au moins 3 caracteres sans espacements");
-                            System.out.println("Entrer un autre pseudo");
+                            for(String exp : new ArrayList<>(dests)) {
+                                quitPrivateChat(exp);
+                            }
+                            logger.log(Level.INFO,"Vous avez quitte les chats prives");
+                            System.out.println("Vous avez quitte les chats prives");
                         }
-                    } else {
-                    //Chat privee
-                        if(entree.charAt(0) == '/') {
-                            char rep = entree.charAt(1);
-                            replaceEntree = entree.replaceAll("\\s", "");
-                            if (replaceEntree.equals("/q")) {
-                                //On quitte tous les chats
-                                //IDEE: RENVOYER UN MESSAGE POUR DIRE QUE L ONT QUITTE et disconnect users
-                                // case 16 :
-                                //        	      Dans le serveur      		disconnectUser(msg); break;
-                                //A CHANGER
-                                msg = new Message(16, 0,1  ,login , "", "",
-                                        "", "");
+                        displayEnterCommande();
+                    } else if (replaceEntree.equals("/y")) {
+                        logger.log(Level.INFO, "/y pseudo de l'expediteur");
+                        System.out.println("/y pseudo de l'expediteur");
+                        displayEnterCommande();
+                    } else if (replaceEntree.equals("/n")) {
+                        logger.log(Level.INFO, "/n pseudo de l'expediteur");
+                        System.out.println("/n pseudo de l'expediteur");
+                        displayEnterCommande();
+//                    }else if(rep == 'd' && entree.charAt(2) == ' ') {
+//                        //On donne une direction au serveur pour savoir ou sont enregistrer les fichiers
+//                        int espace = entree.indexOf(" ");
+//                        String dir = entree.substring(espace + 1, entree.length());
+//                        msg = new Message(8, dir, "", "", "","","","",);
+//                        publicContext.queueMessage(msg);
+                    } else if(rep == 'q' && entree.charAt(2) == ' ') {
+                        //On quitte le chat prive associe au pseudo indique
+                        int espace = entree.indexOf(" ");
+                        String exp = entree.substring(espace + 1, entree.length());
+                        if(privateChat == 0) {
+                            logger.log(Level.INFO,"Vous n'etes pas en chat privee");
+                            System.out.println("Vous n'etes pas en chat privee");
+                            displayEnterCommande();
+                        } else if(login.equals(exp)) {
+                            logger.log(Level.INFO, "vous ne pouvez pas utiliser votre pseudo");
+                            System.out.println("vous ne pouvez pas utiliser votre pseudo");
+                            displayEnterCommande();
+                        } else if(dests.contains(exp)) {
+                            //On ferme la connexion privee, le serveur n'y prend pas part
+                            quitPrivateChat(exp);
+                            logger.log(Level.INFO,"Vous avez quitte le chat privee avec " + exp);
+                            System.out.println("Vous avez quitte le chat privee avec " + exp);
+                        } else if(!dests.contains(exp)) {
+                            logger.log(Level.INFO,"Vous n'etes en chat privee avec " + exp);
+                            System.out.println("Vous n'etes en chat privee avec " + exp);
+                            displayEnterCommande();
+                        } 																																																		//ANDO
+                    } else if(rep == 'f' && entree.charAt(2) == ' ') {
+                        //On envoie un fichier : /f pseudo chemin
+                        String[] arguments = entree.substring(3).split(" ", 2);
+                        if(arguments.length != 2 || arguments[0].equals(login)) {
+                            logger.log(Level.INFO, "/f pseudo chemin");
+                            System.out.println("/f pseudo chemin");
+                        } else {
+                            try {
+                                publicContext.queueFile(arguments[0], Paths.get(arguments[1]));
+                                System.out.println("Envoi de " + arguments[1] + " a " + arguments[0]);
+                            } catch(IOException | InvalidPathException e) {
+                                logger.log(Level.INFO, "Impossible de lire " + arguments[1]);
+                                System.out.println("Impossible de lire " + arguments[1]);
+                            }
+                        }
+                        displayEnterCommande();
+                    } else if((rep == 'j' || rep == 'l') && entree.length() > 2 && entree.charAt(2) == ' ') {
+                        //On rejoint ou on quitte un salon : /j salon ou /l salon
+                        String salon = entree.substring(3).trim();
+                        if(salon.equals("") || salon.contains(" ")) {
+                            logger.log(Level.INFO, "/j salon ou /l salon");
+                            System.out.println("/j salon ou /l salon");
+                        } else {
+                            publicContext.queueMessage(Message.createSalon(rep == 'j' ? REJOINDRE_SALON : QUITTER_SALON, salon));
+                        }
+                        displayEnterCommande();
+                    } else if(privateChatReceived > 0 && entree.charAt(2) == ' ') {
+                        //on repond a une demande de chat prive  : /y pseudo ou /n pseudo
+                        String exp = entree.substring(3, entree.length());
+                        if(rep == 'y') {
+                            //Accepte
+                            if(login.equals(exp)) {
+                                logger.log(Level.INFO, "vous ne pouvez pas utiliser votre pseudo");
+                                System.out.println("vous ne pouvez pas utiliser votre pseudo");
+                                displayEnterCommande();
+                            } else if(loginPrivateReceived.contains(exp)) {
+                                //Broadcast connexionID serverChat
+                                msg = new Message(-1, 0, 1, login, "","",exp,"");
                                 publicContext.queueMessage(msg);
-                            } else if (replaceEntree.equals("/y")) {
-                                logger.log(Level.INFO, "/y pseudo de l'expediteur");
-                                System.out.println("/y pseudo de l'expediteur");
+                                privateChatReceived--;
+                                loginPrivateReceived.remove(exp);
+                            } else {
+                                logger.log(Level.INFO, exp + " ne vous a pas demande en chat prive");
+                                System.out.println(exp + " ne vous a pas demande en chat prive");
+
                                 displayEnterCommande();
-                            } else if (replaceEntree.equals("/n")) {
-                                logger.log(Level.INFO, "/n pseudo de l'expediteur");
-                                System.out.println("/n pseudo de l'expediteur");
+                            }
+                        } else if(rep == 'n') {
+                            // LOGIN REFUSED
+                            if(login.equals(exp)) {
+                                logger.log(Level.INFO, "Vous ne pouvez pas utiliser votre pseudo");
+                                System.out.println("Vous ne pouvez pas utiliser votre pseudo");
                                 displayEnterCommande();
-//                            }else if(rep == 'd' && entree.charAt(2) == ' ') {
-//                                //On donne une direction au serveur pour savoir ou sont enregistrer les fichiers
-//                                int espace = entree.indexOf(" ");
-//                                String dir = entree.substring(espace + 1, entree.length());
-//                                msg = new Message(8, dir, "", "", "","","","",);
-//                                publicContext.queueMessage(msg);
-                            } else if(rep == 'q' && entree.charAt(2) == ' ') {
-                                //On quitte le chat prive associe au pseudo indique
-                                int espace = entree.indexOf(" ");
-                                String exp = entree.substring(espace + 1, entree.length());
-                                if(privateChat == 0) {
-                                    logger.log(Level.INFO,"Vous n'etes pas en chat privee");
-                                    System.out.println("Vous n'etes pas en chat privee");
-                                    displayEnterCommande();
-                                } else if(login.equals(exp)) {
-                                    logger.log(Level.INFO, "vous ne pouvez pas utiliser votre pseudo");
-                                    System.out.println("vous ne pouvez pas utiliser votre pseudo");
-                                    displayEnterCommande();
-                                } else if(dests.contains(exp)) {
-                                    //break private connexion case 17 :
-                                    //A CHANGER
-                                    //        	   dans le serveur         		breakPrivateConnexion(msg); break;
-                                    msg = new Message(17, 0, 1, login, exp,"","","");
-                                    publicContext.queueMessage(msg);
-                                    logger.log(Level.INFO,"Vous avez quitte le chat privee avec " + exp);
-                                    System.out.println("Vous avez quitte le chat privee avec " + exp);
-                                    int id = 0;
-                                    for(HashMap.Entry<Integer, String> entry : privateChats.entrySet()) {
-                                        if(entry.getValue().equals(msg.getNom())) {
-                                            id = entry.getKey();
-                                            privateChats.remove(id);
-                                        }
-                                    }
-                                    sockets.remove(sc);
-                                    privateKeys.remove(sc);
-                                    privateChat--;
-                                } else if(!dests.contains(exp)) {
-                                    logger.log(Level.INFO,"Vous n'etes en chat privee avec " + exp);
-                                    System.out.println("Vous n'etes en chat privee avec " + exp);
-                                    displayEnterCommande();
-                                } 																																																		//ANDO
-                            } else if(privateChatReceived > 0 && entree.charAt(2) == ' ') {
-                                //on repond a une demande de chat prive  : /y pseudo ou /n pseudo
-                                String exp = entree.substring(3, entree.length());
-                                if(rep == 'y') {
-                                    //Accepte
-                                    if(login.equals(exp)) {
-                                        logger.log(Level.INFO, "vous ne pouvez pas utiliser votre pseudo");
-                                        System.out.println("vous ne pouvez pas utiliser votre pseudo");
-                                        displayEnterCommande();
-                                    } else if(loginPrivateReceived.contains(exp)) {
-                                        //Broadcast connexionID serverChat
-                                        msg = new Message(-1, 0, 1, login, "","",exp,"");
-                                        publicContext.queueMessage(msg);
-                                        privateChatReceived--;
-                                        loginPrivateReceived.remove(exp);
-                                    } else {
-                                        logger.log(Level.INFO, exp + " ne vous a pas demande en chat prive");
-                                        System.out.println(exp + " ne vous a pas demande en chat prive");
-
-                                        displayEnterCommande();
-                                    }
-                                } else if(rep == 'n') {
-                                    // LOGIN REFUSED
-                                    if(login.equals(exp)) {
-                                        logger.log(Level.INFO, "Vous ne pouvez pas utiliser votre pseudo");
-                                        System.out.println("Vous ne pouvez pas utiliser votre pseudo");
-                                        displayEnterCommande();
-                                    } else if(loginPrivateReceived.contains(exp)) {
-                                        //private connexion refused client
-                                        msg = new Message(REFUS_DE_CONNEXION_PRIVEE_DU_CLIENT, 0, 1, exp,login ,"",exp,"");
-                                        publicContext.queueMessage(msg);
-                                        privateChatReceived--;
-                                    } else {
-                                        logger.log(Level.INFO, exp + " ne vous a pas demande en chat prive");
-                                        System.out.println(exp + " ne vous a pas demande en chat prive");
-                                        displayEnterCommande();
-                                    }
-                                }
-                            } else if(privateChatReceived == 0 && entree.charAt(2) == ' ') {
-                                if(rep == 'y' || rep == 'n') {
-                                    logger.log(Level.INFO, "Personne ne vous a demande en chat prive");
-                                    System.out.println("Personne ne vous a demande en chat prive");
-                                    displayEnterCommande();
-                                }
+                            } else if(loginPrivateReceived.contains(exp)) {
+                                //private connexion refused client
+                                msg = new Message(REFUS_DE_CONNEXION_PRIVEE_DU_CLIENT, 0, 1, exp,login ,"",exp,"");
+                                publicContext.queueMessage(msg);
+                                privateChatReceived--;
                             } else {
-                                //On envoie une demande de chat prive : /pseudo fichier.format
-                                int espace = entree.indexOf(" ");
-                                if(espace != -1) {
-                                    String dest = entree.substring(1, espace);
-                                    String fichier = entree.substring(espace + 1, entree.length());
-                                    if(dests.contains(dest)) {
-                                        logger.log(Level.INFO, "Vous envoye une requete a : " + dest);
-                                        System.out.println("Vous envoye une requete a : " + dest);
-                                        //Ici on envoie une requete get apres avoir initialisé la connexion privee
-                                        String request = "GET " + fichier + "\r\n";
-                                        //PAS SUR
-                                        //Verifier Login
-                                        msg = new Message(0, 0, 1, "", "","","","");
-                                        SocketChannel psc = null;
-                                        int id = 0;
-                                        for(HashMap.Entry<Integer, String> entry : privateChats.entrySet()) {
-                                            if(entry.getValue().equals(dest)) {
-                                                id = entry.getKey();
-                                            }
-                                        }
-                                        for(HashMap.Entry<SocketChannel, Integer> entry : sockets.entrySet()) {
-                                            if(entry.getValue() == id) {
-                                                psc = entry.getKey();
-                                            }
-                                        }
-                                        Context privateContext = (Context)privateKeys.get(psc).attachment();
-                                        privateContext.queueRequest(request);
-                                        //Finir
-
-                                    } else if(loginPrivateReceived.contains(dest)) {
-                                        logger.log(Level.INFO, dest
-                                                + " vous demande deja en chat prive, vous pouvez accepte en faisant /y " + dest);
-                                        System.out.println(dest+ " vous demande deja en chat prive, vous pouvez accepte en faisant /y " + dest);
-                                        displayEnterCommande();
-                                    } else if(dest.equals(login)) {
-                                        logger.log(Level.INFO,"Vous ne pouvez pas faire une connexion privee avec vous-meme");
-                                        System.out.println("Vous ne pouvez pas faire une connexion privee avec vous-meme");
-                                        displayEnterCommande();
-                                    } else if(!fichier.equals("") && !fichier.contains(" ") && !fichier.contains("\t")
-                                            && !fichier.contains("\n") && !fichier.contains("\f") && !fichier.contains("\r")
-                                            && !dest.equals("") && !dest.contains(" ") && !dest.contains("\t")
-                                            && !dest.contains("\n") && !dest.contains("\f") && !dest.contains("\r")) {
-
-                                        logger.log(Level.INFO,"Vous avez fait une demande de connexion privee a " + dest);
-                                        System.out.println("Vous avez fait une demande de connexion privee a " + dest);
-                                        msg = new Message(DEMANDE_CONNEXION_PRIVEE_DU_CLIENT, 0, 1, login, "","",dest,fichier);
-                                        publicContext.queueMessage(msg);
-                                        loginPrivateIssued.add(dest);
-                                        displayEnterCommande();
+                                logger.log(Level.INFO, exp + " ne vous a pas demande en chat prive");
+                                System.out.println(exp + " ne vous a pas demande en chat prive");
+                                displayEnterCommande();
+                            }
+                        }
+                    } else if(privateChatReceived == 0 && entree.charAt(2) == ' ') {
+                        if(rep == 'y' || rep == 'n') {
+                            logger.log(Level.INFO, "Personne ne vous a demande en chat prive");
+                            System.out.println("Personne ne vous a demande en chat prive");
+                            displayEnterCommande();
+                        }
+                    } else {
+                        //On envoie une demande de chat prive : /pseudo fichier.format
+                        int espace = entree.indexOf(" ");
+                        if(espace != -1) {
+                            String dest = entree.substring(1, espace);
+                            String fichier = entree.substring(espace + 1, entree.length());
+                            if(dests.contains(dest)) {
+                                logger.log(Level.INFO, "Vous envoye une requete a : " + dest);
+                                System.out.println("Vous envoye une requete a : " + dest);
+                                //Ici on envoie une requete get apres avoir initialisé la connexion privee
+                                String request = "GET " + fichier + "\r\n";
+                                //PAS SUR
+                                //Verifier Login
+                                msg = new Message(0, 0, 1, "", "","","","");
+                                SocketChannel psc = null;
+                                int id = 0;
+                                for(HashMap.Entry<Integer, String> entry : privateChats.entrySet()) {
+                                    if(entry.getValue().equals(dest)) {
+                                        id = entry.getKey();
                                     }
-                                } else {
-                                    logger.log(Level.INFO, "La commande commence par / donc ne sera pas interpretee comme un message public");
-                                    System.out.println("La commande commence par / donc ne sera pas interpretee comme un message public");
-                                    displayEnterCommande();
                                 }
-                            }
-                        } else if(entree.charAt(0) == '@') {
-                            //On parle a quelqu'un
-                            int espace = entree.indexOf(" ");
-                            if(espace != -1) {
-                                String login2 = entree.substring(1, espace);
-                                if(login.equals(login2)) {
-                                    logger.log(Level.INFO, "Vous ne pouvez pas parler avec vous-meme");
-                                    System.out.println("Vous ne pouvez pas parler avec vous-meme");
-                                } else if(!login2.equals("")) {
-                                    String talking = entree.substring(espace + 1, entree.length());
-                                    if(!talking.equals("")) {
-                                        msg = new Message(MESSAGE_PRIVE, 0, 1, login, login2,talking,login2,"");
-                                        publicContext.queueMessage(msg);
-                                    } else {
-                                        logger.log(Level.INFO, "La commande commence par @login mais vous n'avez pas mis de message");
-                                        System.out.println("La commande commence par @login mais vous n'avez pas mis de message");
-
+                                for(HashMap.Entry<SocketChannel, Integer> entry : sockets.entrySet()) {
+                                    if(entry.getValue() == id) {
+                                        psc = entry.getKey();
                                     }
-                                } else {
-                                    logger.log(Level.INFO, "La commande commence par @ mais vous n'avez pas mis de destinataire");
-                                   System.out.println("La commande commence par @ mais vous n'avez pas mis de destinataire");
                                 }
-                            } else {
-                                logger.log(Level.INFO, "La commande commence par @ donc ne sera pas interpretee comme un message public");
-                                System.out.println("La commande commence par @ donc ne sera pas interpretee comme un message public");
+                                Context privateContext = (Context)privateKeys.get(psc).attachment();
+                                privateContext.queueRequest(request);
+                                //Finir
+
+                            } else if(loginPrivateReceived.contains(dest)) {
+                                logger.log(Level.INFO, dest
+                                        + " vous demande deja en chat prive, vous pouvez accepte en faisant /y " + dest);
+                                System.out.println(dest+ " vous demande deja en chat prive, vous pouvez accepte en faisant /y " + dest);
+                                displayEnterCommande();
+                            } else if(dest.equals(login)) {
+                                logger.log(Level.INFO,"Vous ne pouvez pas faire une connexion privee avec vous-meme");
+                                System.out.println("Vous ne pouvez pas faire une connexion privee avec vous-meme");
+                                displayEnterCommande();
+                            } else if(!fichier.equals("") && !fichier.contains(" ") && !fichier.contains("\t")
+                                    && !fichier.contains("\n") && !fichier.contains("\f") && !fichier.contains("\r")
+                                    && !dest.equals("") && !dest.contains(" ") && !dest.contains("\t")
+                                    && !dest.contains("\n") && !dest.contains("\f") && !dest.contains("\r")) {
+
+                                logger.log(Level.INFO,"Vous avez fait une demande de connexion privee a " + dest);
+                                System.out.println("Vous avez fait une demande de connexion privee a " + dest);
+                                msg = new Message(DEMANDE_CONNEXION_PRIVEE_DU_CLIENT, 0, 1, login, "","",dest,fichier);
+                                publicContext.queueMessage(msg);
+                                loginPrivateIssued.add(dest);
+                                displayEnterCommande();
                             }
+                        } else {
+                            logger.log(Level.INFO, "La commande commence par / donc ne sera pas interpretee comme un message public");
+                            System.out.println("La commande commence par / donc ne sera pas interpretee comme un message public");
                             displayEnterCommande();
+                        }
+                    }
+                } else if(entree.charAt(0) == '#') {
+                    //On parle dans un salon rejoint : #salon message
+                    int espace = entree.indexOf(" ");
+                    if(espace > 1 && espace < entree.length() - 1) {
+                        publicContext.queueMessage(Message.createMessageSalon(entree.substring(1, espace), entree.substring(espace + 1)));
+                    } else {
+                        logger.log(Level.INFO, "#salon message");
+                        System.out.println("#salon message");
+                    }
+                    displayEnterCommande();
+                } else if(entree.charAt(0) == '@') {
+                    //On parle a quelqu'un
+                    int espace = entree.indexOf(" ");
+                    if(espace != -1) {
+                        String login2 = entree.substring(1, espace);
+                        if(login.equals(login2)) {
+                            logger.log(Level.INFO, "Vous ne pouvez pas parler avec vous-meme");
+                            System.out.println("Vous ne pouvez pas parler avec vous-meme");
+                        } else if(!login2.equals("")) {
+                            String talking = entree.substring(espace + 1, entree.length());
+                            if(!talking.equals("")) {
+                                msg = new Message(MESSAGE_PRIVE, 0, 1, login, login2,talking,login2,"");
+                                publicContext.queueMessage(msg);
+                            } else {
+                                logger.log(Level.INFO, "La commande commence par @login mais vous n'avez pas mis de message");
+                                System.out.println("La commande commence par @login mais vous n'avez pas mis de message");
+
+                            }
                         } else {
-                            //Chat general
-                            msg = new Message(ENVOIE_MESSAGE_PUBLIC, 0, 0, login, "",entree,"","");
-                            publicContext.queueMessage(msg);
+                            logger.log(Level.INFO, "La commande commence par @ mais vous n'avez pas mis de destinataire");
+                           System.out.println("La commande commence par @ mais vous n'avez pas mis de destinataire");
                         }
+                    } else {
+                        logger.log(Level.INFO, "La commande commence par @ donc ne sera pas interpretee comme un message public");
+                        System.out.println("La commande commence par @ donc ne sera pas interpretee comme un message public");
                     }
+                    displayEnterCommande();
+                } else {
+                    //Chat general
+                    publicContext.queuePublicMessage(entree);
                 }
-                selector.wakeup(); // bug du selector wakeup
-            }
-            scanner.close();
-        });
-        input.start();
-        while (!Thread.interrupted()) {
-            try {
-                selector.select(this::processSelectedKeys);
-            } catch (UncheckedIOException excep) {
-                throw excep.getCause();
             }
         }
-
     }
 
     /**
@@ -794,6 +1304,36 @@ public class ClientChat {
             silentlyClose(key);
         }
     }
+    /**
+     * Leaves the private chat with another client by closing their private connection, which the server takes
+     * no part in
+     * @param exp : the login of the other client
+     */
+    private void quitPrivateChat(String exp) {
+        Integer id = null;
+        for(HashMap.Entry<Integer, String> entry : privateChats.entrySet()) {
+            if(entry.getValue().equals(exp)) {
+                id = entry.getKey();
+            }
+        }
+        privateChats.remove(id);
+        dests.remove(exp);
+        SocketChannel psc = null;
+        for(HashMap.Entry<SocketChannel, Integer> entry : sockets.entrySet()) {
+            if(entry.getValue().equals(id)) {
+                psc = entry.getKey();
+            }
+        }
+        if(psc != null) {
+            sockets.remove(psc);
+            SelectionKey privateKey = privateKeys.remove(psc);
+            if(privateKey != null) {
+                silentlyClose(privateKey);
+            }
+        }
+        privateChat--;
+    }
+
     /**
      * Closes the socket channel without message
      * @param key : the socket channel's key
@@ -809,6 +1349,9 @@ public class ClientChat {
 
     private static void usage(){
         System.out.println("Usage : ClientChat address port");
+        System.out.println("\t-Dchathack.compression=N to ask the server to compress the streams at the level N, from 1 to 9");
+        System.out.println("\t-Dchathack.tls=true to connect in TLS, the certificate being checked with -Djavax.net.ssl.trustStore");
+        System.out.println("\t-Dchathack.heartbeat.millis=N to send a PING after N ms without sending anything, to keep the connection alive");
     }
 
     public static void main(String[] args) throws NumberFormatException, IOException {
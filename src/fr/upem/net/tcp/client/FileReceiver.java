@@ -0,0 +1,64 @@
+package fr.upem.net.tcp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileReceiver writes the chunks of a file sent by another client
+ * The file is allocated to its final size when the transfer starts and each chunk is written at its offset
+ */
+class FileReceiver implements Closeable {
+    private final FileChannel file;
+    private final long size;
+    private long received = 0;
+    final String sender;
+    final Path path;
+
+    /**
+     * FileReceiver's constructor
+     * @param path : where to write the file, it must not exist
+     * @param size : the size announced by the sender
+     * @param sender : the login of the sender
+     * @throws IOException
+     */
+    FileReceiver(Path path, long size, String sender) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.size = size;
+        this.sender = sender;
+        this.path = path;
+        if (size > 0) {
+            file.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    /**
+     * Tests if every byte of the file has been received
+     * @return true if the file is complete
+     */
+    boolean isComplete() {
+        return received == size;
+    }
+
+    /**
+     * Writes a chunk at the end of the data already received
+     * @param chunk : the data of a MORCEAU_DE_FICHIER frame
+     * @throws IOException if the sender sends more than the announced size
+     */
+    void write(ByteBuffer chunk) throws IOException {
+        if (chunk.remaining() > size - received) {
+            throw new IOException("Le fichier recu depasse la taille annoncee");
+        }
+        while (chunk.hasRemaining()) {
+            received += file.write(chunk, received);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,116 @@
+package fr.upem.net.tcp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import fr.upem.net.tcp.reader.Message;
+
+/**
+ * FileSender streams a file to the server as MORCEAU_DE_FICHIER frames
+ * The data of each chunk goes from the file to the socket with transferTo, without being copied on the heap,
+ * unless the stream is compressed or encrypted: the chunk is then read in the buffer given to the deflater or the TLS session
+ */
+class FileSender implements Closeable {
+    private final FileChannel file;
+    private final ByteBuffer header = ByteBuffer.allocate(3 * Integer.BYTES);
+    final long size;
+    final int id;
+    private long position = 0;
+    private long chunkEnd = 0;
+
+    /**
+     * FileSender's constructor
+     * @param path : the file to send
+     * @param id : the transfer id announced in the DEBUT_DE_FICHIER frame
+     * @throws IOException
+     */
+    FileSender(Path path, int id) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = file.size();
+        this.id = id;
+        header.flip();
+    }
+
+    /**
+     * Tests if a chunk has been started and is not completely written
+     * Nothing else can be written on the socket until it is
+     * @return true if a chunk is being written
+     */
+    boolean inChunk() {
+        return header.hasRemaining() || position < chunkEnd;
+    }
+
+    /**
+     * Writes at most one chunk on the socket, so that the chat messages can be sent between two chunks
+     * @param sc : the socket channel connected to the server
+     * @return true if the whole file has been sent
+     * @throws IOException
+     */
+    boolean write(SocketChannel sc) throws IOException {
+        if (!inChunk()) {
+            if (position == size) {
+                return true;
+            }
+            startChunk();
+        }
+        if (header.hasRemaining()) {
+            sc.write(header);
+            if (header.hasRemaining()) {
+                return false;
+            }
+        }
+        long written = file.transferTo(position, chunkEnd - position, sc);
+        if (written == 0 && position >= file.size()) {
+            throw new IOException("Le fichier a ete tronque pendant l'envoi");
+        }
+        position += written;
+        return position == size && !inChunk();
+    }
+
+    /**
+     * Puts at most one chunk in a buffer, as much as it can hold, for a compressed or encrypted stream
+     * @param out : the buffer of the bytes to deflate, in write-mode
+     * @return true if the whole file has been put in the buffer
+     * @throws IOException
+     */
+    boolean read(ByteBuffer out) throws IOException {
+        if (!inChunk()) {
+            if (position == size) {
+                return true;
+            }
+            startChunk();
+        }
+        while (header.hasRemaining() && out.hasRemaining()) {
+            out.put(header.get());
+        }
+        if (header.hasRemaining()) {
+            return false;
+        }
+        int limit = out.limit();
+        out.limit(out.position() + (int) Math.min(out.remaining(), chunkEnd - position));
+        int read = out.hasRemaining() ? file.read(out, position) : 0;
+        out.limit(limit);
+        if (read == -1) {
+            throw new IOException("Le fichier a ete tronque pendant l'envoi");
+        }
+        position += read;
+        return position == size && !inChunk();
+    }
+
+    private void startChunk() {
+        int length = (int) Math.min(Message.TAILLE_MORCEAU, size - position);
+        chunkEnd = position + length;
+        header.clear();
+        header.putInt(Message.MORCEAU_DE_FICHIER).putInt(id).putInt(length).flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
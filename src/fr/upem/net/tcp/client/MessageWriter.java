@@ -6,8 +6,6 @@ import java.nio.charset.StandardCharsets;
 
 import fr.upem.net.tcp.reader.Message;
 
-import static fr.upem.net.tcp.reader.Message.*;
-
 /**
 * MessageReader's fill the buffer with a message
 */
@@ -24,50 +22,17 @@ public class MessageWriter {
     }
 	
     /**
-   	 * Fills the buffer according the id of the message to send
+   	 * Fills the buffer with the frame of the message, encoded as the server reads it
    	 * @param m : the message to send
+   	 * @return false if the buffer has not enough room left for the whole frame
    	 */
-	public void process(Message m) {   
-		byte code = (byte)m.indice;
-		byte ports = (byte)m.getPort();
-		byte identifications = (byte)m.getIdenticationCode();
-		bb.put(code);
-		switch(m.indice) {
-			case CONNEXION_SANS_MDP:
-				case DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR :
-					case ACCEPTE_LA_CONNEXION_PRIVEE_DU_CLIENT :
-				putString(m.getNom());
-				break;
-			case CONNEXION_AVEC_MDP:
-				putString(m.getNom());
-				putString(m.getPassWord());
-				break;
-			case ENVOIE_MESSAGE_PUBLIC :
-			case MESSAGE_PRIVE:
-				putString(m.getMessage());
-				break;
-			case DEMANDE_CONNEXION_PRIVEE_DU_CLIENT:
-				putString(m.getNom());
-				//version de l'ip
-				bb.put(Byte.parseByte(m.getAdress()));
-				bb.put(ports);
-				break;
-			case ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR:
-				putString(m.getNom());
-				//version de l'ip
-				bb.put(Byte.parseByte(m.getAdress()));
-				bb.put(ports);
-				bb.put(identifications);
-				break;
-			case CONNEXION_PRIVEE:
-				bb.put(identifications);
-				break;
-			case ENVOIE_DE_FICHIER:
-				putString(m.getMessage());
-				putString(m.getFile());
-				break;
-
-        }
+	public boolean process(Message m) {
+		ByteBuffer frame = m.getBuffer();
+		if(bb.remaining() < frame.remaining()) {
+			return false;
+		}
+		bb.put(frame);
+		return true;
     }
 	
 	/**
@@ -0,0 +1,336 @@
+package fr.upem.net.tcp.parsing;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * The accounts of the password file, looked up in a hashed index mapped in
+ * memory.
+ *
+ * The password file has one "name: password" line per account. The index is
+ * built next to it, as file.idx, ahead of the start of the server by main,
+ * and rebuilt only when the size or the date of the password file change: the
+ * server only maps it. The passwords are not kept: each record holds the name,
+ * a random salt and the PBKDF2WithHmacSHA256 of the password with this salt, a
+ * deliberately slow hash. Its iterations are in the header: the index is
+ * rebuilt when ITERATIONS changes, to raise them.
+ *
+ * Index layout, big-endian:
+ *
+ * <pre>
+ * header  : int MAGIC, int VERSION, int slots, int count, int iterations, long size, long modified
+ * slots   : slots * long, hash of the name (high int) and offset + 1 of the record (low int), 0 if empty
+ * records : short length, name in UTF-8, salt, digest
+ * </pre>
+ *
+ * The slots use linear probing with at most half of them used, a lookup reads
+ * a couple of slots and one record. Only absolute reads are done in the
+ * mapping, so the store can be used by many threads.
+ */
+public class CredentialStore implements Closeable {
+
+	private static final int MAGIC = 0x43484349; // CHCI
+	private static final int VERSION = 2;
+	private static final int HEADER = 5 * Integer.BYTES + 2 * Long.BYTES;
+	private static final int SALT = 16;
+	private static final int DIGEST = 32;
+	private static final String SEPARATOR = ": ";
+	/* the iterations of the hash of the passwords indexed from now on */
+	static final int ITERATIONS = Integer.getInteger("chathack.credentials.iterations", 100_000);
+	/* the accounts hashed together, by all the cores, when the index is built */
+	private static final int BATCH = 1_024;
+	static final Logger logger = Logger.getLogger(CredentialStore.class.getName());
+
+	private final FileChannel channel;
+	private final MappedByteBuffer index;
+	private final int slots;
+	private final int count;
+	private final int iterations;
+
+	private CredentialStore(FileChannel channel, MappedByteBuffer index) {
+		this.channel = channel;
+		this.index = index;
+		this.slots = index == null ? 0 : index.getInt(2 * Integer.BYTES);
+		this.count = index == null ? 0 : index.getInt(3 * Integer.BYTES);
+		this.iterations = index == null ? 0 : index.getInt(4 * Integer.BYTES);
+	}
+
+	/**
+	 * @return a store without any account
+	 */
+	public static CredentialStore empty() {
+		return new CredentialStore(null, null);
+	}
+
+	/**
+	 * Map the index of the password file, which is never built here since it
+	 * hashes every account. An index out of date is mapped all the same, with a
+	 * warning: the accounts changed since it was built are not seen until it is
+	 * built again.
+	 *
+	 * @param passwords the password file
+	 * @return the store
+	 * @throws IOException if the index is missing or of another version
+	 */
+	public static CredentialStore open(Path passwords) throws IOException {
+		Path idx = index(passwords);
+		if (!Files.exists(idx))
+			throw new IOException(idx + " is missing, build it with CredentialStore " + passwords);
+		FileChannel channel = FileChannel.open(idx, StandardOpenOption.READ);
+		try {
+			MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (index.capacity() < HEADER || index.getInt(0) != MAGIC || index.getInt(Integer.BYTES) != VERSION)
+				throw new IOException(idx + " is not an index of this version, build it with CredentialStore "
+						+ passwords);
+			if (!isUpToDate(index, Files.size(passwords), Files.getLastModifiedTime(passwords).toMillis()))
+				logger.warning(idx + " is out of date, build it with CredentialStore " + passwords
+						+ " to see the accounts changed since");
+			return new CredentialStore(channel, index);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Build the index of the password file if it is missing, older than the
+	 * password file or hashed with other iterations than ITERATIONS
+	 *
+	 * @param passwords the password file
+	 * @return false if the index was up to date
+	 * @throws IOException
+	 */
+	public static boolean build(Path passwords) throws IOException {
+		Path idx = index(passwords);
+		long size = Files.size(passwords);
+		long modified = Files.getLastModifiedTime(passwords).toMillis();
+		if (Files.exists(idx)) {
+			try (FileChannel channel = FileChannel.open(idx, StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				while (header.hasRemaining() && channel.read(header) != -1)
+					;
+				if (!header.hasRemaining() && isUpToDate(header, size, modified))
+					return false;
+			}
+		}
+		build(passwords, idx, size, modified);
+		return true;
+	}
+
+	private static Path index(Path passwords) {
+		return Objects.requireNonNull(passwords).resolveSibling(passwords.getFileName() + ".idx");
+	}
+
+	private static boolean isUpToDate(ByteBuffer header, long size, long modified) {
+		return header.getInt(0) == MAGIC && header.getInt(Integer.BYTES) == VERSION
+				&& header.getInt(4 * Integer.BYTES) == ITERATIONS && header.getLong(5 * Integer.BYTES) == size
+				&& header.getLong(5 * Integer.BYTES + Long.BYTES) == modified;
+	}
+
+	private static int hash(byte[] name) {
+		int h = 0x811c9dc5;
+		for (byte b : name)
+			h = (h ^ (b & 0xff)) * 0x01000193;
+		return h ^ (h >>> 16);
+	}
+
+	private static byte[] digest(byte[] salt, String password, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, DIGEST * Byte.SIZE);
+		try {
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new AssertionError(e); // every JVM has PBKDF2WithHmacSHA256
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/*
+	 * Two passes over the password file, streamed line by line: the first counts
+	 * the accounts to size the slots, the second writes the records after them.
+	 * The passwords are hashed by batches, in parallel, since each hash is slow
+	 * on purpose.
+	 */
+	private static void build(Path passwords, Path idx, long size, long modified) throws IOException {
+		int accounts = 0;
+		try (BufferedReader reader = Files.newBufferedReader(passwords, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				if (line.indexOf(SEPARATOR) > 0)
+					accounts++;
+		}
+		int slots = Integer.highestOneBit(Math.max(2, accounts) * 2 - 1) << 1;
+		long[] table = new long[slots];
+		long recordsStart = HEADER + (long) slots * Long.BYTES;
+
+		Path tmp = idx.resolveSibling(idx.getFileName() + ".tmp");
+		SecureRandom random = new SecureRandom();
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.position(recordsStart);
+			int count = 0;
+			long offset = 0;
+			DataOutputStream records = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+			ArrayList<String> batch = new ArrayList<>(BATCH);
+			try (BufferedReader reader = Files.newBufferedReader(passwords, StandardCharsets.UTF_8)) {
+				String line;
+				boolean more = true;
+				while (more) {
+					line = count + batch.size() < accounts ? reader.readLine() : null;
+					more = line != null;
+					if (more && line.indexOf(SEPARATOR) > 0)
+						batch.add(line);
+					if (batch.size() < BATCH && more)
+						continue;
+					byte[][] salts = new byte[batch.size()][SALT];
+					for (byte[] salt : salts)
+						random.nextBytes(salt);
+					byte[][] digests = new byte[batch.size()][];
+					IntStream.range(0, batch.size()).parallel().forEach(i -> digests[i] = digest(salts[i],
+							batch.get(i).substring(batch.get(i).indexOf(SEPARATOR) + SEPARATOR.length()), ITERATIONS));
+
+					for (int i = 0; i < batch.size(); i++) {
+						String account = batch.get(i);
+						byte[] name = account.substring(0, account.indexOf(SEPARATOR)).getBytes(StandardCharsets.UTF_8);
+						int record = Short.BYTES + name.length + SALT + DIGEST;
+						if (name.length > Short.MAX_VALUE || recordsStart + offset + record > Integer.MAX_VALUE)
+							throw new IOException("password file too large");
+						records.writeShort(name.length);
+						records.write(name);
+						records.write(salts[i]);
+						records.write(digests[i]);
+
+						int h = hash(name);
+						int slot = h & (slots - 1);
+						while (table[slot] != 0)
+							slot = (slot + 1) & (slots - 1);
+						table[slot] = ((long) h << 32) | (offset + 1);
+						offset += record;
+						count++;
+					}
+					batch.clear();
+				}
+			}
+			records.flush();
+
+			ByteBuffer head = ByteBuffer.allocate(HEADER + slots * Long.BYTES);
+			head.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(count).putInt(ITERATIONS).putLong(size)
+					.putLong(modified);
+			head.asLongBuffer().put(table);
+			head.position(0);
+			channel.position(0);
+			while (head.hasRemaining())
+				channel.write(head);
+			channel.force(true);
+		}
+		Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/* the position of the salt of the record of name, -1 if there is none */
+	private int find(String name) {
+		if (index == null || name == null)
+			return -1;
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int h = hash(bytes);
+		int recordsStart = HEADER + slots * Long.BYTES;
+		byte[] candidate = new byte[bytes.length];
+		for (int slot = h & (slots - 1);; slot = (slot + 1) & (slots - 1)) {
+			long entry = index.getLong(HEADER + slot * Long.BYTES);
+			if (entry == 0)
+				return -1;
+			if ((int) (entry >>> 32) != h)
+				continue;
+			int record = recordsStart + (int) ((entry & 0xffffffffL) - 1);
+			if (index.getShort(record) != bytes.length)
+				continue;
+			index.get(record + Short.BYTES, candidate);
+			if (MessageDigest.isEqual(candidate, bytes))
+				return record + Short.BYTES + bytes.length;
+		}
+	}
+
+	/**
+	 * @param name
+	 * @return true if name has an account
+	 */
+	public boolean contains(String name) {
+		return find(name) != -1;
+	}
+
+	/**
+	 * @param name
+	 * @param password
+	 * @return true if name has an account with this password
+	 */
+	public boolean check(String name, String password) {
+		int position = find(name);
+		if (position == -1 || password == null)
+			return false;
+		byte[] record = new byte[SALT + DIGEST];
+		index.get(position, record);
+		byte[] salt = Arrays.copyOf(record, SALT);
+		return MessageDigest.isEqual(digest(salt, password, iterations),
+				Arrays.copyOfRange(record, SALT, SALT + DIGEST));
+	}
+
+	/**
+	 * @return the number of accounts
+	 */
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null)
+			channel.close();
+	}
+
+	/**
+	 * Build the index of a password file ahead of the start of the server, and
+	 * again after each change of the password file
+	 *
+	 * @param args the password file
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.out.println("Usage : CredentialStore passwordFile");
+			System.out.println("\t-Dchathack.credentials.iterations=N to hash the passwords with N iterations");
+			return;
+		}
+		long start = System.nanoTime();
+		Path passwords = Path.of(args[0]);
+		if (!build(passwords)) {
+			System.out.println(index(passwords) + " is up to date");
+			return;
+		}
+		try (CredentialStore store = open(passwords)) {
+			System.out.println(store.size() + " accounts indexed in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package fr.upem.net.tcp.reader;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of the byte streams of a connection, negotiated with the
+ * COMPRESSION frame: raw deflate in both directions, the bytes written ending
+ * with a sync flush so that the peer can decode every frame it received.
+ *
+ * A frame sent to many connections can be deflated once for each level with
+ * deflateAlone: the block does not refer to the bytes before it, and the
+ * stream it is appended to is reset after it so that the next bytes do not
+ * refer to the bytes before the block.
+ *
+ * The Deflater and the Inflater hold native memory, released by end.
+ */
+public class Compression {
+
+	public static final int MAX_LEVEL = Deflater.BEST_COMPRESSION;
+
+	/* given to the streams after each call, they must not keep a buffer of the caller */
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	/* the deflaters of deflateAlone, one for each level in each thread */
+	private static final ThreadLocal<Deflater[]> BLOCK_DEFLATERS = ThreadLocal
+			.withInitial(() -> new Deflater[MAX_LEVEL + 1]);
+
+	private final int level;
+	private final Deflater deflater;
+	private final Inflater inflater = new Inflater(true);
+	/* a block deflated alone being copied in the output */
+	private ByteBuffer block;
+	/* bytes were given to the deflater since its last sync flush */
+	private boolean unflushed;
+	/* the bytes of the blocks and of the deflater before its resets */
+	private long plainOut;
+	private long deflatedOut;
+
+	/**
+	 * @param level the level of the Deflater, from 1 to MAX_LEVEL
+	 */
+	public Compression(int level) {
+		if (level < 1 || level > MAX_LEVEL)
+			throw new IllegalArgumentException("level " + level);
+		this.level = level;
+		deflater = new Deflater(level, true);
+	}
+
+	public int level() {
+		return level;
+	}
+
+	/**
+	 * Deflate in, without flushing, as long as out has room
+	 *
+	 * @param in  in read-mode, its position is moved over the bytes taken
+	 * @param out in write-mode
+	 * @return true if every byte of in was taken
+	 */
+	public boolean deflate(ByteBuffer in, ByteBuffer out) {
+		if (!copyBlock(out))
+			return false;
+		if (!in.hasRemaining())
+			return true;
+		deflater.setInput(in);
+		while (in.hasRemaining() && out.hasRemaining())
+			deflater.deflate(out, Deflater.NO_FLUSH);
+		deflater.setInput(EMPTY);
+		unflushed = true;
+		return !in.hasRemaining();
+	}
+
+	/**
+	 * Complete out with the bytes kept by the deflater and a sync flush
+	 *
+	 * @param out in write-mode
+	 * @return true if every byte given so far is in out, false if out is full
+	 */
+	public boolean flush(ByteBuffer out) {
+		if (!copyBlock(out))
+			return false;
+		if (!unflushed)
+			return true;
+		deflater.deflate(out, Deflater.SYNC_FLUSH);
+		if (!out.hasRemaining())
+			return false;
+		unflushed = false;
+		return true;
+	}
+
+	/**
+	 * Append a block deflated alone at the level of this stream, once flushed
+	 *
+	 * @param block the block, in read-mode, its position is moved
+	 * @param plain the size of the bytes deflated in the block
+	 * @param out   in write-mode
+	 * @return true if the whole block is in out, the rest is copied by the next
+	 *         calls otherwise
+	 */
+	public boolean append(ByteBuffer block, int plain, ByteBuffer out) {
+		if (unflushed || this.block != null)
+			throw new IllegalStateException("stream not flushed");
+		plainOut += deflater.getBytesRead() + plain;
+		deflatedOut += deflater.getBytesWritten() + block.remaining();
+		deflater.reset();
+		this.block = block;
+		return copyBlock(out);
+	}
+
+	private boolean copyBlock(ByteBuffer out) {
+		if (block == null)
+			return true;
+		int size = Math.min(block.remaining(), out.remaining());
+		out.put(out.position(), block, block.position(), size);
+		out.position(out.position() + size);
+		block.position(block.position() + size);
+		if (block.hasRemaining())
+			return false;
+		block = null;
+		return true;
+	}
+
+	/**
+	 * @return true if bytes given to deflate or append are not in an output yet
+	 */
+	public boolean isPending() {
+		return unflushed || block != null;
+	}
+
+	/**
+	 * Inflate as many bytes as out can hold
+	 *
+	 * @param in  in read-mode, its position is moved over the bytes taken, null
+	 *            if nothing was read: the inflater may still hold bytes
+	 * @param out in write-mode
+	 * @return the number of bytes inflated
+	 * @throws DataFormatException if the bytes received are not a deflate stream
+	 */
+	public int inflate(ByteBuffer in, ByteBuffer out) throws DataFormatException {
+		inflater.setInput(in == null ? EMPTY : in);
+		int inflated = 0;
+		while (out.hasRemaining()) {
+			int size = inflater.inflate(out);
+			if (size == 0)
+				break;
+			inflated += size;
+		}
+		inflater.setInput(EMPTY);
+		if (inflater.finished())
+			throw new DataFormatException("end of the stream");
+		return inflated;
+	}
+
+	/**
+	 * @return the bytes given to the stream
+	 */
+	public long plainOut() {
+		return plainOut + deflater.getBytesRead();
+	}
+
+	/**
+	 * @return the bytes written for them
+	 */
+	public long deflatedOut() {
+		return deflatedOut + deflater.getBytesWritten();
+	}
+
+	/**
+	 * @return the bytes inflated from the stream of the peer
+	 */
+	public long plainIn() {
+		return inflater.getBytesWritten();
+	}
+
+	/**
+	 * @return the bytes of the stream of the peer inflated
+	 */
+	public long deflatedIn() {
+		return inflater.getBytesRead();
+	}
+
+	/**
+	 * @return the bytes the compression saved in both directions
+	 */
+	public long saved() {
+		return plainOut() - deflatedOut() + plainIn() - deflatedIn();
+	}
+
+	/**
+	 * Release the native memory of the streams
+	 */
+	public void end() {
+		deflater.end();
+		inflater.end();
+	}
+
+	/**
+	 * Deflate a frame alone, to append it to many streams of this level, with a
+	 * deflater kept by the calling thread
+	 *
+	 * @param level
+	 * @param frame in read-mode, left unchanged
+	 * @return the block, read-only
+	 */
+	public static ByteBuffer deflateAlone(int level, ByteBuffer frame) {
+		Deflater[] deflaters = BLOCK_DEFLATERS.get();
+		if (deflaters[level] == null)
+			deflaters[level] = new Deflater(level, true);
+		Deflater blockDeflater = deflaters[level];
+		blockDeflater.reset();
+		blockDeflater.setInput(frame.duplicate());
+		ByteBuffer out = ByteBuffer.allocate(frame.remaining() + frame.remaining() / 8 + 64);
+		for (;;) {
+			blockDeflater.deflate(out, Deflater.SYNC_FLUSH);
+			if (out.hasRemaining())
+				return out.flip().asReadOnlyBuffer();
+			out = ByteBuffer.allocate(2 * out.capacity()).put(out.flip());
+		}
+	}
+}
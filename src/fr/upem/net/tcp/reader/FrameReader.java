@@ -0,0 +1,420 @@
+package fr.upem.net.tcp.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decode the frames written by Message.getBuffer in a single pass.
+ *
+ * The fields are read with absolute gets from a cursor, without flipping the
+ * buffer for each of them. The bytes of the decoded frames are only discarded
+ * when the buffer needs to be refilled, so pipelined frames are decoded without
+ * any copy. As for the other readers, bb is in write-mode before and after the
+ * call to process.
+ */
+public class FrameReader implements Reader {
+
+	private enum State {
+		DONE, WAITING, ERROR
+	};
+
+	@FunctionalInterface
+	private interface Decoder {
+		Message decode(FrameReader fr);
+	}
+
+	private static final Decoder[] decoders = new Decoder[Message.PONG + 1];
+
+	static {
+		/* 0 9 10 11 */
+		for (int indice : new int[] { Message.CONNEXION_SANS_MDP, Message.DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR,
+				Message.ACCEPTE_LA_CONNEXION_PRIVEE_DU_CLIENT, Message.REFUS_DE_CONNEXION_PRIVEE_DU_CLIENT }) {
+			decoders[indice] = fr -> {
+				String nom = fr.readString();
+				return fr.incomplete ? null : Message.createNon(indice, nom);
+			};
+		}
+
+		/* 1 */
+		decoders[Message.CONNEXION_AVEC_MDP] = fr -> {
+			String nom = fr.readString();
+			String mdp = fr.readString();
+			return fr.incomplete ? null : Message.createNomMdp(nom, mdp);
+		};
+
+		/* 2 3 */
+		decoders[Message.LOGIN_ACCEPTED] = fr -> Message.createValidationConnexion(true);
+		decoders[Message.LOGIN_REFUSED] = fr -> Message.createValidationConnexion(false);
+
+		/* 4 */
+		decoders[Message.ENVOIE_MESSAGE_PUBLIC] = fr -> {
+			String message = fr.readString();
+			return fr.incomplete ? null : Message.createMessagePublic(message);
+		};
+
+		/* 5 */
+		decoders[Message.RECEPTION_MESSAGE_PUBLIC] = fr -> {
+			String nom = fr.readString();
+			String message = fr.readString();
+			return fr.incomplete ? null : Message.createNomMessage(nom, message);
+		};
+
+		/* 6 */
+		decoders[Message.DEMANDE_CONNEXION_PRIVEE_DU_CLIENT] = fr -> {
+			String nom = fr.readString();
+			String adresse = fr.readString();
+			int port = fr.readInt();
+			return fr.incomplete ? null : Message.createDemandeConnexionClient(nom, adresse, port);
+		};
+
+		/* 7 8 */
+		decoders[Message.CONNEXION_PRIVEE_ACCEPTE] = fr -> {
+			String nom = fr.readString();
+			long iden = fr.readLong();
+			return fr.incomplete ? null : Message.createValidationConnexionPrive(true, nom, iden);
+		};
+		decoders[Message.CONNEXION_PRIVEE_REFUSE] = fr -> {
+			String nom = fr.readString();
+			long iden = fr.readLong();
+			return fr.incomplete ? null : Message.createValidationConnexionPrive(false, nom, iden);
+		};
+
+		/* 12 */
+		decoders[Message.ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR] = fr -> {
+			String nom = fr.readString();
+			int port = fr.readInt();
+			long iden = fr.readLong();
+			return fr.incomplete ? null : Message.createEnvoieDesDonneeConnexionServeur(nom, port, iden);
+		};
+
+		/* 13 */
+		decoders[Message.CONNEXION_PRIVEE] = fr -> {
+			long iden = fr.readLong();
+			return fr.incomplete ? null : Message.createConnexionPrive(iden);
+		};
+
+		/* 14 */
+		decoders[Message.MESSAGE_PRIVE] = fr -> {
+			String message = fr.readString();
+			return fr.incomplete ? null : Message.createMessagePrive(message);
+		};
+
+		/* 15 */
+		decoders[Message.ENVOIE_DE_FICHIER] = fr -> {
+			String nom = fr.readString();
+			String fichier = fr.readString();
+			return fr.incomplete ? null : Message.createNomFichier(nom, fichier);
+		};
+
+		/* 16 */
+		decoders[Message.DEBUT_DE_FICHIER] = fr -> {
+			String nom = fr.readString();
+			String fichier = fr.readString();
+			int id = fr.readInt();
+			long taille = fr.readLong();
+			return fr.incomplete ? null : Message.createDebutFichier(nom, fichier, taille, id);
+		};
+
+		/* 17 */
+		decoders[Message.MORCEAU_DE_FICHIER] = fr -> {
+			int id = fr.readInt();
+			ByteBuffer morceau = fr.readBytes(Message.TAILLE_MORCEAU);
+			return fr.incomplete ? null : Message.createMorceauFichier(id, morceau);
+		};
+
+		/* 18 */
+		decoders[Message.DEBUT_MESSAGE_PUBLIC] = fr -> {
+			String nom = fr.readString();
+			int id = fr.readInt();
+			long taille = fr.readLong();
+			return fr.incomplete ? null : Message.createDebutMessagePublic(nom, taille, id);
+		};
+
+		/* 19 */
+		decoders[Message.FRAGMENT_MESSAGE_PUBLIC] = fr -> {
+			int id = fr.readInt();
+			ByteBuffer fragment = fr.readBytes(Message.TAILLE_MORCEAU);
+			return fr.incomplete ? null : Message.createFragmentMessagePublic(id, fragment);
+		};
+
+		/* 20 21 */
+		for (int indice : new int[] { Message.REJOINDRE_SALON, Message.QUITTER_SALON }) {
+			decoders[indice] = fr -> {
+				String salon = fr.readString();
+				return fr.incomplete ? null : Message.createSalon(indice, salon);
+			};
+		}
+
+		/* 22 */
+		decoders[Message.ENVOIE_MESSAGE_SALON] = fr -> {
+			String salon = fr.readString();
+			String message = fr.readString();
+			return fr.incomplete ? null : Message.createMessageSalon(salon, message);
+		};
+
+		/* 23 */
+		decoders[Message.RECEPTION_MESSAGE_SALON] = fr -> {
+			String salon = fr.readString();
+			String nom = fr.readString();
+			String message = fr.readString();
+			return fr.incomplete ? null : Message.createReceptionMessageSalon(salon, nom, message);
+		};
+
+		/* 24 */
+		decoders[Message.COMPRESSION] = fr -> {
+			int niveau = fr.readInt();
+			return fr.incomplete ? null : Message.createCompression(niveau);
+		};
+
+		/* 25 26 */
+		for (int indice : new int[] { Message.PING, Message.PONG }) {
+			decoders[indice] = fr -> {
+				long jeton = fr.readLong();
+				return fr.incomplete ? null : Message.createBattement(indice, jeton);
+			};
+		}
+	}
+
+	private ByteBuffer bb;
+
+	private final int maxFrameSize;
+
+	private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/* the chars of a larger string are decoded in chunks, nothing grown is kept */
+	private final CharBuffer chars = CharBuffer.allocate(256);
+
+	private State state = State.WAITING;
+
+	private Message value;
+
+	/* start of the bytes not decoded yet */
+	private int start;
+
+	private int cursor;
+
+	private int end;
+
+	/* bytes of the frame decoded */
+	private int frameSize;
+
+	private boolean incomplete;
+
+	private boolean malformed;
+
+	/**
+	 * The frames are limited to the capacity of bb
+	 *
+	 * @param bb
+	 */
+	public FrameReader(ByteBuffer bb) {
+		this(bb, bb.capacity());
+	}
+
+	/**
+	 * @param bb
+	 * @param maxFrameSize a frame declaring a larger size is an ERROR, before its
+	 *                     bytes are received
+	 */
+	public FrameReader(ByteBuffer bb, int maxFrameSize) {
+		this(maxFrameSize);
+		this.bb = bb;
+		bb.clear();
+	}
+
+	/**
+	 * Create a FrameReader whose buffer is given later with setBuffer
+	 *
+	 * @param maxFrameSize
+	 */
+	public FrameReader(int maxFrameSize) {
+		if (maxFrameSize <= 0) {
+			throw new IllegalArgumentException("maxFrameSize <= 0");
+		}
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Read from another buffer, in write-mode, holding at its start the bytes not
+	 * decoded yet. Must be called after process returned REFILL, which moved
+	 * those bytes at the start of the current buffer: the caller grows the buffer
+	 * by copying them, or gives it back once empty with null.
+	 *
+	 * @param bb the new buffer, or null
+	 */
+	public void setBuffer(ByteBuffer bb) {
+		if (bb != null && start != 0) {
+			throw new IllegalStateException("frames left before the bytes not decoded");
+		}
+		this.bb = bb;
+		start = 0;
+	}
+
+	/**
+	 * @return true if the buffer holds bytes after the frames decoded, the
+	 *         beginning of the next frame
+	 */
+	public boolean hasPendingBytes() {
+		return bb != null && bb.position() > start;
+	}
+
+	@Override
+	public ProcessStatus process() {
+		if (state == State.DONE || state == State.ERROR) {
+			throw new IllegalStateException();
+		}
+
+		cursor = start;
+		end = bb.position();
+		incomplete = false;
+		malformed = false;
+
+		int indice = readInt();
+		if (incomplete)
+			return refill();
+		if (indice < 0 || decoders.length <= indice || decoders[indice] == null) {
+			state = State.ERROR;
+			return ProcessStatus.ERROR;
+		}
+
+		Message message;
+		try {
+			message = decoders[indice].decode(this);
+		} catch (IllegalArgumentException e) {
+			malformed = true;
+			message = null;
+		}
+		if (malformed) {
+			state = State.ERROR;
+			return ProcessStatus.ERROR;
+		}
+		if (incomplete)
+			return refill();
+
+		value = message;
+		frameSize = cursor - start;
+		start = cursor;
+		state = State.DONE;
+		return ProcessStatus.DONE;
+	}
+
+	/* discard the decoded frames so that the buffer can be filled again */
+	private ProcessStatus refill() {
+		if (start == end) {
+			bb.clear();
+		} else if (start != 0) {
+			bb.flip();
+			bb.position(start);
+			bb.compact();
+		}
+		start = 0;
+		return ProcessStatus.REFILL;
+	}
+
+	private boolean available(int size) {
+		if (incomplete || end - cursor < size) {
+			incomplete = true;
+			return false;
+		}
+		return true;
+	}
+
+	private int readInt() {
+		if (!available(Integer.BYTES))
+			return 0;
+		int ret = bb.getInt(cursor);
+		cursor += Integer.BYTES;
+		return ret;
+	}
+
+	private long readLong() {
+		if (!available(Long.BYTES))
+			return 0;
+		long ret = bb.getLong(cursor);
+		cursor += Long.BYTES;
+		return ret;
+	}
+
+	/* a size making the frame larger than maxFrameSize makes it malformed */
+	private int readSize(int max) {
+		int size = readInt();
+		if (!incomplete && (size < 0 || max < size || maxFrameSize - (cursor - start) < size)) {
+			malformed = true;
+			incomplete = true;
+		}
+		return size;
+	}
+
+	private String readString() {
+		int size = readSize(maxFrameSize);
+		if (!available(size))
+			return null;
+
+		int position = bb.position();
+		int limit = bb.limit();
+		bb.limit(cursor + size).position(cursor);
+		utf8.reset();
+		StringBuilder builder = null;
+		while (utf8.decode(bb, chars, true).isOverflow())
+			builder = drainChars(builder, size);
+		while (utf8.flush(chars).isOverflow())
+			builder = drainChars(builder, size);
+		bb.limit(limit).position(position);
+		cursor += size;
+
+		if (builder != null)
+			return drainChars(builder, size).toString();
+		String ret = chars.flip().toString();
+		chars.clear();
+		return ret;
+	}
+
+	/* move the chars decoded to builder, created for a string of size bytes */
+	private StringBuilder drainChars(StringBuilder builder, int size) {
+		if (builder == null)
+			builder = new StringBuilder(size);
+		builder.append(chars.flip());
+		chars.clear();
+		return builder;
+	}
+
+	private ByteBuffer readBytes(int max) {
+		int size = readSize(max);
+		if (size == 0 && !incomplete)
+			malformed = incomplete = true;
+		if (!available(size))
+			return null;
+
+		byte[] ret = new byte[size];
+		bb.get(cursor, ret);
+		cursor += size;
+		return ByteBuffer.wrap(ret);
+	}
+
+	@Override
+	public Object get() {
+		if (state != State.DONE) {
+			throw new IllegalStateException();
+		}
+		return value;
+	}
+
+	/**
+	 * @return the bytes of the frame returned by get
+	 */
+	public int frameSize() {
+		if (state != State.DONE) {
+			throw new IllegalStateException();
+		}
+		return frameSize;
+	}
+
+	@Override
+	public void reset() {
+		state = State.WAITING;
+	}
+}
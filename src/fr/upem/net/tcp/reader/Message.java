@@ -3,8 +3,6 @@ package fr.upem.net.tcp.reader;
 import java.nio.ByteBuffer;
 
 import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Objects;
 import java.util.StringJoiner;
 
@@ -114,6 +112,66 @@ public class Message {
 
 	public static final int ENVOIE_DE_FICHIER = 15;
 
+	/*
+	 * 
+	 * Transfert de fichier par morceaux
+	 * 
+	 */
+
+	public static final int DEBUT_DE_FICHIER = 16;
+
+	public static final int MORCEAU_DE_FICHIER = 17;
+
+	/*
+	 * 
+	 * Message public envoye par fragments, relaye par le serveur au fur et a
+	 * mesure
+	 * 
+	 */
+
+	public static final int DEBUT_MESSAGE_PUBLIC = 18;
+
+	public static final int FRAGMENT_MESSAGE_PUBLIC = 19;
+
+	/*
+	 * 
+	 * Salons : un message envoye dans un salon n'est relaye qu'a ses membres
+	 * 
+	 */
+
+	public static final int REJOINDRE_SALON = 20;
+
+	public static final int QUITTER_SALON = 21;
+
+	public static final int ENVOIE_MESSAGE_SALON = 22;
+
+	public static final int RECEPTION_MESSAGE_SALON = 23;
+
+	/*
+	 * 
+	 * Compression : premiere trame du client, avant sa connexion, avec le niveau
+	 * de Deflater demande. Le serveur repond avec le niveau accorde, 0 s'il
+	 * refuse, et les deux flux sont compresses apres ces deux trames
+	 * 
+	 */
+
+	public static final int COMPRESSION = 24;
+
+	/*
+	 * 
+	 * Battements : PING envoye par le client ou par le serveur quand la
+	 * connexion est silencieuse, avec un jeton, auquel l'autre repond par PONG
+	 * avec le meme jeton
+	 * 
+	 */
+
+	public static final int PING = 25;
+
+	public static final int PONG = 26;
+
+	/* taille maximale des donnees d'un MORCEAU_DE_FICHIER ou d'un FRAGMENT_MESSAGE_PUBLIC */
+	public static final int TAILLE_MORCEAU = 512;
+
 	private static final Charset UTF8 = Charset.forName("UTF8");
 
 	public final int indice;
@@ -132,8 +190,22 @@ public class Message {
 
 	private final String file;
 
+	private final ByteBuffer morceau;
+
+	private final String salon;
+
 	public Message(int indice, int port, long identication, String nom, String passWord,
 				   String message, String adresse, String file) {
+		this(indice, port, identication, nom, passWord, message, adresse, file, null, null);
+	}
+
+	private Message(int indice, int port, long identication, String nom, String passWord,
+				   String message, String adresse, String file, ByteBuffer morceau) {
+		this(indice, port, identication, nom, passWord, message, adresse, file, morceau, null);
+	}
+
+	private Message(int indice, int port, long identication, String nom, String passWord,
+				   String message, String adresse, String file, ByteBuffer morceau, String salon) {
 		super();
 		this.indice = indice;
 		this.port = port;
@@ -143,9 +215,14 @@ public class Message {
 		this.message = message;
 		this.adresse = adresse;
 		this.file = file;
+		this.morceau = morceau;
+		this.salon = salon;
 
-		if (indice < 0 || 16 < indice)
+		if (indice < 0 || PONG < indice)
 			throw new IllegalArgumentException("indice inconnue " + indice);
+		/* sans morceau, getBuffer n'ecrirait pas sa taille et le flux serait decale */
+		if ((indice == MORCEAU_DE_FICHIER || indice == FRAGMENT_MESSAGE_PUBLIC) && morceau == null)
+			throw new IllegalArgumentException("morceau manquant " + indice);
 	}
 
 	/* 0 9 10 11 */
@@ -201,6 +278,87 @@ public class Message {
 		return new Message(ENVOIE_DE_FICHIER, 0, 0, nom, null, null, null, fichier);
 	}
 
+	/* 16 */
+	public static Message createDebutFichier(String nom, String fichier, long taille, int id) {
+
+		Objects.requireNonNull(nom);
+		Objects.requireNonNull(fichier);
+		if (taille < 0)
+			throw new IllegalArgumentException("taille < 0");
+
+		return new Message(DEBUT_DE_FICHIER, id, taille, nom, null, null, null, fichier);
+	}
+
+	/* 17 */
+	public static Message createMorceauFichier(int id, ByteBuffer morceau) {
+
+		Objects.requireNonNull(morceau);
+		if (morceau.remaining() == 0 || TAILLE_MORCEAU < morceau.remaining())
+			throw new IllegalArgumentException("taille du morceau " + morceau.remaining());
+
+		return new Message(MORCEAU_DE_FICHIER, id, 0, null, null, null, null, null, morceau.asReadOnlyBuffer());
+	}
+
+	/* 18 */
+	public static Message createDebutMessagePublic(String nom, long taille, int id) {
+
+		Objects.requireNonNull(nom);
+		if (taille <= 0)
+			throw new IllegalArgumentException("taille <= 0");
+
+		return new Message(DEBUT_MESSAGE_PUBLIC, id, taille, nom, null, null, null, null);
+	}
+
+	/* 19 */
+	public static Message createFragmentMessagePublic(int id, ByteBuffer fragment) {
+
+		Objects.requireNonNull(fragment);
+		if (fragment.remaining() == 0 || TAILLE_MORCEAU < fragment.remaining())
+			throw new IllegalArgumentException("taille du fragment " + fragment.remaining());
+
+		return new Message(FRAGMENT_MESSAGE_PUBLIC, id, 0, null, null, null, null, null, fragment.asReadOnlyBuffer());
+	}
+
+	/* 20 21 */
+	public static Message createSalon(int indice, String salon) {
+		Objects.requireNonNull(salon);
+
+		if (indice != REJOINDRE_SALON && indice != QUITTER_SALON)
+			throw new IllegalArgumentException("indice inconnue " + indice);
+		return new Message(indice, 0, 0, null, null, null, null, null, null, salon);
+	}
+
+	/* 22 */
+	public static Message createMessageSalon(String salon, String message) {
+
+		Objects.requireNonNull(salon);
+		Objects.requireNonNull(message);
+
+		return new Message(ENVOIE_MESSAGE_SALON, 0, 0, null, null, message, null, null, null, salon);
+	}
+
+	/* 23 */
+	public static Message createReceptionMessageSalon(String salon, String nom, String message) {
+
+		Objects.requireNonNull(salon);
+		Objects.requireNonNull(nom);
+		Objects.requireNonNull(message);
+
+		return new Message(RECEPTION_MESSAGE_SALON, 0, 0, nom, null, message, null, null, null, salon);
+	}
+
+	/* 24 */
+	public static Message createCompression(int niveau) {
+		return new Message(COMPRESSION, niveau, 0, null, null, null, null, null);
+	}
+
+	/* 25 26 */
+	public static Message createBattement(int indice, long jeton) {
+		if (indice != PING && indice != PONG)
+			throw new IllegalArgumentException("indice inconnue " + indice);
+		return new Message(indice, 0, jeton, null, null, null, null, null);
+	}
+
 	/* 2 3 */
 	public static Message createValidationConnexion(boolean val) {
 		if (val)
@@ -226,8 +384,8 @@ public class Message {
 		Objects.requireNonNull(expediteur);
 
 		if (val)
-			return new Message(CONNEXION_PRIVEE_ACCEPTE, 0, 0, expediteur, null, null, null, null);
-		return new Message(CONNEXION_PRIVEE_REFUSE, 0, 0, expediteur, null, null, null, null);
+			return new Message(CONNEXION_PRIVEE_ACCEPTE, 0, iden, expediteur, null, null, null, null);
+		return new Message(CONNEXION_PRIVEE_REFUSE, 0, iden, expediteur, null, null, null, null);
 	}
 
 	/* 12 */
@@ -276,17 +434,21 @@ public class Message {
 
 		if (null != file)
 			sj.add("file: ").add(file);
+
+		if (null != salon)
+			sj.add("salon: ").add(salon);
 		return "Message " + sj.toString();
 	}
 
-	/* 0 1 5 6 7 8 9 10 11 12 15 */
+	/* 0 1 5 6 7 8 9 10 11 12 15 16 18 23 */
 	public String getNom() {
 		if (indice != CONNEXION_SANS_MDP && indice != CONNEXION_AVEC_MDP && indice != DEMANDE_CONNEXION_PRIVEE_DU_CLIENT
 				&& indice != CONNEXION_PRIVEE_ACCEPTE && indice != CONNEXION_PRIVEE_REFUSE
-				&& indice != ENVOIE_DE_FICHIER && indice != RECEPTION_MESSAGE_PUBLIC
+				&& indice != ENVOIE_DE_FICHIER && indice != DEBUT_DE_FICHIER && indice != RECEPTION_MESSAGE_PUBLIC
 				&& indice != DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR && indice != ACCEPTE_LA_CONNEXION_PRIVEE_DU_CLIENT
 				&& indice != REFUS_DE_CONNEXION_PRIVEE_DU_CLIENT
-				&& indice != ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR)
+				&& indice != ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR && indice != DEBUT_MESSAGE_PUBLIC
+				&& indice != RECEPTION_MESSAGE_SALON)
 			throw new IllegalArgumentException("indice incorrecte " + indice);
 
 		return nom;
@@ -301,14 +463,24 @@ public class Message {
 		return passWord;
 	}
 
-	/* 4 5 14 */
+	/* 4 5 14 22 23 */
 	public String getMessage() {
-		if (indice != ENVOIE_MESSAGE_PUBLIC && indice != RECEPTION_MESSAGE_PUBLIC && indice != MESSAGE_PRIVE)
+		if (indice != ENVOIE_MESSAGE_PUBLIC && indice != RECEPTION_MESSAGE_PUBLIC && indice != MESSAGE_PRIVE
+				&& indice != ENVOIE_MESSAGE_SALON && indice != RECEPTION_MESSAGE_SALON)
 			throw new IllegalArgumentException("indice incorrecte " + indice);
 
 		return message;
 	}
 
+	/* 20 21 22 23 */
+	public String getSalon() {
+		if (indice != REJOINDRE_SALON && indice != QUITTER_SALON && indice != ENVOIE_MESSAGE_SALON
+				&& indice != RECEPTION_MESSAGE_SALON)
+			throw new IllegalArgumentException("indice incorrecte " + indice);
+
+		return salon;
+	}
+
 	/* 6 12 */
 	public String getAdress() {
 		if (indice != DEMANDE_CONNEXION_PRIVEE_DU_CLIENT && indice != ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR)
@@ -328,56 +500,140 @@ public class Message {
 	/* 7 8 12 13 */
 	public long getIdenticationCode() {
 		if (indice != CONNEXION_PRIVEE_ACCEPTE && indice != CONNEXION_PRIVEE_REFUSE
-				&& indice != ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR && indice != CONNEXION_PRIVEE)
+				&& indice != ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR && indice != CONNEXION_PRIVEE
+				&& indice != PING && indice != PONG)
 			throw new IllegalArgumentException("indice incorrecte " + indice);
 
 		return identication;
 	}
 
-	/* 15 */
+	/* 15 16 */
 	public String getFile() {
-		if (indice != ENVOIE_DE_FICHIER)
+		if (indice != ENVOIE_DE_FICHIER && indice != DEBUT_DE_FICHIER)
 			throw new IllegalArgumentException("indice inconnue " + indice);
 
 		return file;
 	}
 
-	private ByteBuffer conversion(String truc) {
-		ByteBuffer tmp = UTF8.encode(truc);
-		return ByteBuffer.allocate(Integer.BYTES + tmp.remaining()).putInt(tmp.remaining()).put(tmp);
+	/* 16 18 */
+	public long getTaille() {
+		if (indice != DEBUT_DE_FICHIER && indice != DEBUT_MESSAGE_PUBLIC)
+			throw new IllegalArgumentException("indice incorrecte " + indice);
+
+		return identication;
 	}
 
-	public ByteBuffer getBuffer() {
+	/* 16 17 18 19 */
+	public int getIdTransfert() {
+		if (indice != DEBUT_DE_FICHIER && indice != MORCEAU_DE_FICHIER && indice != DEBUT_MESSAGE_PUBLIC
+				&& indice != FRAGMENT_MESSAGE_PUBLIC)
+			throw new IllegalArgumentException("indice incorrecte " + indice);
 
-		List<ByteBuffer> list = new ArrayList<>();
-		list.add(ByteBuffer.allocate(Integer.BYTES).putInt(indice));
+		return port;
+	}
 
-		if (0 == port)
-			list.add(ByteBuffer.allocate(Integer.BYTES).putInt(port));
+	/* 24 */
+	public int getNiveau() {
+		if (indice != COMPRESSION)
+			throw new IllegalArgumentException("indice incorrecte " + indice);
 
-		if (0 == identication)
-			list.add(ByteBuffer.allocate(Integer.BYTES).putLong(identication));
+		return port;
+	}
 
-		if (null != nom)
-			list.add(conversion(nom));
+	/* 17 19 */
+	public ByteBuffer getMorceau() {
+		if (indice != MORCEAU_DE_FICHIER && indice != FRAGMENT_MESSAGE_PUBLIC)
+			throw new IllegalArgumentException("indice incorrecte " + indice);
 
-		if (null != passWord)
-			list.add(conversion(passWord));
+		return morceau.duplicate();
+	}
 
-		if (null != message)
-			list.add(conversion(message));
+	/* the strings of the frame, in the order MessageReader reads them */
+	private String[] strings() {
+		switch (indice) {
+		case CONNEXION_SANS_MDP:
+		case DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR:
+		case ACCEPTE_LA_CONNEXION_PRIVEE_DU_CLIENT:
+		case REFUS_DE_CONNEXION_PRIVEE_DU_CLIENT:
+		case CONNEXION_PRIVEE_ACCEPTE:
+		case CONNEXION_PRIVEE_REFUSE:
+		case ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR:
+		case DEBUT_MESSAGE_PUBLIC:
+			return new String[] { nom };
+		case ENVOIE_MESSAGE_PUBLIC:
+		case MESSAGE_PRIVE:
+			return new String[] { message };
+		case CONNEXION_AVEC_MDP:
+			return new String[] { nom, passWord };
+		case RECEPTION_MESSAGE_PUBLIC:
+			return new String[] { nom, message };
+		case DEMANDE_CONNEXION_PRIVEE_DU_CLIENT:
+			return new String[] { nom, adresse };
+		case ENVOIE_DE_FICHIER:
+		case DEBUT_DE_FICHIER:
+			return new String[] { nom, file };
+		case REJOINDRE_SALON:
+		case QUITTER_SALON:
+			return new String[] { salon };
+		case ENVOIE_MESSAGE_SALON:
+			return new String[] { salon, message };
+		case RECEPTION_MESSAGE_SALON:
+			return new String[] { salon, nom, message };
+		default:
+			return new String[0];
+		}
+	}
 
-		if (null != adresse)
-			list.add(conversion(adresse));
+	/* the port carries the transfer id of 16 17 18 and 19, and the level of 24 */
+	private boolean hasPort() {
+		return indice == DEMANDE_CONNEXION_PRIVEE_DU_CLIENT || indice == ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR
+				|| indice == DEBUT_DE_FICHIER || indice == MORCEAU_DE_FICHIER || indice == DEBUT_MESSAGE_PUBLIC
+				|| indice == FRAGMENT_MESSAGE_PUBLIC || indice == COMPRESSION;
+	}
 
-		if (null != file)
-			list.add(conversion(file));
+	/* the identification carries the size of 16 and 18, and the token of 25 and 26 */
+	private boolean hasIdentification() {
+		return indice == CONNEXION_PRIVEE_ACCEPTE || indice == CONNEXION_PRIVEE_REFUSE
+				|| indice == ENVOIE_DES_DONNEES_DE_CONNEXION_DU_SERVEUR || indice == CONNEXION_PRIVEE
+				|| indice == DEBUT_DE_FICHIER || indice == DEBUT_MESSAGE_PUBLIC || indice == PING || indice == PONG;
+	}
 
-		ByteBuffer ret = ByteBuffer.allocate(list.stream().mapToInt(x -> x.remaining()).sum());
-		for (ByteBuffer bb : list)
-			ret.put(bb);
-		return ret;
+	/**
+	 * Encode the message in the format read by MessageReader
+	 *
+	 * The frame is encoded in a single buffer of the exact size, so it can be
+	 * shared between recipients through read-only duplicates.
+	 *
+	 * @return a new buffer in read-mode containing the whole frame
+	 */
+	public ByteBuffer getBuffer() {
+		String[] strings = strings();
+		ByteBuffer[] encoded = new ByteBuffer[strings.length];
+		int size = Integer.BYTES;
+		for (int i = 0; i < strings.length; i++) {
+			encoded[i] = UTF8.encode(strings[i]);
+			size += Integer.BYTES + encoded[i].remaining();
+		}
+		if (hasPort())
+			size += Integer.BYTES;
+		if (hasIdentification())
+			size += Long.BYTES;
+		if (morceau != null)
+			size += Integer.BYTES + morceau.remaining();
+
+		ByteBuffer ret = ByteBuffer.allocate(size);
+		ret.putInt(indice);
+		for (ByteBuffer bb : encoded)
+			ret.putInt(bb.remaining()).put(bb);
+		if (hasPort())
+			ret.putInt(port);
+		if (hasIdentification())
+			ret.putLong(identication);
+		if (morceau != null)
+			ret.putInt(morceau.remaining()).put(morceau.duplicate());
+		return ret.flip();
 	}
+
 	/*
 	 * id nom |mdp |mes |ip port cod
 	 */
@@ -80,6 +80,41 @@ public class MessageReader implements Reader {
 
 		/* 13 */
 		map.put(Message.CONNEXION_PRIVEE, mr -> uniqueLong(mr, (l) -> Message.createConnexionPrive(l)));
+
+		/* 16 */
+		map.put(Message.DEBUT_DE_FICHIER, mr -> debutFichier(mr));
+
+		/* 17 */
+		map.put(Message.MORCEAU_DE_FICHIER, mr -> morceauFichier(mr, Message::createMorceauFichier));
+
+		/* 18 */
+		map.put(Message.DEBUT_MESSAGE_PUBLIC,
+				mr -> uniqueStringIntLong(mr, (s, i, l) -> Message.createDebutMessagePublic(s, l, i)));
+
+		/* 19 */
+		map.put(Message.FRAGMENT_MESSAGE_PUBLIC, mr -> morceauFichier(mr, Message::createFragmentMessagePublic));
+
+		/* 20 */
+		map.put(Message.REJOINDRE_SALON, mr -> uniqueString(mr, s -> Message.createSalon(Message.REJOINDRE_SALON, s)));
+
+		/* 21 */
+		map.put(Message.QUITTER_SALON, mr -> uniqueString(mr, s -> Message.createSalon(Message.QUITTER_SALON, s)));
+
+		/* 22 */
+		map.put(Message.ENVOIE_MESSAGE_SALON, mr -> doubleString(mr, (s1, s2) -> Message.createMessageSalon(s1, s2)));
+
+		/* 23 */
+		map.put(Message.RECEPTION_MESSAGE_SALON,
+				mr -> tripleString(mr, (s1, s2, s3) -> Message.createReceptionMessageSalon(s1, s2, s3)));
+
+		/* 24 */
+		map.put(Message.COMPRESSION, mr -> uniqueInt(mr, Message::createCompression));
+
+		/* 25 */
+		map.put(Message.PING, mr -> uniqueLong(mr, l -> Message.createBattement(Message.PING, l)));
+
+		/* 26 */
+		map.put(Message.PONG, mr -> uniqueLong(mr, l -> Message.createBattement(Message.PONG, l)));
 	}
 
 	private static ProcessStatus uniqueString(MessageReader mr, Function<String, Message> fun) {
@@ -124,6 +159,35 @@ public class MessageReader implements Reader {
 		}
 	}
 
+	private static ProcessStatus tripleString(MessageReader mr, TriFunction<String, String, String, Message> fun) {
+		if (null != mr.str2)
+			return uniqueString(mr, s -> {
+				String s1 = mr.str1;
+				String s2 = mr.str2;
+				mr.str1 = null;
+				mr.str2 = null;
+				return fun.apply(s1, s2, s);
+			});
+
+		switch (mr.sr.process()) {
+
+		case DONE:
+			if (null == mr.str1)
+				mr.str1 = (String) mr.sr.get();
+			else
+				mr.str2 = (String) mr.sr.get();
+			mr.sr.reset();
+			return tripleString(mr, fun);
+
+		case REFILL:
+			return ProcessStatus.REFILL;
+
+		default:
+			mr.state = State.ERROR;
+			return ProcessStatus.ERROR;
+		}
+	}
+
 	private static ProcessStatus doubleStringInt(MessageReader mr, TriFunction<String, String, Integer, Message> fun) {
 		if (null == mr.str1) {
 			switch (mr.sr.process()) {
@@ -204,7 +268,7 @@ public class MessageReader implements Reader {
 
 	private static ProcessStatus uniqueStringIntLong(MessageReader mr,
 			TriFunction<String, Integer, Long, Message> fun) {
-		if (null != mr.str1 && mr.recupererInt)
+		if (null != mr.str1 && !mr.recupererInt)
 			return uniqueLong(mr, s -> {
 				String ret = mr.str1;
 				mr.recupererInt = true;
@@ -246,6 +310,145 @@ public class MessageReader implements Reader {
 
 	}
 
+	private static ProcessStatus debutFichier(MessageReader mr) {
+		if (null == mr.str1) {
+			switch (mr.sr.process()) {
+
+			case DONE:
+				mr.str1 = (String) mr.sr.get();
+				mr.sr.reset();
+				break;
+
+			case REFILL:
+				return ProcessStatus.REFILL;
+
+			default:
+				mr.state = State.ERROR;
+				return ProcessStatus.ERROR;
+			}
+		}
+		if (null == mr.str2) {
+			switch (mr.sr.process()) {
+
+			case DONE:
+				mr.str2 = (String) mr.sr.get();
+				mr.sr.reset();
+				break;
+
+			case REFILL:
+				return ProcessStatus.REFILL;
+
+			default:
+				mr.state = State.ERROR;
+				return ProcessStatus.ERROR;
+			}
+		}
+		if (mr.recupererInt) {
+			switch (mr.ir.process()) {
+
+			case DONE:
+				mr.port = (int) mr.ir.get();
+				mr.ir.reset();
+				mr.recupererInt = false;
+				break;
+
+			case REFILL:
+				return ProcessStatus.REFILL;
+
+			default:
+				mr.state = State.ERROR;
+				return ProcessStatus.ERROR;
+			}
+		}
+		return uniqueLong(mr, l -> {
+			Message ret = Message.createDebutFichier(mr.str1, mr.str2, l, mr.port);
+			mr.str1 = null;
+			mr.str2 = null;
+			mr.recupererInt = true;
+			return ret;
+		});
+	}
+
+	/*
+	 * id, taille puis les octets du morceau, qui doit tenir entierement dans le
+	 * buffer, pour 17 et 19
+	 */
+	private static ProcessStatus morceauFichier(MessageReader mr, BiFunction<Integer, ByteBuffer, Message> fun) {
+		if (mr.recupererInt) {
+			switch (mr.ir.process()) {
+
+			case DONE:
+				mr.port = (int) mr.ir.get();
+				mr.ir.reset();
+				mr.recupererInt = false;
+				break;
+
+			case REFILL:
+				return ProcessStatus.REFILL;
+
+			default:
+				mr.state = State.ERROR;
+				return ProcessStatus.ERROR;
+			}
+		}
+		if (mr.taille == -1) {
+			switch (mr.ir.process()) {
+
+			case DONE:
+				int taille = (int) mr.ir.get();
+				mr.ir.reset();
+				if (taille <= 0 || Message.TAILLE_MORCEAU < taille) {
+					mr.state = State.ERROR;
+					return ProcessStatus.ERROR;
+				}
+				mr.taille = taille;
+				break;
+
+			case REFILL:
+				return ProcessStatus.REFILL;
+
+			default:
+				mr.state = State.ERROR;
+				return ProcessStatus.ERROR;
+			}
+		}
+		mr.bb.flip();
+		try {
+			if (mr.bb.remaining() < mr.taille)
+				return ProcessStatus.REFILL;
+			ByteBuffer morceau = ByteBuffer.allocate(mr.taille);
+			int limit = mr.bb.limit();
+			mr.bb.limit(mr.taille);
+			morceau.put(mr.bb).flip();
+			mr.bb.limit(limit);
+			mr.value = fun.apply(mr.port, morceau);
+			mr.taille = -1;
+			mr.recupererInt = true;
+			mr.state = State.DONE;
+			return ProcessStatus.DONE;
+		} finally {
+			mr.bb.compact();
+		}
+	}
+
+	private static ProcessStatus uniqueInt(MessageReader mr, Function<Integer, Message> fun) {
+		switch (mr.ir.process()) {
+
+		case DONE:
+			mr.value = fun.apply((int) mr.ir.get());
+			mr.ir.reset();
+			mr.state = State.DONE;
+			return ProcessStatus.DONE;
+
+		case REFILL:
+			return ProcessStatus.REFILL;
+
+		default:
+			mr.state = State.ERROR;
+			return ProcessStatus.ERROR;
+		}
+	}
+
 	private static ProcessStatus uniqueLong(MessageReader mr, Function<Long, Message> fun) {
 		switch (mr.lr.process()) {
 
@@ -266,6 +469,8 @@ public class MessageReader implements Reader {
 
 	private State state = State.WAITING_FOR_INDEX;
 
+	private final ByteBuffer bb;
+
 	private StringReader sr;
 
 	private IntReader ir;
@@ -284,7 +489,10 @@ public class MessageReader implements Reader {
 
 	private boolean recupererInt = true;
 
+	private int taille = -1;
+
 	public MessageReader(ByteBuffer bb) {
+		this.bb = bb;
 		bb.clear();
 		sr = new StringReader(bb);
 		ir = new IntReader(bb);
@@ -310,7 +518,12 @@ public class MessageReader implements Reader {
 			case DONE:
 				indice = (int) ir.get();
 				ir.reset();
+				if (!map.containsKey(indice)) {
+					state = State.ERROR;
+					return ProcessStatus.ERROR;
+				}
 				state = State.WAITING_FOR_MESSAGE;
+				return map.get(indice).apply(this);
 
 			default:
 				state = State.ERROR;
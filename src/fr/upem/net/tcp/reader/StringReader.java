@@ -36,6 +36,11 @@ public class StringReader implements Reader {
 			switch (intRead.process()) {
 			case DONE:
 				size = (int) intRead.get();
+				// a string which could never fit in bb would wait forever
+				if (size < 0 || bb.capacity() < size) {
+					state = State.ERROR;
+					return ProcessStatus.ERROR;
+				}
 				state = State.WAITING_FOR_STRING;
 				break;
 
@@ -0,0 +1,396 @@
+package fr.upem.net.tcp.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A TLS session over a nonblocking SocketChannel, driven by the select loop
+ * which owns the channel: read and write never block, and the handshake goes
+ * on as the records arrive and leave.
+ *
+ * The records read wait in netIn, their plaintext in appIn, and the records
+ * to write in netOut. The three buffers are borrowed from a Buffers only while
+ * they hold bytes, so an idle connection holds none. The delegated tasks of
+ * the handshake are given to an Executor, off the loop, and resume is called
+ * once they are done: nothing is read or written meanwhile, the loop must call
+ * proceed.
+ *
+ * The records received may hold more plaintext than the caller can take, so
+ * hasInput must be checked after each read: the bytes already read do not
+ * select the channel again.
+ */
+public class TlsStream {
+
+	/**
+	 * The buffers of a loop, of at least {@link TlsStream#bufferSize(SSLContext)}
+	 * bytes
+	 */
+	public interface Buffers {
+		/**
+		 * @return a cleared buffer
+		 */
+		ByteBuffer borrow();
+
+		/**
+		 * @param bb a buffer returned by borrow, which must not be used anymore
+		 */
+		void release(ByteBuffer bb);
+	}
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine engine;
+	private final SocketChannel sc;
+	private final Buffers buffers;
+	private final Executor executor;
+	private final Runnable resume;
+	private ByteBuffer netIn;
+	private ByteBuffer appIn;
+	private ByteBuffer netOut;
+	/* netIn only holds the beginning of a record */
+	private boolean underflow;
+	private boolean tasksRunning;
+	private boolean eof;
+	private final long handshakeStart = System.nanoTime();
+	private final long handshakeStartMillis = System.currentTimeMillis();
+	private long handshakeNanos = -1;
+	private boolean resumed;
+	private long netWritten;
+
+	/**
+	 * @param engine   in client or server mode
+	 * @param sc       the connected channel
+	 * @param buffers
+	 * @param executor runs the delegated tasks of the handshake, in the calling
+	 *                 thread if it is null
+	 * @param resume   called by the executor once the tasks are done, to call
+	 *                 proceed in the thread of the loop
+	 */
+	public TlsStream(SSLEngine engine, SocketChannel sc, Buffers buffers, Executor executor, Runnable resume) {
+		this.engine = engine;
+		this.sc = sc;
+		this.buffers = buffers;
+		this.executor = executor;
+		this.resume = resume;
+	}
+
+	/**
+	 * @param context
+	 * @return the size of the buffers of the sessions of context
+	 */
+	public static int bufferSize(SSLContext context) {
+		SSLSession session = context.createSSLEngine().getSession();
+		return Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize());
+	}
+
+	/**
+	 * @param size
+	 * @return buffers kept for the reuse by a single loop, for the connections
+	 *         of a client
+	 */
+	public static Buffers buffers(int size) {
+		ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+		return new Buffers() {
+			@Override
+			public ByteBuffer borrow() {
+				ByteBuffer bb = free.poll();
+				return bb == null ? ByteBuffer.allocate(size) : bb.clear();
+			}
+
+			@Override
+			public void release(ByteBuffer bb) {
+				free.push(bb);
+			}
+		};
+	}
+
+	/**
+	 * Start the handshake: a client sends its hello, a server waits for it
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		engine.beginHandshake();
+		wrap(EMPTY);
+	}
+
+	/**
+	 * Read the records received, decrypt them and copy as much plaintext as dst
+	 * can hold
+	 *
+	 * @param dst in write-mode
+	 * @return the bytes read from the socket, -1 if the peer closed the
+	 *         connection or the session
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (netIn == null)
+			netIn = buffers.borrow();
+		int read = sc.read(netIn);
+		if (read == -1)
+			eof = true;
+		drain(dst);
+		return eof || engine.isInboundDone() ? -1 : read;
+	}
+
+	/**
+	 * Copy in dst the plaintext of the records already read, without reading
+	 * the socket
+	 *
+	 * @param dst in write-mode
+	 * @return the bytes copied
+	 * @throws IOException
+	 */
+	public int drain(ByteBuffer dst) throws IOException {
+		unwrap();
+		if (appIn == null)
+			return 0;
+		appIn.flip();
+		int size = Math.min(appIn.remaining(), dst.remaining());
+		dst.put(dst.position(), appIn, appIn.position(), size);
+		dst.position(dst.position() + size);
+		appIn.position(appIn.position() + size);
+		appIn.compact();
+		if (appIn.position() == 0) {
+			buffers.release(appIn);
+			appIn = null;
+		}
+		return size;
+	}
+
+	/**
+	 * @return true if the records already read hold plaintext drain can copy
+	 */
+	public boolean hasInput() {
+		return !tasksRunning && (appIn != null || (netIn != null && !underflow));
+	}
+
+	/**
+	 * Encrypt as much of src as the socket takes, after the records not written
+	 * yet. Nothing is taken from src before the end of the handshake.
+	 *
+	 * @param src in read-mode
+	 * @return the bytes written on the socket
+	 * @throws IOException
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		long before = netWritten;
+		if (!tasksRunning)
+			wrap(src);
+		return (int) (netWritten - before);
+	}
+
+	/**
+	 * @return true if records wait for the socket to be writable
+	 */
+	public boolean hasOutput() {
+		return netOut != null || (!tasksRunning && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP);
+	}
+
+	/**
+	 * @return true once the handshake is over, the plaintext given to write is
+	 *         taken from then
+	 */
+	public boolean isEstablished() {
+		return handshakeNanos >= 0;
+	}
+
+	/**
+	 * @return true while the delegated tasks run, nothing must be read or
+	 *         written until proceed
+	 */
+	public boolean isBusy() {
+		return tasksRunning;
+	}
+
+	/**
+	 * Go on with the handshake once the delegated tasks are done, in the thread
+	 * of the loop
+	 *
+	 * @throws IOException
+	 */
+	public void proceed() throws IOException {
+		tasksRunning = false;
+		if (handshake(engine.getHandshakeStatus()))
+			unwrap();
+	}
+
+	/**
+	 * @return the duration of the handshake, from the creation of the stream,
+	 *         -1 if it is not over
+	 */
+	public long handshakeNanos() {
+		return handshakeNanos;
+	}
+
+	/**
+	 * @return true if the handshake resumed a session of a previous connection
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * Send a close_notify if the socket takes it, and give the buffers back
+	 */
+	public void close() {
+		engine.closeOutbound();
+		if (!tasksRunning) {
+			try {
+				wrap(EMPTY);
+			} catch (IOException e) {
+				// the connection is closed anyway
+			}
+		}
+		if (netIn != null)
+			buffers.release(netIn);
+		if (appIn != null)
+			buffers.release(appIn);
+		if (netOut != null)
+			buffers.release(netOut);
+		netIn = appIn = netOut = null;
+	}
+
+	/*
+	 * Decrypt the records of netIn in appIn until netIn only holds the beginning
+	 * of a record or appIn is full, answering the handshake messages on the way
+	 */
+	private void unwrap() throws IOException {
+		if (netIn == null || tasksRunning)
+			return;
+		netIn.flip();
+		try {
+			while (netIn.hasRemaining()) {
+				if (appIn == null)
+					appIn = buffers.borrow();
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				underflow = result.getStatus() == Status.BUFFER_UNDERFLOW;
+				if (result.getStatus() != Status.OK || !handshake(result.getHandshakeStatus()))
+					break;
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+					break;
+			}
+		} finally {
+			netIn.compact();
+			if (netIn.position() == 0) {
+				buffers.release(netIn);
+				netIn = null;
+				underflow = false;
+			}
+			if (appIn != null && appIn.position() == 0) {
+				buffers.release(appIn);
+				appIn = null;
+			}
+		}
+	}
+
+	/*
+	 * Encrypt src, or the handshake messages the engine has to send, in netOut
+	 * and write netOut as long as the socket takes it
+	 */
+	private void wrap(ByteBuffer src) throws IOException {
+		while (flush()) {
+			HandshakeStatus status = engine.getHandshakeStatus();
+			if (status == HandshakeStatus.NEED_TASK) {
+				if (!handshake(status))
+					return;
+				continue;
+			}
+			if (!src.hasRemaining() && status != HandshakeStatus.NEED_WRAP)
+				return;
+			if (netOut == null)
+				netOut = buffers.borrow();
+			SSLEngineResult result = engine.wrap(src, netOut);
+			if (result.getHandshakeStatus() == HandshakeStatus.FINISHED)
+				finished();
+			if (result.getStatus() == Status.CLOSED && result.bytesProduced() == 0) {
+				flush();
+				if (engine.isOutboundDone() && src.hasRemaining())
+					throw new SSLException("TLS session closed");
+				return;
+			}
+			if (result.getStatus() == Status.OK && result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+				// the engine waits for the peer before taking src
+				flush();
+				return;
+			}
+		}
+	}
+
+	/* write netOut, false if the socket did not take all of it */
+	private boolean flush() throws IOException {
+		if (netOut == null)
+			return true;
+		netOut.flip();
+		netWritten += sc.write(netOut);
+		netOut.compact();
+		if (netOut.position() != 0)
+			return false;
+		buffers.release(netOut);
+		netOut = null;
+		return true;
+	}
+
+	/*
+	 * Act on the status of the handshake after an unwrap
+	 *
+	 * @return false if the delegated tasks run in the executor
+	 */
+	private boolean handshake(HandshakeStatus status) throws IOException {
+		switch (status) {
+		case NEED_TASK:
+			runTasks();
+			return !tasksRunning;
+		case NEED_WRAP:
+			wrap(EMPTY);
+			return !tasksRunning;
+		case FINISHED:
+			finished();
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	private void runTasks() {
+		ArrayList<Runnable> tasks = new ArrayList<>();
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			tasks.add(task);
+		if (executor == null) {
+			tasks.forEach(Runnable::run);
+			return;
+		}
+		tasksRunning = true;
+		try {
+			executor.execute(() -> {
+				tasks.forEach(Runnable::run);
+				resume.run();
+			});
+		} catch (RejectedExecutionException e) {
+			tasksRunning = false;
+			tasks.forEach(Runnable::run);
+		}
+	}
+
+	/* a resumed session keeps the creation time of the session it resumes */
+	private void finished() {
+		if (handshakeNanos >= 0)
+			return;
+		handshakeNanos = System.nanoTime() - handshakeStart;
+		resumed = engine.getSession().getCreationTime() < handshakeStartMillis;
+	}
+}
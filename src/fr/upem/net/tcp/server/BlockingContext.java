@@ -0,0 +1,262 @@
+package fr.upem.net.tcp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import fr.upem.net.tcp.reader.FrameReader;
+import fr.upem.net.tcp.reader.Message;
+
+/**
+ * A client of the {@link BlockingServer}, read by its own thread with blocking
+ * I/O and written by another one.
+ *
+ * The frames for this client are queued by the threads which produce them, in
+ * an OutboundQueue guarded by queueLock, and written by the writer thread of
+ * the client. Once the queue is over its high watermark the policy of the
+ * class of the frame applies, as in the reactors: a producer paused by this
+ * client waits for the queue to drain for at most OUT_STALL_MILLIS, then this
+ * client is closed.
+ */
+class BlockingContext {
+
+	/**
+	 * A file sent by this client, relayed to target under the id known by target,
+	 * null for an unknown recipient, or a public message sent by fragments,
+	 * relayed to everyone
+	 */
+	static class Transfert {
+		final BlockingContext target;
+		final int id;
+		long remaining;
+
+		Transfert(BlockingContext target, int id, long remaining) {
+			this.target = target;
+			this.id = id;
+			this.remaining = remaining;
+		}
+	}
+
+	static final Logger logger = Logger.getLogger(BlockingContext.class.getName());
+
+	final private SocketChannel sc;
+	final private BlockingServer server;
+	/* grown for a frame larger than BUFFER_SIZE, like the input of a Context */
+	private ByteBuffer bbin = ByteBuffer.allocate(ServerChat.BUFFER_SIZE);
+	final private FrameReader messageReader = new FrameReader(bbin, ServerChat.MAX_FRAME_SIZE);
+	final OutboundQueue queue = new OutboundQueue(ServerChat.OUT_HIGH_BYTES, ServerChat.OUT_LOW_BYTES,
+			ServerChat.OUT_HIGH_MESSAGES, ServerChat.OUT_LOW_MESSAGES);
+	/* a ReentrantLock rather than synchronized, which would pin a virtual thread */
+	final private ReentrantLock queueLock = new ReentrantLock();
+	/* signalled when a frame is queued, for the writer */
+	final private Condition queued = queueLock.newCondition();
+	/* signalled when the queue is under its low watermark, for the paused producers */
+	final private Condition drained = queueLock.newCondition();
+	final private AtomicBoolean closed = new AtomicBoolean();
+	private static final long OUT_STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerChat.OUT_STALL_MILLIS);
+
+	/* the private connections the server asked to this client, added by other threads */
+	final Set<String> requests = ConcurrentHashMap.newKeySet();
+	/* the rooms joined, left by the thread closing this client */
+	final Set<String> rooms = ConcurrentHashMap.newKeySet();
+	/* only used by the thread of this client */
+	final HashMap<Integer, Transfert> transferts = new HashMap<>();
+	final HashMap<Integer, Transfert> publics = new HashMap<>();
+	volatile String name;
+
+	BlockingContext(BlockingServer server, SocketChannel sc) {
+		this.server = server;
+		this.sc = sc;
+	}
+
+	/**
+	 * Read and handle the frames of the client until it disconnects or breaks
+	 * the protocol, in the thread of this client
+	 */
+	void serve() {
+		try {
+			for (;;) {
+				switch (messageReader.process()) {
+				case DONE:
+					Message value = (Message) messageReader.get();
+					messageReader.reset();
+					if (!server.handle(value, this))
+						return;
+					break;
+
+				case REFILL:
+					if (!bbin.hasRemaining() && !growInput())
+						return;
+					if (sc.read(bbin) == -1)
+						return;
+					break;
+
+				case ERROR:
+				default:
+					return;
+				}
+			}
+		} catch (IOException e) {
+			logger.info("Connection lost with " + name);
+		} finally {
+			close();
+		}
+	}
+
+	/*
+	 * Double the capacity of bbin, full of the beginning of a frame of at most
+	 * MAX_FRAME_SIZE bytes
+	 */
+	private boolean growInput() {
+		if (bbin.capacity() >= ServerChat.MAX_FRAME_SIZE)
+			return false;
+		ByteBuffer grown = ByteBuffer.allocate(Math.min(2 * bbin.capacity(), ServerChat.MAX_FRAME_SIZE));
+		bbin.flip();
+		grown.put(bbin);
+		bbin = grown;
+		messageReader.setBuffer(bbin);
+		return true;
+	}
+
+	/**
+	 * Queue msg for the client
+	 *
+	 * @param msg
+	 */
+	void send(Message msg) {
+		if (msg.indice == Message.DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR)
+			requests.add(msg.getNom());
+		send(msg.getBuffer());
+	}
+
+	/**
+	 * Queue an already encoded frame for the writer of the client, and apply the
+	 * policy of its class if the queue goes over its high watermark: the caller
+	 * waits for the queue to drain if the policy is PAUSE_PRODUCER, unless it is
+	 * interrupted, which leaves the client open. The frame may be a duplicate of
+	 * a buffer shared with other clients, only its position is changed.
+	 *
+	 * @param frame in read-mode
+	 */
+	void send(ByteBuffer frame) {
+		OutboundQueue.Policy policy;
+		queueLock.lock();
+		try {
+			if (closed.get())
+				return;
+			queue.add(frame);
+			queued.signal();
+			if (!queue.overHigh())
+				return;
+			policy = server.policy(OutboundQueue.FrameClass.of(frame));
+			switch (policy) {
+			case DROP_OLDEST:
+				queue.dropOldestPublic();
+				return;
+			case PAUSE_PRODUCER:
+				if (awaitDrained())
+					return;
+				break;
+			case DISCONNECT:
+				break;
+			}
+		} catch (InterruptedException e) {
+			// the producer is stopped, not this client: the frame stays queued
+			Thread.currentThread().interrupt();
+			return;
+		} finally {
+			queueLock.unlock();
+		}
+		logger.info("Slow consumer " + name + " disconnected with the policy " + policy);
+		close();
+	}
+
+	/*
+	 * Wait, holding queueLock, until the queue is under its low watermark
+	 *
+	 * @return false if it is not after OUT_STALL_NANOS
+	 */
+	private boolean awaitDrained() throws InterruptedException {
+		long nanos = OUT_STALL_NANOS;
+		while (!queue.underLow() && !closed.get()) {
+			if (nanos <= 0)
+				return false;
+			nanos = drained.awaitNanos(nanos);
+		}
+		return true;
+	}
+
+	/**
+	 * Write the frames queued until the client is closed, in the writer thread
+	 * of this client. The frames are copied in out by batches, out is dropped
+	 * whenever the queue is empty.
+	 */
+	void write() {
+		ByteBuffer out = null;
+		try {
+			for (;;) {
+				queueLock.lock();
+				try {
+					while (queue.isEmpty() && !closed.get()) {
+						out = null;
+						queued.await();
+					}
+					if (closed.get())
+						return;
+					if (out == null)
+						out = ByteBuffer.allocate(ServerChat.OUT_BUFFER_SIZE);
+					queue.drainTo(out);
+					if (queue.underLow())
+						drained.signalAll();
+				} finally {
+					queueLock.unlock();
+				}
+				out.flip();
+				while (out.hasRemaining())
+					sc.write(out);
+				out.clear();
+			}
+		} catch (IOException e) {
+			logger.info("Connection lost with " + name + " during a write");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close();
+		}
+	}
+
+	boolean isOpen() {
+		return sc.isOpen();
+	}
+
+	/**
+	 * Close the connection, from any thread: the threads of this client blocked
+	 * in a read or a write are released by the close, and the writer and the
+	 * paused producers waiting for the queue are signalled
+	 */
+	void close() {
+		if (!closed.compareAndSet(false, true))
+			return;
+		try {
+			sc.close();
+		} catch (IOException e) {
+			// ignore exception
+		}
+		queueLock.lock();
+		try {
+			queued.signal();
+			drained.signalAll();
+		} finally {
+			queueLock.unlock();
+		}
+		server.logout(this);
+	}
+}
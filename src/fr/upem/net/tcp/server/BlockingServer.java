@@ -0,0 +1,315 @@
+package fr.upem.net.tcp.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import fr.upem.net.tcp.parsing.CredentialStore;
+import fr.upem.net.tcp.reader.Message;
+
+/**
+ * The other engine of the server, selected with -Dchathack.engine=virtual: each
+ * client is served by its own thread with blocking I/O instead of the select
+ * loops of {@link ServerChat}, with the same protocol.
+ *
+ * The threads are virtual when the JVM has them (Java 21, or 19 and 20 with
+ * --enable-preview), platform threads otherwise. Each client has a thread
+ * reading it and another one writing it: a frame is queued for each recipient
+ * by the thread of the client which produced it, with the policies of the
+ * reactors when a queue is over its high watermark.
+ */
+public class BlockingServer {
+
+	static final Logger logger = Logger.getLogger(BlockingServer.class.getName());
+
+	private final ServerSocketChannel serverSocketChannel;
+	private final CredentialStore credentials;
+	private final ExecutorService executor = newThreadPerTaskExecutor();
+	private final ConcurrentHashMap<String, BlockingContext> sessions = new ConcurrentHashMap<>();
+	private final Set<BlockingContext> clients = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, Set<BlockingContext>> rooms = new ConcurrentHashMap<>();
+	private final AtomicInteger transferts = new AtomicInteger();
+	private final MessageLog log;
+	private final Random rad = new Random(System.currentTimeMillis());
+	private final OutboundQueue.Policy[] policies = ServerChat.readPolicies();
+
+	public BlockingServer(int port, CredentialStore credentials) throws IOException {
+		this.credentials = credentials;
+		log = ServerChat.openLog();
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.bind(new InetSocketAddress(port));
+	}
+
+	/*
+	 * Executors.newVirtualThreadPerTaskExecutor is looked up by reflection, the
+	 * server is compiled for Java 17
+	 */
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			logger.info("No virtual threads in this JVM, each client has a platform thread");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Accept the clients, in the calling thread, until the server is closed
+	 *
+	 * @throws IOException
+	 */
+	public void launch() throws IOException {
+		try {
+			for (;;) {
+				SocketChannel sc = serverSocketChannel.accept();
+				BlockingContext context = new BlockingContext(this, sc);
+				clients.add(context);
+				executor.execute(context::serve);
+				executor.execute(context::write);
+			}
+		} catch (ClosedChannelException e) {
+			logger.info("Server stopped");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Handle a frame of ctxt, in the thread of ctxt. A PING is answered in any
+	 * state, but this engine has no timeouts and never sends one.
+	 *
+	 * @param msg
+	 * @param ctxt
+	 * @return false if ctxt broke the protocol and must be closed
+	 */
+	boolean handle(Message msg, BlockingContext ctxt) {
+		if (msg.indice == Message.PING || msg.indice == Message.PONG) {
+			if (msg.indice == Message.PING)
+				ctxt.send(Message.createBattement(Message.PONG, msg.getIdenticationCode()));
+			return true;
+		}
+		if (ctxt.name == null)
+			return login(msg, ctxt);
+		switch (msg.indice) {
+		case Message.ENVOIE_MESSAGE_PUBLIC:
+			fanOut(Message.createNomMessage(ctxt.name, msg.getMessage()));
+			return true;
+
+		case Message.DEBUT_MESSAGE_PUBLIC:
+			return debutMessagePublic(msg, ctxt);
+
+		case Message.FRAGMENT_MESSAGE_PUBLIC:
+			return fragmentMessagePublic(msg, ctxt);
+
+		case Message.REJOINDRE_SALON:
+			rejoindreSalon(msg.getSalon(), ctxt);
+			return true;
+
+		case Message.QUITTER_SALON:
+			quitterSalon(msg.getSalon(), ctxt);
+			return true;
+
+		case Message.ENVOIE_MESSAGE_SALON:
+			messageSalon(msg, ctxt);
+			return true;
+
+		case Message.DEMANDE_CONNEXION_PRIVEE_DU_CLIENT:
+			sendTo(msg.getNom(), Message.createNon(Message.DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR, ctxt.name));
+			return true;
+
+		case Message.ACCEPTE_LA_CONNEXION_PRIVEE_DU_CLIENT:
+			return connexionPrive(true, msg, ctxt);
+
+		case Message.REFUS_DE_CONNEXION_PRIVEE_DU_CLIENT:
+			return connexionPrive(false, msg, ctxt);
+
+		case Message.DEBUT_DE_FICHIER:
+			return debutFichier(msg, ctxt);
+
+		case Message.MORCEAU_DE_FICHIER:
+			return morceauFichier(msg, ctxt);
+
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * The password is checked in the thread of the client, which blocks only this
+	 * client. The streams are never compressed by this engine, the compression
+	 * asked is answered with the level 0. The name is set once the answer is
+	 * written: the other clients only write to the logged clients, so nothing is
+	 * written before LOGIN_ACCEPTED.
+	 */
+	private boolean login(Message msg, BlockingContext ctxt) {
+		boolean accepted;
+		switch (msg.indice) {
+		case Message.COMPRESSION:
+			ctxt.send(Message.createCompression(0));
+			return true;
+		case Message.CONNEXION_SANS_MDP:
+			accepted = !credentials.contains(msg.getNom()) && sessions.putIfAbsent(msg.getNom(), ctxt) == null;
+			break;
+		case Message.CONNEXION_AVEC_MDP:
+			accepted = credentials.check(msg.getNom(), msg.getPassWord())
+					&& sessions.putIfAbsent(msg.getNom(), ctxt) == null;
+			break;
+		default:
+			return false;
+		}
+		ctxt.send(Message.createValidationConnexion(accepted));
+		if (accepted)
+			ctxt.name = msg.getNom();
+		return true;
+	}
+
+	OutboundQueue.Policy policy(OutboundQueue.FrameClass frameClass) {
+		return policies[frameClass.ordinal()];
+	}
+
+	/**
+	 * Forget a closed client and release its name
+	 *
+	 * @param ctxt
+	 */
+	void logout(BlockingContext ctxt) {
+		clients.remove(ctxt);
+		if (ctxt.name != null)
+			sessions.remove(ctxt.name, ctxt);
+		for (String room : ctxt.rooms.toArray(new String[0]))
+			quitterSalon(room, ctxt);
+	}
+
+	/*
+	 * A room is created by its first member and removed with its last one, in the
+	 * compute of the map
+	 */
+	private void rejoindreSalon(String name, BlockingContext ctxt) {
+		if (ctxt.rooms.size() >= ServerChat.MAX_ROOMS || !ctxt.rooms.add(name))
+			return;
+		rooms.compute(name, (key, members) -> {
+			Set<BlockingContext> joined = members == null ? ConcurrentHashMap.newKeySet() : members;
+			joined.add(ctxt);
+			return joined;
+		});
+	}
+
+	private void quitterSalon(String name, BlockingContext ctxt) {
+		if (!ctxt.rooms.remove(name))
+			return;
+		rooms.computeIfPresent(name, (key, members) -> {
+			members.remove(ctxt);
+			return members.isEmpty() ? null : members;
+		});
+	}
+
+	private void messageSalon(Message msg, BlockingContext ctxt) {
+		if (!ctxt.rooms.contains(msg.getSalon()))
+			return;
+		Set<BlockingContext> members = rooms.get(msg.getSalon());
+		if (members == null)
+			return;
+		ByteBuffer frame = Message.createReceptionMessageSalon(msg.getSalon(), ctxt.name, msg.getMessage())
+				.getBuffer().asReadOnlyBuffer();
+		log.append(null, frame);
+		for (BlockingContext member : members)
+			if (member.isOpen() && member.name != null)
+				member.send(frame.duplicate());
+	}
+
+	/*
+	 * Write msg to every logged client, encoded once and shared by all the
+	 * recipients, as ServerChat.fanOut does
+	 */
+	private void fanOut(Message msg) {
+		ByteBuffer frame = msg.getBuffer().asReadOnlyBuffer();
+		log.append(null, frame);
+		for (BlockingContext client : clients)
+			if (client.isOpen() && client.name != null)
+				client.send(frame.duplicate());
+	}
+
+	private void sendTo(String name, Message msg) {
+		BlockingContext target = sessions.get(name);
+		if (target != null && target.isOpen() && target.name != null)
+			send(target, msg);
+	}
+
+	private void send(BlockingContext target, Message msg) {
+		log.append(target.name, msg);
+		target.send(msg);
+	}
+
+	private boolean connexionPrive(boolean b, Message msg, BlockingContext ctxt) {
+		// only answer a request the server really forwarded to ctxt
+		if (!ctxt.requests.remove(msg.getNom()))
+			return false;
+		sendTo(msg.getNom(), Message.createValidationConnexionPrive(b, ctxt.name, rad.nextLong()));
+		return true;
+	}
+
+	/*
+	 * As in ServerChat, the chunks of a file to an unknown recipient are counted
+	 * but dropped, and a client sending too many files at once, a chunk of a file
+	 * it did not announce or more bytes than announced is closed.
+	 */
+	private boolean debutFichier(Message msg, BlockingContext ctxt) {
+		if (ctxt.transferts.containsKey(msg.getIdTransfert())
+				|| ctxt.transferts.size() >= ServerChat.MAX_OPEN_TRANSFERS)
+			return false;
+		BlockingContext target = sessions.get(msg.getNom());
+		BlockingContext.Transfert transfert = new BlockingContext.Transfert(target, transferts.incrementAndGet(),
+				msg.getTaille());
+		if (transfert.remaining != 0)
+			ctxt.transferts.put(msg.getIdTransfert(), transfert);
+		if (target != null)
+			send(target, Message.createDebutFichier(ctxt.name, msg.getFile(), msg.getTaille(), transfert.id));
+		return true;
+	}
+
+	private boolean morceauFichier(Message msg, BlockingContext ctxt) {
+		BlockingContext.Transfert transfert = ctxt.transferts.get(msg.getIdTransfert());
+		ByteBuffer morceau = msg.getMorceau();
+		if (transfert == null || morceau.remaining() > transfert.remaining)
+			return false;
+		transfert.remaining -= morceau.remaining();
+		if (transfert.remaining == 0)
+			ctxt.transferts.remove(msg.getIdTransfert());
+		if (transfert.target != null && transfert.target.isOpen())
+			send(transfert.target, Message.createMorceauFichier(transfert.id, morceau));
+		return true;
+	}
+
+	private boolean debutMessagePublic(Message msg, BlockingContext ctxt) {
+		if (msg.getTaille() > ServerChat.MAX_PUBLIC_MESSAGE || ctxt.publics.containsKey(msg.getIdTransfert())
+				|| ctxt.publics.size() >= ServerChat.MAX_OPEN_PUBLIC_MESSAGES)
+			return false;
+		BlockingContext.Transfert transfert = new BlockingContext.Transfert(null, transferts.incrementAndGet(),
+				msg.getTaille());
+		ctxt.publics.put(msg.getIdTransfert(), transfert);
+		fanOut(Message.createDebutMessagePublic(ctxt.name, msg.getTaille(), transfert.id));
+		return true;
+	}
+
+	private boolean fragmentMessagePublic(Message msg, BlockingContext ctxt) {
+		BlockingContext.Transfert transfert = ctxt.publics.get(msg.getIdTransfert());
+		ByteBuffer fragment = msg.getMorceau();
+		if (transfert == null || fragment.remaining() > transfert.remaining)
+			return false;
+		transfert.remaining -= fragment.remaining();
+		if (transfert.remaining == 0)
+			ctxt.publics.remove(msg.getIdTransfert());
+		fanOut(Message.createFragmentMessagePublic(transfert.id, fragment));
+		return true;
+	}
+}
@@ -0,0 +1,100 @@
+package fr.upem.net.tcp.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import fr.upem.net.tcp.reader.TlsStream;
+
+/**
+ * Direct buffers of the same size lent to the Contexts of a reactor.
+ *
+ * The buffers are slices of large direct slabs, allocated when the pool runs
+ * dry until maxBuffers is reached; past it, heap buffers are lent and dropped
+ * when they are given back. Only the reactor thread uses its pools, so there
+ * is no synchronization, and the counters are read by ServerMetrics as the
+ * ones of Metrics.
+ */
+class BufferPool implements TlsStream.Buffers {
+
+	/* buffers carved from each slab */
+	static final int SLAB = 64;
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+	/* borrow served by a free buffer */
+	long hits;
+	/* borrow needing a new slab or a heap buffer */
+	long misses;
+	int inUse;
+	int allocated;
+	long grown;
+
+	BufferPool(int bufferSize, int maxBuffers) {
+		if (bufferSize <= 0 || maxBuffers < 0)
+			throw new IllegalArgumentException();
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+
+	int bufferSize() {
+		return bufferSize;
+	}
+
+	private void allocateSlab() {
+		int count = Math.min(SLAB, maxBuffers - allocated);
+		ByteBuffer slab = ByteBuffer.allocateDirect(count * bufferSize);
+		for (int i = 0; i < count; i++)
+			free.add(slab.slice(i * bufferSize, bufferSize));
+		allocated += count;
+	}
+
+	/**
+	 * @return a cleared buffer of bufferSize bytes, to give back with release
+	 */
+	@Override
+	public ByteBuffer borrow() {
+		inUse++;
+		ByteBuffer bb = free.poll();
+		if (bb != null) {
+			hits++;
+			return bb.clear();
+		}
+		misses++;
+		if (allocated < maxBuffers) {
+			allocateSlab();
+			return free.poll();
+		}
+		return ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Replace bb by a larger heap buffer holding the same bytes, bb being given
+	 * back to the pool. The larger buffer is only dropped by release.
+	 *
+	 * @param bb in write-mode
+	 * @param capacity
+	 * @return the larger buffer, in write-mode
+	 */
+	ByteBuffer grow(ByteBuffer bb, int capacity) {
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+		larger.put(bb.flip());
+		release(bb);
+		grown++;
+		return larger;
+	}
+
+	/**
+	 * @param bb a buffer returned by borrow or grow, which must not be used
+	 *           anymore
+	 */
+	@Override
+	public void release(ByteBuffer bb) {
+		if (bb.capacity() != bufferSize)
+			return;
+		inUse--;
+		if (bb.isDirect())
+			free.push(bb);
+	}
+}
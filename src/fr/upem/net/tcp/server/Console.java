@@ -1,42 +1,31 @@
 package fr.upem.net.tcp.server;
 
 import java.io.IOException;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
 import java.util.Objects;
 import java.util.Scanner;
-import java.util.function.Consumer;
 
 public class Console implements AutoCloseable {
 
-	private final ServerSocketChannel serverSocketChannel;
-	private final Selector selector;
-	private final Consumer<Selector> closedNow;
+	private final ServerChat server;
 	private Thread myThread;
 
-	private Console(ServerSocketChannel serverSocketChannel, Selector selector, Consumer<Selector> closedNow) {
-		this.serverSocketChannel = Objects.requireNonNull(serverSocketChannel);
-		this.selector = Objects.requireNonNull(selector);
-		this.closedNow = Objects.requireNonNull(closedNow);
+	private Console(ServerChat server) {
+		this.server = Objects.requireNonNull(server);
 	}
 
 	private void shutdown() throws IOException {
 		System.out.println("shutdown Ok.");
-		serverSocketChannel.close();
-		selector.wakeup();
+		server.shutdown();
 	}
 
 	private void shutdownNow() throws IOException {
 		System.out.println("shutdownnow Ok.");
 		shutdown();
-		closedNow.accept(selector);
-		selector.wakeup();
-
+		server.closeAll();
 	}
 
 	private void info() {
-		System.out.println(
-				"Number of customer is " + selector.keys().stream().filter(e -> e.attachment() != null).count() + ".");
+		System.out.println("Number of customer is " + server.clientCount() + ".");
 	}
 
 	private void run() {
@@ -50,6 +39,18 @@ public class Console implements AutoCloseable {
 				case "INFO":
 					info();
 					continue;
+				case "STATS":
+					System.out.println(server.metrics.format());
+					continue;
+				case "JOURNAL":
+					server.printJournal();
+					continue;
+				case "SLOW":
+					server.printSlowConsumers();
+					continue;
+				case "COMPRESSION":
+					server.printCompression();
+					continue;
 				case "SHUTDOWN":
 					shutdown();
 					break;
@@ -74,16 +75,13 @@ public class Console implements AutoCloseable {
 	/**
 	 * create Console
 	 *
-	 * @param serverSocketChannel
-	 * @param selector
-	 * @param closedNow
+	 * @param server
 	 *
 	 * @return Console
 	 *
 	 */
-	static public Console CreateConsole(ServerSocketChannel serverSocketChannel, Selector selector,
-			Consumer<Selector> closedNow) {
-		Console console = new Console(serverSocketChannel, selector, closedNow);
+	static public Console CreateConsole(ServerChat server) {
+		Console console = new Console(server);
 		console.myThread = new Thread(console::run);
 		console.myThread.start();
 		return console;
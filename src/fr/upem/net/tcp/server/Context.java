@@ -5,65 +5,188 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 
+import javax.net.ssl.SSLEngine;
+
+import fr.upem.net.tcp.reader.Compression;
 import fr.upem.net.tcp.reader.Message;
-import fr.upem.net.tcp.reader.MessageReader;
+import fr.upem.net.tcp.reader.FrameReader;
 import fr.upem.net.tcp.reader.Reader;
+import fr.upem.net.tcp.reader.TlsStream;
 
 class Context {
 
 	private enum State {
-		LOGIN, CONNECT, ERROR
+		LOGIN, AUTHENTICATION, CONNECT, ERROR
 	};
 
+	/**
+	 * A file sent by this client, relayed to target under the id known by target,
+	 * null for an unknown recipient, or a public message sent by fragments,
+	 * relayed to everyone
+	 */
+	static class Transfert {
+		final Context target;
+		final int id;
+		long remaining;
+
+		Transfert(Context target, int id, long remaining) {
+			this.target = target;
+			this.id = id;
+			this.remaining = remaining;
+		}
+	}
+
 	final private SelectionKey key;
 	final private SocketChannel sc;
-	final private ByteBuffer bbin = ByteBuffer.allocate(ServerChat.BUFFER_SIZE);
-	final private ByteBuffer bbout = ByteBuffer.allocate(ServerChat.BUFFER_SIZE);
+	/*
+	 * borrowed from the reactor while the input holds a partial frame, grown for
+	 * a frame larger than the pooled buffers
+	 */
+	private ByteBuffer bbin;
+	/* borrowed from the reactor while the output holds bytes not written */
+	private ByteBuffer bbout;
+	/*
+	 * the streams of the client once it negotiated the compression, the bytes
+	 * read wait in zin, borrowed from the reactor, to be inflated in bbin
+	 */
+	private Compression compression;
+	private ByteBuffer zin;
+	/* the bytes saved by the compression already added to the metrics */
+	private long savedReported;
+	/*
+	 * the TLS session below the streams, null if the server is in plaintext: the
+	 * bytes read are decrypted in bbin, or zin, and bbout is encrypted
+	 */
+	private final TlsStream tls;
+	private boolean handshakeReported;
 	final private ServerChat server;
-	final private Reader messageReader;
+	final Reactor reactor;
+	final private FrameReader messageReader = new FrameReader(ServerChat.MAX_FRAME_SIZE);
 	static final Logger logger = Logger.getLogger(Context.class.getName());
+	private static final AtomicInteger ids = new AtomicInteger();
+	private static final long LOGIN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerChat.LOGIN_TIMEOUT_MILLIS);
+	private static final long IDLE_PING_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerChat.IDLE_PING_MILLIS);
+	private static final long IDLE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerChat.IDLE_TIMEOUT_MILLIS);
+	/* a client staying over its budget is logged again after that */
+	private static final long RATE_WARNING_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	/* identifies the client in the journal */
+	final int id = ids.incrementAndGet();
 
 	final HashMap<String, Boolean> map = new HashMap<>();
+	final HashMap<Integer, Transfert> transferts = new HashMap<>();
+	/* the public messages this client is sending by fragments */
+	final HashMap<Integer, Transfert> publics = new HashMap<>();
+	/* the rooms this client joined */
+	final HashMap<String, Room> rooms = new HashMap<>();
+	/* the sequence of the last public message of the history replayed at login */
+	long replayed;
 	String name;
-	final Queue<Message> queue = new LinkedList<>();
+	final OutboundQueue queue = new OutboundQueue(ServerChat.OUT_HIGH_BYTES, ServerChat.OUT_LOW_BYTES,
+			ServerChat.OUT_HIGH_MESSAGES, ServerChat.OUT_LOW_MESSAGES);
+
+	/* the producers whose reading this slow consumer has paused */
+	final private HashSet<Context> pausedProducers = new HashSet<>();
+	/* the number of consumers pausing the reading of this context */
+	private int pauses;
+	/* how many times each policy fired because of this client */
+	final long[] slowConsumer = new long[OutboundQueue.Policy.values().length];
+	long droppedFrames;
 
 	private State state = State.LOGIN;
 	private boolean closed = false;
+	/* the compression can only be asked by the first frame */
+	private boolean firstFrame = true;
+	/* the frames queued wait for the reactor to flush this context */
+	private boolean flushPending;
+	/*
+	 * the login timeout, then the idle one once the client is logged: the reads
+	 * only note their time, the timer is scheduled again when it expires
+	 */
+	private final TimerWheel.Timer timer = new TimerWheel.Timer(this::timeout);
+	private long lastRead;
+	private long lastPing;
+	/*
+	 * the budgets of the frames read, null if none is limited: a client over
+	 * them is not read until throttleTimer expires
+	 */
+	private final InboundLimiter limiter;
+	private final TimerWheel.Timer throttleTimer = new TimerWheel.Timer(this::unthrottle);
+	private boolean throttled;
+	/* the last time the client was logged for going over its budget */
+	private long lastWarning;
+	private boolean warned;
 
-	Context(ServerChat server, SelectionKey key) {
+	Context(ServerChat server, Reactor reactor, SelectionKey key) {
 		this.key = key;
 		this.sc = (SocketChannel) key.channel();
 		this.server = server;
-		// TODO
-		messageReader = new MessageReader(bbin);
+		this.reactor = reactor;
+		if (server.tls != null) {
+			SSLEngine engine = server.tls.createSSLEngine();
+			engine.setUseClientMode(false);
+			tls = new TlsStream(engine, sc, reactor.tlsBuffers, server.tlsTasks(),
+					() -> reactor.execute(this::tlsTasksDone));
+		} else {
+			tls = null;
+		}
+		lastRead = lastPing = System.nanoTime();
+		limiter = server.inboundLimiter(lastRead);
+		if (LOGIN_TIMEOUT_NANOS > 0)
+			reactor.timers.schedule(timer, LOGIN_TIMEOUT_NANOS, lastRead);
 	}
 
 	/**
-	 * Process the content of bbin
+	 * Process the content of bbin, until every complete frame has been handled,
+	 * the password of the client is being checked or the client is over its
+	 * budget: the frame going over it is still handled, the ones after it wait
+	 * in bbin
 	 *
 	 * The convention is that bbin is in write-mode before the call to process and
 	 * after the call
 	 *
 	 */
 	private void processIn() {
-		// TODO
-		for (;;)
+		while (sc.isOpen() && !suspended())
 			switch (messageReader.process()) {
 			case DONE:
 				Message value = (Message) messageReader.get();
+				int size = messageReader.frameSize();
 				messageReader.reset();
+				reactor.metrics.frameIn(value.indice);
+				reactor.journal.record(Journal.Event.FRAME_IN, id, value.indice);
+				if (limiter != null && !charge(value.indice, size))
+					return;
+				boolean first = firstFrame;
+				firstFrame = false;
+				if (value.indice == Message.PING || value.indice == Message.PONG) {
+					heartbeat(value);
+					break;
+				}
 				switch (state) {
 				case LOGIN:
 					switch (value.indice) {
+					case Message.COMPRESSION:
+						if (!first || messageReader.hasPendingBytes() || (tls != null && tls.hasInput())) {
+							silentlyClose();
+							return;
+						}
+						compression(value.getNiveau());
+						break;
 					case Message.CONNEXION_SANS_MDP:
-						connexion(server.connexionSansMdp(value.getNom()), value.getNom());
+						connexion(server.connexionSansMdp(value.getNom(), this), value.getNom());
 						break;
 					case Message.CONNEXION_AVEC_MDP:
-						connexion(server.connexionAvecMdp(value.getNom(), value.getPassWord(), this), value.getNom());
+						if (server.connexionAvecMdp(value.getNom(), value.getPassWord(), this))
+							state = State.AUTHENTICATION;
+						else
+							connexion(false, value.getNom());
 						break;
 					default:
 						silentlyClose();
@@ -72,7 +195,7 @@ class Context {
 					break;
 
 				case CONNECT:
-					server.broadcast(Message.createNomMessage(value.getNom(), value.getMessage()), this);
+					server.broadcast(value, this);
 					break;
 
 				case ERROR:
@@ -81,7 +204,7 @@ class Context {
 					return;
 				}
 
-				return;
+				break;
 			case REFILL:
 				return;
 
@@ -93,100 +216,578 @@ class Context {
 			}
 	}
 
+	/*
+	 * Take the frame from the budgets of the client, and throttle it if it goes
+	 * over them
+	 *
+	 * @return false if the client was disconnected for it
+	 */
+	private boolean charge(int opcode, int size) {
+		long now = reactor.now();
+		long wait = limiter.charge(opcode, size, now);
+		if (wait == 0)
+			return true;
+		throttled = true;
+		reactor.metrics.throttles++;
+		switch (ServerChat.RATE_POLICY) {
+		case WARN:
+			if (!warned || now - lastWarning >= RATE_WARNING_NANOS) {
+				warned = true;
+				lastWarning = now;
+				reactor.metrics.rateWarnings++;
+				logger.warning("Client " + (name == null ? id : name) + " over its budget of "
+						+ InboundLimiter.FrameClass.of(opcode).name().toLowerCase() + " frames");
+			}
+			break;
+		case DISCONNECT:
+			logger.info("Client " + (name == null ? id : name) + " disconnected for going over its budget");
+			reactor.metrics.rateDisconnects++;
+			silentlyClose();
+			return false;
+		}
+		reactor.timers.schedule(throttleTimer, wait, now);
+		return true;
+	}
+
+	/* the budgets of the client are repaid, read it again */
+	private void unthrottle() {
+		if (!sc.isOpen())
+			return;
+		throttled = false;
+		processInput();
+	}
+
+	/* the frames received are not handled until the password is checked or the client is under its budget */
+	private boolean suspended() {
+		return state == State.AUTHENTICATION || throttled;
+	}
+
+	/**
+	 * Answer the compression asked by the client with the level granted, 0 if
+	 * none. The answer is the last frame written as is: the client waits for it
+	 * before sending anything else, and both streams are compressed after it.
+	 *
+	 * @param level the level asked by the client
+	 */
+	private void compression(int level) {
+		int granted = server.compressionLevel(level);
+		bbout = reactor.outputBuffers.borrow();
+		bbout.put(Message.createCompression(granted).getBuffer());
+		reactor.metrics.frameOut(Message.COMPRESSION, 0);
+		reactor.journal.record(Journal.Event.FRAME_OUT, id, Message.COMPRESSION);
+		if (granted != 0) {
+			compression = new Compression(granted);
+			server.compressionStarted(granted);
+		}
+		flushLater();
+	}
+
 	private void connexion(Boolean b, String name) {
 		if (b) {
 			state = State.CONNECT;
 			this.name = name;
-			queue.add(Message.createValidationConnexion(true));
-		} else
-			queue.add(Message.createValidationConnexion(false));
+			reactor.metrics.logins++;
+			scheduleIdle(System.nanoTime());
+			queueControl(Message.createValidationConnexion(true));
+			replayHistory();
+		} else {
+			queueControl(Message.createValidationConnexion(false));
+		}
+	}
+
+	/*
+	 * Answer a PING with the same token, in any state. A PONG has nothing to do:
+	 * reading it was enough to show that the client is alive.
+	 */
+	private void heartbeat(Message msg) {
+		if (msg.indice == Message.PONG)
+			return;
+		queueControl(Message.createBattement(Message.PONG, msg.getIdenticationCode()));
+	}
+
+	/*
+	 * A frame of the server itself, answering the client: it is the producer,
+	 * so the policies of the slow consumers do not apply. Once its queue is over
+	 * the high watermark the client pauses itself, as with PAUSE_PRODUCER, and
+	 * is not read until its queue is under the low one.
+	 */
+	private void queueControl(Message msg) {
+		queue.add(msg.getBuffer());
+		reactor.metrics.frameOut(msg.indice, queue.messages());
+		reactor.journal.record(Journal.Event.FRAME_OUT, id, msg.indice);
+		if (queue.overHigh() && pausedProducers.add(this)) {
+			slowConsumer[OutboundQueue.Policy.PAUSE_PRODUCER.ordinal()]++;
+			server.slowConsumer(OutboundQueue.Policy.PAUSE_PRODUCER);
+			pause();
+		}
+		flushLater();
+	}
+
+	/*
+	 * The timer expired. A client not logged in yet is closed. A logged client
+	 * is sent a PING each IDLE_PING it stays silent, and closed once silent for
+	 * IDLE_TIMEOUT; a client paused by a slow consumer or throttled is not read,
+	 * so it is not silent.
+	 */
+	private void timeout() {
+		if (!sc.isOpen())
+			return;
+		if (state != State.CONNECT) {
+			logger.info("Client " + id + " not logged in after " + ServerChat.LOGIN_TIMEOUT_MILLIS + " ms");
+			reactor.metrics.loginTimeouts++;
+			silentlyClose();
+			return;
+		}
+		long now = System.nanoTime();
+		if (pauses > 0 || throttled)
+			lastRead = now;
+		long idle = now - lastRead;
+		if (IDLE_TIMEOUT_NANOS > 0 && idle >= IDLE_TIMEOUT_NANOS) {
+			logger.info("Client " + name + " silent for " + TimeUnit.NANOSECONDS.toMillis(idle) + " ms");
+			reactor.metrics.idleTimeouts++;
+			silentlyClose();
+			return;
+		}
+		if (IDLE_PING_NANOS > 0 && now - lastActivity() >= IDLE_PING_NANOS) {
+			lastPing = now;
+			reactor.metrics.pings++;
+			queueControl(Message.createBattement(Message.PING, now));
+		}
+		scheduleIdle(now);
+	}
+
+	/* the last bytes read, or the last PING sent if the client did not answer it yet */
+	private long lastActivity() {
+		return lastPing - lastRead > 0 ? lastPing : lastRead;
+	}
+
+	/* schedule the timer for the next PING or the idle timeout, if any */
+	private void scheduleIdle(long now) {
+		long delay = Long.MAX_VALUE;
+		if (IDLE_PING_NANOS > 0)
+			delay = lastActivity() + IDLE_PING_NANOS - now;
+		if (IDLE_TIMEOUT_NANOS > 0)
+			delay = Math.min(delay, lastRead + IDLE_TIMEOUT_NANOS - now);
+		if (delay == Long.MAX_VALUE)
+			reactor.timers.cancel(timer);
+		else
+			reactor.timers.schedule(timer, delay, now);
+	}
+
+	/**
+	 * Complete the login once the authentication pool checked the password, and
+	 * resume the processing of the frames which followed it
+	 *
+	 * @param valid true if the password is the one of name
+	 * @param name
+	 */
+	void authenticated(boolean valid, String name) {
+		if (!sc.isOpen())
+			return;
+		state = State.LOGIN;
+		connexion(valid && server.login(name, this), name);
+		if (bbin != null || zin != null || (tls != null && tls.hasInput()))
+			processInput();
+		else
+			updateInterestOps();
+	}
+
+	/*
+	 * The history is queued as a single buffer of frames copied as they were
+	 * encoded, after LOGIN_ACCEPTED
+	 */
+	private void replayHistory() {
+		HistoryRing.Replay replay = server.history.replay();
+		replayed = replay.sequence;
+		if (replay.count == 0)
+			return;
+		queue.add(replay.frames);
+		for (int i = 0; i < replay.count; i++)
+			reactor.metrics.frameOut(Message.RECEPTION_MESSAGE_PUBLIC, queue.messages());
+		reactor.journal.record(Journal.Event.FRAME_OUT, id, Message.RECEPTION_MESSAGE_PUBLIC);
 	}
 
 	/**
-	 * Add a message to the message queue, tries to fill bbOut and updateInterestOps
+	 * Add a message to the message queue
 	 *
 	 * @param msg
+	 * @param producer the client whose frame caused msg
 	 */
-	void queueMessage(Message msg) {
+	void queueMessage(Message msg, Context producer) {
 		if(msg.indice==Message.DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR)
 			map.put(msg.getNom(), true);
-		queue.add(msg);
-		processOut();
-		updateInterestOps();
+		queueFrame(msg.getBuffer(), producer);
 	}
 
 	/**
-	 * Try to fill bbout from the message queue
+	 * Add an already encoded frame to the message queue, written when the
+	 * reactor flushes this Context
 	 *
+	 * The frame is written as is, without copy: it may be a duplicate of a buffer
+	 * shared with other Contexts, only its position is changed. If the queue goes
+	 * over its high watermark, the policy of the server for the class of the
+	 * frame is applied.
+	 *
+	 * @param frame in read-mode
+	 * @param producer the client whose frame caused this one
 	 */
-	private void processOut() {
-		// TODO
-		while (!queue.isEmpty() && bbout.remaining() >= Integer.BYTES) {
-			bbout.put(queue.remove().getBuffer());
+	void queueFrame(ByteBuffer frame, Context producer) {
+		queueFrame(frame, null, producer);
+	}
+
+	/**
+	 * Add an already encoded frame, with the blocks of this frame deflated once
+	 * for each level in use, appended as is to a compressed stream
+	 *
+	 * @param frame    in read-mode
+	 * @param deflated the blocks by level, null if the frame was not deflated
+	 * @param producer the client whose frame caused this one
+	 */
+	void queueFrame(ByteBuffer frame, ByteBuffer[] deflated, Context producer) {
+		if (compression != null && deflated != null)
+			queue.add(frame, deflated);
+		else
+			queue.add(frame);
+		reactor.metrics.frameOut(frame.getInt(0), queue.messages());
+		reactor.journal.record(Journal.Event.FRAME_OUT, id, frame.getInt(0));
+		if (queue.overHigh()) {
+			OutboundQueue.Policy policy = server.policy(OutboundQueue.FrameClass.of(frame));
+			slowConsumer[policy.ordinal()]++;
+			server.slowConsumer(policy);
+			switch (policy) {
+			case DROP_OLDEST:
+				droppedFrames += queue.dropOldestPublic();
+				break;
+			case DISCONNECT:
+				logger.info("Slow consumer " + name + " disconnected with " + queue.bytes() + " bytes queued");
+				silentlyClose();
+				return;
+			case PAUSE_PRODUCER:
+				if (pausedProducers.add(producer))
+					producer.reactor.execute(producer::pause);
+				break;
+			}
 		}
+		flushLater();
+	}
+
+	private void flushLater() {
+		if (flushPending)
+			return;
+		flushPending = true;
+		reactor.flushLater(this);
+	}
+
+	/**
+	 * Write the frames queued during the round right away, without waiting for
+	 * OP_WRITE, unless a previous write is still waiting for it
+	 */
+	void flush() {
+		flushPending = false;
+		if (!sc.isOpen())
+			return;
+		if (bbout != null || (tls != null && tls.hasOutput()) || !hasOutput()) {
+			updateInterestOps();
+			return;
+		}
+		try {
+			doWrite();
+		} catch (IOException e) {
+			logger.info("Connection closed with " + name + " during a write");
+			silentlyClose();
+		}
+	}
+
+	/**
+	 * Stop reading from this client until every consumer it paused resumes it
+	 */
+	void pause() {
+		pauses++;
+		updateInterestOps();
+	}
+
+	void resume() {
+		pauses--;
+		updateInterestOps();
+	}
+
+	private void resumeProducers() {
+		for (Context producer : pausedProducers)
+			producer.reactor.execute(producer::resume);
+		pausedProducers.clear();
 	}
 
 	/**
 	 * Update the interestOps of the key looking only at values of the boolean
-	 * closed and of both ByteBuffers.
+	 * closed, of bbin, of the frame queue and of the state: nothing is read while
+	 * the password is being checked or the client is throttled. The frames
+	 * waiting for a flush do not ask for OP_WRITE, only the bytes of a write not
+	 * completed do. Nothing is read or written while the tasks of the TLS
+	 * handshake run.
 	 *
-	 * The convention is that both buffers are in write-mode before the call to
+	 * The convention is that bbin is in write-mode before the call to
 	 * updateInterestOps and after the call. Also it is assumed that process has
 	 * been be called just before updateInterestOps.
 	 */
 
 	private void updateInterestOps() {
+		if (!key.isValid())
+			return;
 		int newInterestOps = 0;
-		if (bbin.hasRemaining() && !closed)
+		boolean suspended = suspended();
+		boolean handshakeTasks = tls != null && tls.isBusy();
+		ByteBuffer input = compression == null ? bbin : zin;
+		if ((input == null || input.hasRemaining()) && !closed && pauses == 0 && !suspended && !handshakeTasks)
 			newInterestOps |= SelectionKey.OP_READ;
-		if (bbout.position() != 0 || !queue.isEmpty())
+		if ((bbout != null || (hasOutput() && !flushPending) || (tls != null && tls.hasOutput())) && !handshakeTasks)
 			newInterestOps |= SelectionKey.OP_WRITE;
-		if (newInterestOps == 0) {
+		if (newInterestOps == 0 && pauses == 0 && !suspended && !flushPending && !handshakeTasks) {
 			silentlyClose();
 		} else {
 			key.interestOps(newInterestOps);
 		}
 	}
 
+	/* the frames queued, and the bytes the deflater holds until its next flush */
+	private boolean hasOutput() {
+		return !queue.isEmpty() || (compression != null && compression.isPending());
+	}
+
+	boolean isOpen() {
+		return sc.isOpen();
+	}
+
+	/**
+	 * @return the streams of the client if they are compressed, only to be used
+	 *         in the thread of the reactor
+	 */
+	Compression compression() {
+		return compression;
+	}
+
 	void silentlyClose() {
+		if (!sc.isOpen())
+			return;
+		if (tls != null)
+			tls.close();
+		reactor.timers.cancel(timer);
+		reactor.timers.cancel(throttleTimer);
 		try {
 			sc.close();
 		} catch (IOException e) {
 			// ignore exception
 		}
+		reactor.clients--;
+		reactor.journal.record(Journal.Event.CLOSE, id, 0);
+		server.logout(this);
+		resumeProducers();
+		if (bbin != null) {
+			bbin.clear();
+			messageReader.setBuffer(null);
+			reactor.inputBuffers.release(bbin);
+			bbin = null;
+		}
+		if (bbout != null) {
+			reactor.outputBuffers.release(bbout);
+			bbout = null;
+		}
+		if (zin != null) {
+			reactor.inputBuffers.release(zin);
+			zin = null;
+		}
+		if (compression != null) {
+			reportSaved();
+			server.compressionEnded(compression.level());
+			compression.end();
+		}
 	}
 
 	/**
 	 * Performs the read action on sc
 	 *
-	 * The convention is that both buffers are in write-mode before the call to
-	 * doRead and after the call
+	 * The convention is that bbin is in write-mode before the call to doRead and
+	 * after the call. bbin is borrowed from the reactor for the read, and given
+	 * back if every frame in it has been handled. A compressed stream is read
+	 * in zin and inflated in bbin. A TLS session is decrypted in them, the
+	 * bytes counted are the ones of the records.
 	 *
 	 * @throws IOException
 	 */
 	void doRead() throws IOException {
-		if (sc.read(bbin) == -1) {
-			System.out.println("Oups");
+		ByteBuffer input = input();
+		int read = tls == null ? sc.read(input) : tls.read(input);
+		reactor.journal.record(Journal.Event.READ, id, read);
+		if (read == -1)
 			closed = true;
+		else
+			reactor.metrics.bytesIn += read;
+		if (read > 0)
+			lastRead = reactor.now();
+		processInput();
+	}
+
+	/* the buffer the bytes read go to, borrowed from the reactor */
+	private ByteBuffer input() {
+		if (compression != null) {
+			if (zin == null)
+				zin = reactor.inputBuffers.borrow();
+			return zin;
+		}
+		if (bbin == null) {
+			bbin = reactor.inputBuffers.borrow();
+			messageReader.setBuffer(bbin);
 		}
-		processIn();
+		return bbin;
+	}
+
+	/*
+	 * Handle the frames in bbin, then give bbin back if it is empty or grow it if
+	 * it is full of the beginning of a frame. A compressed stream is inflated in
+	 * bbin again as long as the inflated bytes fill it, and the records of a TLS
+	 * session decrypted again as long as they hold plaintext: the selector does
+	 * not see the bytes already read.
+	 */
+	private void processInput() {
+		boolean more;
+		do {
+			more = compression != null && inflateInput();
+			if (bbin != null)
+				processIn();
+			if (!sc.isOpen())
+				return;
+			if (bbin != null && bbin.position() == 0) {
+				messageReader.setBuffer(null);
+				reactor.inputBuffers.release(bbin);
+				bbin = null;
+			} else if (bbin != null && !bbin.hasRemaining() && !suspended()) {
+				growInput();
+			}
+			if (!more && tls != null && tls.hasInput() && !suspended())
+				more = drainTls();
+		} while (more && sc.isOpen() && !suspended());
+		if (tls != null && !handshakeReported && tls.isEstablished())
+			reportHandshake();
 		updateInterestOps();
 	}
 
+	private boolean drainTls() {
+		try {
+			return tls.drain(input()) > 0;
+		} catch (IOException e) {
+			logger.info("Broken TLS session with " + name);
+			silentlyClose();
+			return false;
+		}
+	}
+
+	private void reportHandshake() {
+		handshakeReported = true;
+		reactor.metrics.tlsHandshakes++;
+		reactor.metrics.tlsHandshakeNanos += tls.handshakeNanos();
+		if (tls.isResumed())
+			reactor.metrics.tlsResumed++;
+	}
+
+	/*
+	 * Go on with the TLS handshake once its tasks ran on the pool, in the thread
+	 * of the reactor
+	 */
+	private void tlsTasksDone() {
+		if (!sc.isOpen())
+			return;
+		try {
+			tls.proceed();
+		} catch (IOException e) {
+			logger.info("TLS handshake failed with client " + id + ": " + e.getMessage());
+			silentlyClose();
+			return;
+		}
+		processInput();
+	}
+
+	/*
+	 * Inflate zin in bbin and give zin back once every byte of it is taken. The
+	 * inflater may hold more bytes than bbin could take.
+	 *
+	 * @return true if bbin was filled, false if everything read was inflated or
+	 * the stream is broken
+	 */
+	private boolean inflateInput() {
+		if (bbin == null) {
+			bbin = reactor.inputBuffers.borrow();
+			messageReader.setBuffer(bbin);
+		}
+		if (zin != null)
+			zin.flip();
+		try {
+			compression.inflate(zin, bbin);
+		} catch (DataFormatException e) {
+			logger.info("Broken compressed stream from " + name);
+			silentlyClose();
+			return false;
+		}
+		if (zin != null && !zin.hasRemaining()) {
+			reactor.inputBuffers.release(zin);
+			zin = null;
+		} else if (zin != null) {
+			zin.compact();
+		}
+		reportSaved();
+		return !bbin.hasRemaining();
+	}
+
+	private void reportSaved() {
+		long saved = compression.saved();
+		reactor.metrics.compressionSaved += saved - savedReported;
+		savedReported = saved;
+	}
+
+	/**
+	 * Double the capacity of bbin, full of the beginning of a frame. FrameReader
+	 * already checked that the frame is at most MAX_FRAME_SIZE bytes, so bbin
+	 * can hold it. The grown buffer is dropped once empty.
+	 */
+	private void growInput() {
+		if (bbin.capacity() >= ServerChat.MAX_FRAME_SIZE) {
+			silentlyClose();
+			return;
+		}
+		bbin = reactor.inputBuffers.grow(bbin, Math.min(2 * bbin.capacity(), ServerChat.MAX_FRAME_SIZE));
+		messageReader.setBuffer(bbin);
+	}
+
 	/**
 	 * Performs the write action on sc
 	 *
-	 * The convention is that both buffers are in write-mode before the call to
-	 * doWrite and after the call
+	 * The head of the frame queue is copied in bbout, borrowed from the reactor,
+	 * and flushed with a single write from this direct buffer. bbout is kept
+	 * with the bytes not written for the next call, and given back once empty.
+	 * The queue of a compressed client is deflated in bbout.
 	 *
 	 * @throws IOException
 	 */
 
 	void doWrite() throws IOException {
+		if (bbout == null)
+			bbout = reactor.outputBuffers.borrow();
+		if (compression != null) {
+			queue.deflateTo(compression, bbout);
+			reportSaved();
+		} else {
+			queue.drainTo(bbout);
+		}
 		bbout.flip();
-		sc.write(bbout);
+		int written = tls == null ? sc.write(bbout) : tls.write(bbout);
 		bbout.compact();
-		processOut();
+		if (bbout.position() == 0) {
+			reactor.outputBuffers.release(bbout);
+			bbout = null;
+		}
+		reactor.metrics.bytesOut += written;
+		reactor.metrics.writes++;
+		reactor.journal.record(Journal.Event.WRITE, id, written);
+		if (!pausedProducers.isEmpty() && queue.underLow())
+			resumeProducers();
 		updateInterestOps();
 	}
 
@@ -0,0 +1,131 @@
+package fr.upem.net.tcp.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last public messages, kept encoded to be replayed to the clients which
+ * log in.
+ *
+ * The frames are copied in an arena allocated once and located by a ring of
+ * offsets, so the history never allocates after its creation: a new frame
+ * evicts the oldest ones until it fits, keeping at most count frames and
+ * capacity bytes. It is shared by the reactors, its methods are synchronized.
+ *
+ * Each frame added gets a sequence number, and a replay tells the last one it
+ * contains, so that a frame both replayed and fanned out is queued only once.
+ */
+class HistoryRing {
+
+	/**
+	 * The frames of the history copied in a single buffer, in read-mode
+	 */
+	static class Replay {
+		final ByteBuffer frames;
+		final int count;
+		final long sequence;
+
+		Replay(ByteBuffer frames, int count, long sequence) {
+			this.frames = frames;
+			this.count = count;
+			this.sequence = sequence;
+		}
+	}
+
+	/* the sequence of the frames which are not kept, fanned out to everyone */
+	static final long NOT_KEPT = Long.MAX_VALUE;
+
+	private final ByteBuffer arena;
+	private final int[] offsets;
+	private final int[] lengths;
+	/* the oldest frame in the ring */
+	private int head;
+	private int size;
+	/* where the newest frame ends in the arena */
+	private int end;
+	private int bytes;
+	private long sequence;
+
+	/**
+	 * @param count    the frames kept, 0 to keep none
+	 * @param capacity the bytes kept
+	 */
+	HistoryRing(int count, int capacity) {
+		if (count < 0 || capacity < 0)
+			throw new IllegalArgumentException("negative history");
+		arena = ByteBuffer.allocate(count == 0 ? 0 : capacity);
+		offsets = new int[count];
+		lengths = new int[count];
+	}
+
+	private void evict() {
+		bytes -= lengths[head];
+		head = (head + 1) % offsets.length;
+		size--;
+	}
+
+	/*
+	 * The free space is after the newest frame, up to the end of the arena or up
+	 * to the oldest frame when the frames wrap around the arena
+	 */
+	private int place(int length) {
+		for (;;) {
+			if (size == 0)
+				return 0;
+			int oldest = offsets[head];
+			if (end > oldest) {
+				if (end + length <= arena.capacity())
+					return end;
+				if (length <= oldest)
+					return 0;
+			} else if (end + length <= oldest) {
+				return end;
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * Copy a frame in the history, evicting the oldest ones
+	 *
+	 * @param frame in read-mode, left unchanged
+	 * @return the sequence of the frame, NOT_KEPT if it is larger than the
+	 *         history
+	 */
+	synchronized long add(ByteBuffer frame) {
+		int length = frame.remaining();
+		if (offsets.length == 0 || length > arena.capacity())
+			return NOT_KEPT;
+		if (size == offsets.length)
+			evict();
+		int offset = place(length);
+		arena.put(offset, frame, frame.position(), length);
+		int tail = (head + size) % offsets.length;
+		offsets[tail] = offset;
+		lengths[tail] = length;
+		size++;
+		end = offset + length;
+		bytes += length;
+		return ++sequence;
+	}
+
+	/**
+	 * @return a copy of the frames of the history, oldest first
+	 */
+	synchronized Replay replay() {
+		ByteBuffer frames = ByteBuffer.allocate(bytes);
+		for (int i = 0; i < size; i++) {
+			int index = (head + i) % offsets.length;
+			frames.put(frames.position(), arena, offsets[index], lengths[index]);
+			frames.position(frames.position() + lengths[index]);
+		}
+		return new Replay(frames.flip(), size, sequence);
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	synchronized int bytes() {
+		return bytes;
+	}
+}
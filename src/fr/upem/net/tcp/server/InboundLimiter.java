@@ -0,0 +1,122 @@
+package fr.upem.net.tcp.server;
+
+import java.util.Arrays;
+
+import fr.upem.net.tcp.reader.Message;
+
+/**
+ * The token buckets of the frames read from a client, one for the frames and
+ * one for their bytes in each class of frames.
+ *
+ * A bucket holds at most burstSeconds of its rate and is refilled with the
+ * time elapsed when a frame of its class is charged. The frame is always
+ * charged, a bucket may go into debt: the client is not read anymore until
+ * the buckets of the class are repaid, so the frames already received are not
+ * buffered, TCP pushes back. Only the buckets of the class charged may be in
+ * debt then. A rate of 0 is no limit.
+ */
+class InboundLimiter {
+
+	/**
+	 * The classes of the frames read, each one with its own budget
+	 */
+	enum FrameClass {
+		/* the frames fanned out to the other clients */
+		PUBLIC(100, 256 << 10),
+		FILE(0, 8 << 20),
+		CONTROL(50, 0);
+
+		final long defaultMessages;
+		final long defaultBytes;
+
+		FrameClass(long defaultMessages, long defaultBytes) {
+			this.defaultMessages = defaultMessages;
+			this.defaultBytes = defaultBytes;
+		}
+
+		/**
+		 * @param opcode the opcode of a frame sent by a client
+		 * @return the class of the frame
+		 */
+		static FrameClass of(int opcode) {
+			switch (opcode) {
+			case Message.ENVOIE_MESSAGE_PUBLIC:
+			case Message.DEBUT_MESSAGE_PUBLIC:
+			case Message.FRAGMENT_MESSAGE_PUBLIC:
+			case Message.ENVOIE_MESSAGE_SALON:
+				return PUBLIC;
+			case Message.DEBUT_DE_FICHIER:
+			case Message.MORCEAU_DE_FICHIER:
+				return FILE;
+			default:
+				return CONTROL;
+			}
+		}
+	}
+
+	/**
+	 * What the server does, besides not reading, when a frame puts a client over
+	 * its budget
+	 */
+	enum Policy {
+		/* nothing, the client is only read more slowly */
+		THROTTLE,
+		/* log the client, at most every 10 seconds while it stays over */
+		WARN,
+		/* close the connection with the client */
+		DISCONNECT
+	}
+
+	/* the rates of the frames then of the bytes of each class, shared by the limiters */
+	private final long[] rates;
+	private final double burstSeconds;
+	/* the tokens of the buckets, in the order of the rates */
+	private final double[] tokens;
+	/* the last refill of the buckets of each class */
+	private final long[] last;
+
+	/**
+	 * @param rates        the frames then the bytes per second of each class, by
+	 *                     ordinal
+	 * @param burstSeconds
+	 * @param now          the current System.nanoTime(), the buckets are full
+	 */
+	InboundLimiter(long[] rates, double burstSeconds, long now) {
+		this.rates = rates;
+		this.burstSeconds = burstSeconds;
+		tokens = new double[rates.length];
+		for (int i = 0; i < rates.length; i++)
+			tokens[i] = capacity(rates[i]);
+		last = new long[rates.length / 2];
+		Arrays.fill(last, now);
+	}
+
+	private double capacity(long perSecond) {
+		return Math.max(1, perSecond * burstSeconds);
+	}
+
+	/**
+	 * Take a frame and its bytes from the buckets of its class
+	 *
+	 * @param opcode
+	 * @param bytes
+	 * @param now    the current System.nanoTime()
+	 * @return the nanoseconds until the buckets of the class are repaid, 0 if
+	 *         none is in debt
+	 */
+	long charge(int opcode, int bytes, long now) {
+		int frameClass = FrameClass.of(opcode).ordinal();
+		double elapsed = (now - last[frameClass]) / 1e9;
+		last[frameClass] = now;
+		return Math.max(refill(2 * frameClass, elapsed, 1), refill(2 * frameClass + 1, elapsed, bytes));
+	}
+
+	/* refill the bucket i and take taken tokens from it, the debt left in nanoseconds */
+	private long refill(int i, double elapsed, int taken) {
+		long perSecond = rates[i];
+		if (perSecond <= 0)
+			return 0;
+		tokens[i] = Math.min(capacity(perSecond), tokens[i] + elapsed * perSecond) - taken;
+		return tokens[i] >= 0 ? 0 : (long) Math.ceil(-tokens[i] / perSecond * 1e9);
+	}
+}
@@ -0,0 +1,96 @@
+package fr.upem.net.tcp.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A preallocated ring of the last events of a reactor, replacing the debug
+ * prints of the select loop.
+ *
+ * Only the reactor thread records in its journal, so recording is a few array
+ * stores without synchronization. The journal is disabled unless its capacity
+ * is set with -Dchathack.journal=N; recording then returns at once on a
+ * constant the JIT folds away.
+ */
+class Journal {
+
+	enum Event {
+		ACCEPT, READ, WRITE, CLOSE, FRAME_IN, FRAME_OUT
+	}
+
+	private static final Event[] EVENTS = Event.values();
+
+	/* rounded up to a power of two */
+	static final int CAPACITY = capacity(Integer.getInteger("chathack.journal", 0));
+	static final boolean ENABLED = CAPACITY > 0;
+
+	/**
+	 * An event copied out of the ring
+	 */
+	static class Entry {
+		final String reactor;
+		final long time;
+		final Event event;
+		final int context;
+		final long value;
+
+		Entry(String reactor, long time, Event event, int context, long value) {
+			this.reactor = reactor;
+			this.time = time;
+			this.event = event;
+			this.context = context;
+			this.value = value;
+		}
+
+		@Override
+		public String toString() {
+			return reactor + " #" + context + " " + event + " " + value;
+		}
+	}
+
+	private final long[] times = new long[CAPACITY];
+	private final byte[] events = new byte[CAPACITY];
+	private final int[] contexts = new int[CAPACITY];
+	private final long[] values = new long[CAPACITY];
+	private long next;
+
+	private static int capacity(int requested) {
+		if (requested <= 0)
+			return 0;
+		int capacity = Integer.highestOneBit(requested);
+		return capacity == requested ? capacity : capacity << 1;
+	}
+
+	/**
+	 * @param event
+	 * @param context the id of the Context
+	 * @param value the number of bytes for READ and WRITE, the opcode for the
+	 *              frames
+	 */
+	void record(Event event, int context, long value) {
+		if (!ENABLED)
+			return;
+		int i = (int) (next++ & (CAPACITY - 1));
+		times[i] = System.nanoTime();
+		events[i] = (byte) event.ordinal();
+		contexts[i] = context;
+		values[i] = value;
+	}
+
+	/**
+	 * Copy the events of the ring, oldest first, must be called from the reactor
+	 * thread
+	 *
+	 * @param reactor the name of the reactor, for the entries
+	 * @return the events
+	 */
+	List<Entry> snapshot(String reactor) {
+		long first = Math.max(0, next - CAPACITY);
+		List<Entry> entries = new ArrayList<>((int) (next - first));
+		for (long n = first; n < next; n++) {
+			int i = (int) (n & (CAPACITY - 1));
+			entries.add(new Entry(reactor, times[i], EVENTS[events[i]], contexts[i], values[i]));
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,418 @@
+package fr.upem.net.tcp.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import fr.upem.net.tcp.reader.FrameReader;
+import fr.upem.net.tcp.reader.Message;
+import fr.upem.net.tcp.reader.Reader;
+
+/**
+ * The frames relayed by the server, appended to segment files mapped in memory
+ * for the audits, enabled with -Dchathack.log=directory.
+ *
+ * The threads of the server only hand the frames to a bounded queue, a frame
+ * is dropped and counted rather than waiting when it is full. A single writer
+ * thread copies them in the current segment, created with its full size and
+ * mapped once, and forces the new records to the disk in groups: the first
+ * record not forced waits at most chathack.log.syncMillis, all the records
+ * appended meanwhile are forced with it. A segment is rolled when it is full
+ * or older than chathack.log.rollMinutes, then the oldest segments are deleted
+ * past chathack.log.retainBytes or chathack.log.retainHours.
+ *
+ * Segment layout, big-endian, in files named by their creation time:
+ *
+ * <pre>
+ * header : int MAGIC, int VERSION
+ * record : int size, int crc, long time, short length, recipient in UTF-8, frame
+ * </pre>
+ *
+ * The size counts the bytes after the crc, a CRC32C of them. It is written
+ * last, so the records of a segment end at the first size of 0, or at the
+ * first bad crc after a crash. The recipient is empty for the frames sent to
+ * every client or to a room.
+ */
+public class MessageLog {
+
+	static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+
+	private static final int MAGIC = 0x43484d4c; // CHML
+	private static final int VERSION = 1;
+	private static final int HEADER = 2 * Integer.BYTES;
+	private static final int RECORD_HEADER = 2 * Integer.BYTES + Long.BYTES + Short.BYTES;
+	private static final String SUFFIX = ".log";
+
+	static final long SEGMENT_BYTES = Long.getLong("chathack.log.segmentBytes", 64 << 20);
+	static final long SYNC_MILLIS = Long.getLong("chathack.log.syncMillis", 100);
+	static final long ROLL_MINUTES = Long.getLong("chathack.log.rollMinutes", 60);
+	static final long RETAIN_BYTES = Long.getLong("chathack.log.retainBytes", 1L << 30);
+	static final long RETAIN_HOURS = Long.getLong("chathack.log.retainHours", 7 * 24);
+	static final int QUEUE = Integer.getInteger("chathack.log.queue", 1 << 16);
+	/* the records copied between two checks of the sync and roll deadlines */
+	private static final int BATCH = 256;
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * A frame handed to the writer, encoded by the writer when it is given as a
+	 * Message
+	 */
+	private static class Record {
+		final long time;
+		final String recipient;
+		final ByteBuffer frame;
+		final Message message;
+
+		Record(String recipient, ByteBuffer frame, Message message) {
+			this.time = System.currentTimeMillis();
+			this.recipient = recipient;
+			this.frame = frame;
+			this.message = message;
+		}
+	}
+
+	private final Path directory;
+	private final ArrayBlockingQueue<Record> queue;
+	private final Thread writer;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean closing;
+
+	/* only used by the writer thread */
+	private final CRC32C crc = new CRC32C();
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+	private Path current;
+	private long rollDeadline;
+	private int forced;
+	private long syncDeadline;
+
+	/* written by the writer thread, read by the metrics */
+	private volatile long records;
+	private volatile long bytes;
+	private volatile long syncs;
+
+	private MessageLog(Path directory) {
+		this.directory = directory;
+		if (directory == null) {
+			queue = null;
+			writer = null;
+			return;
+		}
+		queue = new ArrayBlockingQueue<>(QUEUE);
+		writer = new Thread(this::run, "message-log");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * @return a log which drops every frame without counting them
+	 */
+	static MessageLog disabled() {
+		return new MessageLog(null);
+	}
+
+	/**
+	 * Start a log in a new segment of directory, created if needed, next to the
+	 * segments of the previous runs. The records waiting for the writer are
+	 * forced when the JVM exits.
+	 *
+	 * @param directory
+	 * @return the log
+	 * @throws IOException
+	 */
+	static MessageLog open(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		MessageLog log = new MessageLog(directory);
+		log.roll(HEADER);
+		log.writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(log::close, "message-log-close"));
+		return log;
+	}
+
+	boolean isEnabled() {
+		return writer != null;
+	}
+
+	/**
+	 * Hand an encoded frame to the writer, without blocking
+	 *
+	 * @param recipient the client the frame is sent to, null for every client or
+	 *                  a room
+	 * @param frame     in read-mode, never changed afterwards
+	 */
+	void append(String recipient, ByteBuffer frame) {
+		if (writer != null && !queue.offer(new Record(recipient, frame.asReadOnlyBuffer(), null)))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * Hand a frame to the writer, which encodes it, without blocking
+	 *
+	 * @param recipient the client the frame is sent to
+	 * @param msg
+	 */
+	void append(String recipient, Message msg) {
+		if (writer != null && !queue.offer(new Record(recipient, null, msg)))
+			dropped.incrementAndGet();
+	}
+
+	private static String segmentFile(long name) {
+		return String.format("%020d", name) + SUFFIX;
+	}
+
+	private static List<Path> segments(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().matches("\\d{20}\\" + SUFFIX)).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	/*
+	 * Force the current segment and truncate it after its last record, or delete
+	 * it if it has none
+	 */
+	private void closeSegment() throws IOException {
+		sync();
+		int end = segment.position();
+		segment = null;
+		channel.truncate(end);
+		channel.close();
+		channel = null;
+		if (end == HEADER)
+			Files.delete(current);
+	}
+
+	/*
+	 * Close the current segment and start one which holds at least a record of
+	 * size bytes
+	 */
+	private void roll(int size) throws IOException {
+		if (channel != null)
+			closeSegment();
+		List<Path> previous = segments(directory);
+		long last = previous.isEmpty() ? 0
+				: Long.parseLong(previous.get(previous.size() - 1).getFileName().toString().replace(SUFFIX, ""));
+		current = directory.resolve(segmentFile(Math.max(last + 1, System.currentTimeMillis())));
+		channel = FileChannel.open(current, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(SEGMENT_BYTES, HEADER + (long) size));
+		segment.putInt(MAGIC).putInt(VERSION);
+		segment.force(0, HEADER);
+		forced = HEADER;
+		rollDeadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(ROLL_MINUTES);
+		retain();
+	}
+
+	/* an idle segment is kept, only the retention is applied */
+	private void rollIfUsed() throws IOException {
+		if (segment.position() > HEADER) {
+			roll(HEADER);
+			return;
+		}
+		rollDeadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(ROLL_MINUTES);
+		retain();
+	}
+
+	/* delete the oldest closed segments past the retention */
+	private void retain() throws IOException {
+		List<Path> closed = segments(directory);
+		closed.remove(closed.size() - 1);
+		long total = segment.position();
+		for (Path file : closed)
+			total += Files.size(file);
+		long oldest = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(RETAIN_HOURS);
+		for (Path file : closed) {
+			if (total <= RETAIN_BYTES && Files.getLastModifiedTime(file).toMillis() >= oldest)
+				break;
+			total -= Files.size(file);
+			Files.delete(file);
+			logger.info("Segment " + file.getFileName() + " deleted");
+		}
+	}
+
+	private void write(Record record) throws IOException {
+		ByteBuffer frame = record.frame != null ? record.frame.duplicate() : record.message.getBuffer();
+		byte[] recipient = record.recipient == null ? new byte[0]
+				: record.recipient.getBytes(StandardCharsets.UTF_8);
+		int size = RECORD_HEADER + recipient.length + frame.remaining();
+		if (segment.remaining() < size)
+			roll(size);
+		int start = segment.position();
+		segment.position(start + 2 * Integer.BYTES);
+		segment.putLong(record.time).putShort((short) recipient.length).put(recipient).put(frame);
+		crc.reset();
+		crc.update(segment.slice(start + 2 * Integer.BYTES, size - 2 * Integer.BYTES));
+		segment.putInt(start + Integer.BYTES, (int) crc.getValue());
+		segment.putInt(start, size - 2 * Integer.BYTES);
+		if (forced == segment.position() - size)
+			syncDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SYNC_MILLIS);
+		records++;
+		bytes += size;
+	}
+
+	/* force the records appended since the last sync, in a single call */
+	private void sync() {
+		int end = segment.position();
+		if (forced == end)
+			return;
+		segment.force(forced, end - forced);
+		forced = end;
+		syncs++;
+	}
+
+	/*
+	 * Copy the records in batches, forcing them once the oldest one not forced
+	 * reaches its deadline, until the log is closed and its queue empty
+	 */
+	private void run() {
+		List<Record> batch = new ArrayList<>(BATCH);
+		try {
+			while (!closing || !queue.isEmpty()) {
+				long now = System.nanoTime();
+				long timeout = forced == segment.position() ? IDLE_NANOS
+						: Math.max(0, Math.min(IDLE_NANOS, syncDeadline - now));
+				Record record = queue.poll(timeout, TimeUnit.NANOSECONDS);
+				if (record != null) {
+					write(record);
+					queue.drainTo(batch, BATCH);
+					for (Record next : batch)
+						write(next);
+					batch.clear();
+				}
+				now = System.nanoTime();
+				if (now - syncDeadline >= 0)
+					sync();
+				if (now - rollDeadline >= 0)
+					rollIfUsed();
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Message log stopped, the frames are no longer kept", e);
+		} catch (InterruptedException e) {
+			logger.warning("Message log interrupted");
+		} finally {
+			try {
+				if (channel != null)
+					closeSegment();
+			} catch (IOException e) {
+				// ignore exception
+			}
+		}
+	}
+
+	/**
+	 * Write and force the frames already handed to the log, and stop it
+	 */
+	void close() {
+		if (writer == null || closing)
+			return;
+		closing = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	long records() {
+		return records;
+	}
+
+	long bytes() {
+		return bytes;
+	}
+
+	long dropped() {
+		return dropped.get();
+	}
+
+	long syncs() {
+		return syncs;
+	}
+
+	/**
+	 * Read the segments of a log, oldest first, each one mapped and scanned
+	 * sequentially
+	 *
+	 * @param args [-count] directory
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean count = args.length == 2 && args[0].equals("-count");
+		if (args.length != 1 && !count) {
+			System.out.println("Usage : MessageLog [-count] directory");
+			System.out.println("\tprint the frames of the log, or only count them by opcode");
+			return;
+		}
+		PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false,
+				StandardCharsets.UTF_8);
+		long[] opcodes = new long[Message.PONG + 2];
+		long records = 0;
+		long size = 0;
+		long start = System.nanoTime();
+		List<Path> segments = segments(Path.of(args[args.length - 1]));
+		for (Path file : segments) {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				size += channel.size();
+				if (segment.remaining() < HEADER || segment.getInt() != MAGIC || segment.getInt() != VERSION) {
+					out.println(file.getFileName() + ": not a segment");
+					continue;
+				}
+				CRC32C crc = new CRC32C();
+				while (segment.remaining() >= 2 * Integer.BYTES) {
+					int length = segment.getInt(segment.position());
+					if (length < RECORD_HEADER - 2 * Integer.BYTES || length > segment.remaining() - 2 * Integer.BYTES)
+						break;
+					ByteBuffer body = segment.slice(segment.position() + 2 * Integer.BYTES, length);
+					crc.reset();
+					crc.update(body.duplicate());
+					if ((int) crc.getValue() != segment.getInt(segment.position() + Integer.BYTES)) {
+						out.println(file.getFileName() + ": torn record at " + segment.position());
+						break;
+					}
+					segment.position(segment.position() + 2 * Integer.BYTES + length);
+					long time = body.getLong();
+					byte[] recipient = new byte[body.getShort()];
+					body.get(recipient);
+					int opcode = body.remaining() < Integer.BYTES ? -1 : body.getInt(body.position());
+					opcodes[opcode < 0 || opcode > Message.PONG ? opcodes.length - 1 : opcode]++;
+					records++;
+					if (!count)
+						out.println(Instant.ofEpochMilli(time) + " " + (recipient.length == 0 ? "*"
+								: new String(recipient, StandardCharsets.UTF_8)) + " " + decode(body));
+				}
+			}
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+		for (int i = 0; i < opcodes.length; i++)
+			if (opcodes[i] != 0)
+				out.println((i == opcodes.length - 1 ? "other" : i) + " : " + opcodes[i]);
+		out.println(records + " records, " + size + " bytes in " + segments.size() + " segments read in " + millis
+				+ " ms (" + size / 1_000 / millis + " MB/s)");
+		out.flush();
+	}
+
+	private static Object decode(ByteBuffer frame) {
+		ByteBuffer bb = ByteBuffer.allocate(frame.remaining());
+		FrameReader reader = new FrameReader(bb, bb.capacity());
+		bb.put(frame);
+		return reader.process() == Reader.ProcessStatus.DONE ? reader.get() : "malformed frame";
+	}
+}
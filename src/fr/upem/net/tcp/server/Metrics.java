@@ -0,0 +1,71 @@
+package fr.upem.net.tcp.server;
+
+/**
+ * The counters of a reactor.
+ *
+ * They are only updated by the reactor thread, with plain increments, and read
+ * without synchronization by ServerMetrics: a value read from another thread
+ * may be slightly late.
+ */
+class Metrics {
+
+	/* the opcodes above are counted together in the last slot */
+	static final int OPCODES = 64;
+	/* bucket i holds the values v with 2^(i-1) <= v < 2^i, bucket 0 holds 0 */
+	static final int BUCKETS = 24;
+
+	long connections;
+	long logins;
+	long bytesIn;
+	long bytesOut;
+	/* write calls on the sockets, each one flushing one or more frames */
+	long writes;
+	/* the bytes the compressed streams saved, read and written */
+	long compressionSaved;
+	/* the TLS handshakes completed, those resuming a session, and their total duration */
+	long tlsHandshakes;
+	long tlsResumed;
+	long tlsHandshakeNanos;
+	/* the clients closed by their login or idle timeout, and the PINGs sent to the silent ones */
+	long loginTimeouts;
+	long idleTimeouts;
+	long pings;
+	/* the frames putting a client over its budget, and those the server warned of or disconnected */
+	long throttles;
+	long rateWarnings;
+	long rateDisconnects;
+	final long[] framesIn = new long[OPCODES + 1];
+	final long[] framesOut = new long[OPCODES + 1];
+	/* depth of the outbound queue of a client each time a frame is queued */
+	final long[] queueDepth = new long[BUCKETS];
+	/* time spent by the reactor handling the keys and tasks of one select, in microseconds */
+	final long[] loopMicros = new long[BUCKETS];
+	long loops;
+	long loopNanos;
+	long loopMaxNanos;
+
+	static int bucket(long value) {
+		return Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(value));
+	}
+
+	private static int opcode(int indice) {
+		return indice < 0 || indice > OPCODES ? OPCODES : indice;
+	}
+
+	void frameIn(int indice) {
+		framesIn[opcode(indice)]++;
+	}
+
+	void frameOut(int indice, int depth) {
+		framesOut[opcode(indice)]++;
+		queueDepth[bucket(depth)]++;
+	}
+
+	void loop(long nanos) {
+		loops++;
+		loopNanos += nanos;
+		if (nanos > loopMaxNanos)
+			loopMaxNanos = nanos;
+		loopMicros[bucket(nanos / 1_000)]++;
+	}
+}
@@ -0,0 +1,194 @@
+package fr.upem.net.tcp.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import fr.upem.net.tcp.reader.Compression;
+import fr.upem.net.tcp.reader.Message;
+
+/**
+ * The frames waiting to be written to a client, with their number and their
+ * total size compared to high and low watermarks.
+ *
+ * A frame shared by many compressed clients may come with the blocks deflated
+ * once for each level, appended to the stream of the client instead of
+ * deflating the frame again.
+ */
+class OutboundQueue {
+
+	/**
+	 * What the server does when a frame makes the queue of a client go over its
+	 * high watermark
+	 */
+	enum Policy {
+		/* drop the oldest public messages waiting for the client */
+		DROP_OLDEST,
+		/* close the connection with the client */
+		DISCONNECT,
+		/* stop reading from the client who sent the frame until the queue is drained */
+		PAUSE_PRODUCER
+	}
+
+	/**
+	 * The classes of frames, each one with its own policy
+	 */
+	enum FrameClass {
+		PUBLIC(Policy.DROP_OLDEST), FILE(Policy.PAUSE_PRODUCER), CONTROL(Policy.DISCONNECT);
+
+		final Policy defaultPolicy;
+
+		FrameClass(Policy defaultPolicy) {
+			this.defaultPolicy = defaultPolicy;
+		}
+
+		/**
+		 * @param frame an encoded frame, starting with its opcode
+		 * @return the class of the frame
+		 */
+		static FrameClass of(ByteBuffer frame) {
+			switch (frame.getInt(0)) {
+			case Message.RECEPTION_MESSAGE_PUBLIC:
+			case Message.RECEPTION_MESSAGE_SALON:
+				return PUBLIC;
+			// a fragment dropped would break the whole message
+			case Message.DEBUT_DE_FICHIER:
+			case Message.MORCEAU_DE_FICHIER:
+			case Message.DEBUT_MESSAGE_PUBLIC:
+			case Message.FRAGMENT_MESSAGE_PUBLIC:
+				return FILE;
+			default:
+				return CONTROL;
+			}
+		}
+	}
+
+	private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+	/* the blocks of the frames deflated by level, the frames are not compared by content */
+	private final IdentityHashMap<ByteBuffer, ByteBuffer[]> blocks = new IdentityHashMap<>();
+	private final long highBytes;
+	private final long lowBytes;
+	private final int highMessages;
+	private final int lowMessages;
+	private long bytes;
+
+	OutboundQueue(long highBytes, long lowBytes, int highMessages, int lowMessages) {
+		if (lowBytes > highBytes || lowMessages > highMessages)
+			throw new IllegalArgumentException("low watermark over high watermark");
+		this.highBytes = highBytes;
+		this.lowBytes = lowBytes;
+		this.highMessages = highMessages;
+		this.lowMessages = lowMessages;
+	}
+
+	void add(ByteBuffer frame) {
+		frames.add(frame);
+		bytes += frame.remaining();
+	}
+
+	/**
+	 * @param frame
+	 * @param deflated the frame deflated alone for each level, see
+	 *                 {@link Compression#deflateAlone(int, ByteBuffer)}
+	 */
+	void add(ByteBuffer frame, ByteBuffer[] deflated) {
+		add(frame);
+		blocks.put(frame, deflated);
+	}
+
+	boolean isEmpty() {
+		return frames.isEmpty();
+	}
+
+	int messages() {
+		return frames.size();
+	}
+
+	long bytes() {
+		return bytes;
+	}
+
+	boolean overHigh() {
+		return bytes > highBytes || frames.size() > highMessages;
+	}
+
+	boolean underLow() {
+		return bytes <= lowBytes && frames.size() <= lowMessages;
+	}
+
+	/**
+	 * Copy the head of the queue in out, as much as it can hold. The frames
+	 * copied entirely are removed, the last one may be copied partially and
+	 * keeps its position.
+	 *
+	 * @param out in write-mode
+	 */
+	void drainTo(ByteBuffer out) {
+		ByteBuffer frame;
+		while (out.hasRemaining() && (frame = frames.peek()) != null) {
+			int size = Math.min(frame.remaining(), out.remaining());
+			out.put(out.position(), frame, frame.position(), size);
+			out.position(out.position() + size);
+			frame.position(frame.position() + size);
+			bytes -= size;
+			if (!frame.hasRemaining())
+				frames.remove();
+		}
+	}
+
+	/**
+	 * Deflate the head of the queue in out, as much as it can hold, and sync
+	 * flush the stream once the queue is empty. A frame with a block for the
+	 * level of the stream is appended as this block if it is not started yet.
+	 *
+	 * @param compression the stream of the client
+	 * @param out         in write-mode
+	 */
+	void deflateTo(Compression compression, ByteBuffer out) {
+		ByteBuffer frame;
+		while (out.hasRemaining() && (frame = frames.peek()) != null) {
+			ByteBuffer[] deflated = blocks.remove(frame);
+			if (deflated != null && deflated[compression.level()] != null) {
+				if (!compression.flush(out)) {
+					blocks.put(frame, deflated);
+					return;
+				}
+				bytes -= frame.remaining();
+				frames.remove();
+				if (!compression.append(deflated[compression.level()].duplicate(), frame.remaining(), out))
+					return;
+				continue;
+			}
+			int size = frame.remaining();
+			boolean taken = compression.deflate(frame, out);
+			bytes -= size - frame.remaining();
+			if (!taken)
+				return;
+			frames.remove();
+		}
+		if (frames.isEmpty())
+			compression.flush(out);
+	}
+
+	/**
+	 * Drop the oldest public frames until the queue is back under its high
+	 * watermark. A frame partially written is never dropped.
+	 *
+	 * @return the number of frames dropped
+	 */
+	int dropOldestPublic() {
+		int dropped = 0;
+		Iterator<ByteBuffer> it = frames.iterator();
+		while (overHigh() && it.hasNext()) {
+			ByteBuffer frame = it.next();
+			if (frame.position() != 0 || FrameClass.of(frame) != FrameClass.PUBLIC)
+				continue;
+			bytes -= frame.remaining();
+			it.remove();
+			blocks.remove(frame);
+			dropped++;
+		}
+		return dropped;
+	}
+}
@@ -0,0 +1,248 @@
+package fr.upem.net.tcp.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fr.upem.net.tcp.reader.TlsStream;
+
+/**
+ * A select loop owning its own Selector and the Contexts registered on it.
+ *
+ * Other threads never touch the keys of a reactor: they post tasks in its
+ * inbox, which are run by the reactor thread after each select.
+ *
+ * The frames queued to a Context during a round are not written one by one:
+ * the Context is flushed once, with a single write, at the end of the round
+ * or when the coalescing window of its oldest frame expires.
+ *
+ * The timeouts of the Contexts are timers of a wheel owned by the reactor: the
+ * select waits at most until its next tick while timers are scheduled.
+ */
+class Reactor implements Runnable {
+
+	static final Logger logger = Logger.getLogger(Reactor.class.getName());
+	private static final long COALESCE_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerChat.COALESCE_MICROS);
+	private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerChat.TIMER_TICK_MILLIS);
+
+	private final ServerChat server;
+	final Selector selector;
+	private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private volatile Thread thread;
+	volatile int clients;
+	final Metrics metrics = new Metrics();
+	final Journal journal = new Journal();
+	final BufferPool inputBuffers = new BufferPool(ServerChat.BUFFER_SIZE, ServerChat.POOL_MAX_BUFFERS);
+	final BufferPool outputBuffers = new BufferPool(ServerChat.OUT_BUFFER_SIZE, ServerChat.POOL_MAX_BUFFERS);
+	/* the records of the TLS sessions, null if the clients are served in plaintext */
+	final BufferPool tlsBuffers;
+	/* when the reactor started handling the keys selected by the current select */
+	private long roundStart;
+	/* the Contexts with frames queued since their last flush */
+	private final ArrayList<Context> pendingFlushes = new ArrayList<>();
+	/* when the oldest of those frames must be written */
+	private long flushDeadline;
+	final TimerWheel timers = new TimerWheel(TIMER_TICK_NANOS, ServerChat.TIMER_SLOTS, System.nanoTime());
+
+	Reactor(ServerChat server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		tlsBuffers = server.tls == null ? null
+				: new BufferPool(TlsStream.bufferSize(server.tls), ServerChat.POOL_MAX_BUFFERS);
+	}
+
+	/**
+	 * Start the select loop in a new thread
+	 *
+	 * @param name
+	 */
+	void start(String name) {
+		Thread t = new Thread(this, name);
+		thread = t;
+		t.start();
+	}
+
+	/**
+	 * Run the select loop in the current thread until it is interrupted
+	 */
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+		try {
+			while (!Thread.interrupted()) {
+				try {
+					select();
+				} catch (UncheckedIOException tunneled) {
+					throw tunneled.getCause();
+				}
+				wakeupPending.set(false);
+				if (roundStart == 0)
+					roundStart = System.nanoTime();
+				drainInbox();
+				timers.advance(System.nanoTime());
+				flush();
+				metrics.loop(System.nanoTime() - roundStart);
+				roundStart = 0;
+			}
+		} catch (ClosedSelectorException | IOException e) {
+			logger.log(Level.INFO, "Reactor " + thread.getName() + " stopped", e);
+		}
+	}
+
+	/*
+	 * Wait for the selected keys, for the coalescing window to expire, or for
+	 * the next tick of the timers. The select waits in whole milliseconds, so a
+	 * window is exceeded by less than one millisecond: polling instead would
+	 * keep the reactor spinning.
+	 */
+	private void select() throws IOException {
+		long now = System.nanoTime();
+		long timeout = timers.nanosToNextTick(now);
+		if (!pendingFlushes.isEmpty()) {
+			long remaining = Math.max(0, flushDeadline - now);
+			timeout = timeout < 0 ? remaining : Math.min(timeout, remaining);
+		}
+		if (timeout < 0)
+			selector.select(this::treatKey);
+		else if (timeout == 0)
+			selector.selectNow(this::treatKey);
+		else
+			selector.select(this::treatKey, (timeout + MILLI - 1) / MILLI);
+	}
+
+	/**
+	 * @return when the reactor started handling the keys of the current select,
+	 *         a clock cheaper than System.nanoTime() for the reads, late by the
+	 *         duration of the round at most
+	 */
+	long now() {
+		return roundStart != 0 ? roundStart : System.nanoTime();
+	}
+
+	/**
+	 * Flush context at the end of the round, or once the coalescing window is
+	 * over. Must be called from the reactor thread.
+	 *
+	 * @param context
+	 */
+	void flushLater(Context context) {
+		if (pendingFlushes.isEmpty() && COALESCE_NANOS != 0)
+			flushDeadline = System.nanoTime() + COALESCE_NANOS;
+		pendingFlushes.add(context);
+	}
+
+	private void flush() {
+		if (pendingFlushes.isEmpty())
+			return;
+		if (COALESCE_NANOS != 0 && System.nanoTime() - flushDeadline < 0)
+			return;
+		for (Context context : pendingFlushes)
+			context.flush();
+		pendingFlushes.clear();
+	}
+
+	/**
+	 * Run the task in the reactor thread: immediately if we already are in it,
+	 * after the current select otherwise
+	 *
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		if (Thread.currentThread() == thread) {
+			task.run();
+			return;
+		}
+		inbox.add(task);
+		if (wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	private void drainInbox() {
+		Runnable task;
+		while ((task = inbox.poll()) != null)
+			task.run();
+	}
+
+	/**
+	 * Hand an accepted channel over to this reactor
+	 *
+	 * @param sc
+	 */
+	void register(SocketChannel sc) {
+		execute(() -> {
+			try {
+				SelectionKey clientKey = sc.register(selector, SelectionKey.OP_READ);
+				Context context = new Context(server, this, clientKey);
+				clientKey.attach(context);
+				clients++;
+				metrics.connections++;
+				journal.record(Journal.Event.ACCEPT, context.id, 0);
+			} catch (ClosedChannelException e) {
+				// the client left before being registered
+			}
+		});
+	}
+
+	/**
+	 * Apply action to every Context of this reactor, must be called from the
+	 * reactor thread
+	 *
+	 * @param action
+	 */
+	void forEachContext(Consumer<Context> action) {
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment == null || !key.isValid())
+				continue;
+			action.accept((Context) attachment);
+		}
+	}
+
+	/**
+	 * Close every Context of this reactor
+	 */
+	void closeAll() {
+		execute(() -> forEachContext(Context::silentlyClose));
+	}
+
+	private void treatKey(SelectionKey key) {
+		if (roundStart == 0)
+			roundStart = System.nanoTime();
+		try {
+			if (key.isValid() && key.isAcceptable()) {
+				server.doAccept();
+			}
+		} catch (IOException ioe) {
+			// lambda call in select requires to tunnel IOException
+			throw new UncheckedIOException(ioe);
+		}
+		Context context = (Context) key.attachment();
+		if (context == null)
+			return;
+		try {
+			if (key.isValid() && key.isWritable()) {
+				context.doWrite();
+			}
+			if (key.isValid() && key.isReadable()) {
+				context.doRead();
+			}
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+			context.silentlyClose();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package fr.upem.net.tcp.server;
+
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A chat room: the messages sent to it are only queued to its members.
+ *
+ * The members are kept by reactor, and the members of a reactor are only
+ * touched by the thread of that reactor, so a message is handed to each
+ * reactor with its own members and no lock. The room is shared by the reactors
+ * and removed from the server when its last member leaves.
+ */
+class Room {
+
+	/**
+	 * The members of the room in one reactor, only used by the thread of this
+	 * reactor
+	 */
+	static class Members {
+		private final HashSet<Context> set = new HashSet<>();
+		/* rebuilt after a change, a member may leave while a message is queued */
+		private Context[] array;
+
+		void add(Context context) {
+			if (set.add(context))
+				array = null;
+		}
+
+		void remove(Context context) {
+			if (set.remove(context))
+				array = null;
+		}
+
+		Context[] toArray() {
+			if (array == null)
+				array = set.toArray(new Context[0]);
+			return array;
+		}
+	}
+
+	final String name;
+	/* the members over every reactor, only updated in the compute of the rooms of the server */
+	int count;
+	private final ConcurrentHashMap<Reactor, Members> members = new ConcurrentHashMap<>();
+
+	Room(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Must be called from the thread of reactor
+	 *
+	 * @param reactor
+	 * @return the members of the room in reactor
+	 */
+	Members members(Reactor reactor) {
+		return members.computeIfAbsent(reactor, r -> new Members());
+	}
+
+	/**
+	 * Apply action to each reactor having had members, with its members, in the
+	 * calling thread: action must hand the members to the thread of the reactor
+	 *
+	 * @param action
+	 */
+	void forEachReactor(BiConsumer<Reactor, Members> action) {
+		members.forEach(action);
+	}
+}
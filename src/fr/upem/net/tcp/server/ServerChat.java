@@ -1,20 +1,45 @@
 package fr.upem.net.tcp.server;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-//import java.nio.ByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 //import java.util.LinkedList;
 //import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import fr.upem.net.tcp.parsing.Parsing;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import fr.upem.net.tcp.parsing.CredentialStore;
+import fr.upem.net.tcp.reader.Compression;
 import fr.upem.net.tcp.reader.Message;
 //import fr.upem.net.tcp.reader.MessageReader;
 //import fr.upem.net.tcp.reader.Reader;
@@ -22,112 +47,456 @@ import fr.upem.net.tcp.reader.Message;
 public class ServerChat {
 
 	static final int BUFFER_SIZE = 1_024;
+	/* the receive buffer of a client grows up to the size of its largest frame */
+	static final int MAX_FRAME_SIZE = Math.max(BUFFER_SIZE, Integer.getInteger("chathack.maxFrameSize", 64 << 10));
+	/* the size of a public message sent by fragments */
+	static final long MAX_PUBLIC_MESSAGE = Long.getLong("chathack.maxPublicMessage", 1 << 20);
+	/* the public messages a client may be sending by fragments at once, it is closed past them */
+	static final int MAX_OPEN_PUBLIC_MESSAGES = Integer.getInteger("chathack.maxOpenPublicMessages", 4);
+	/* the files a client may be sending at once, it is closed past them */
+	static final int MAX_OPEN_TRANSFERS = Integer.getInteger("chathack.maxOpenTransfers", 8);
+	static final int REACTORS = Integer.getInteger("chathack.reactors", 0);
+	static final long OUT_HIGH_BYTES = Long.getLong("chathack.out.highBytes", 1 << 20);
+	static final long OUT_LOW_BYTES = Long.getLong("chathack.out.lowBytes", 256 << 10);
+	static final int OUT_HIGH_MESSAGES = Integer.getInteger("chathack.out.highMessages", 4_096);
+	static final int OUT_LOW_MESSAGES = Integer.getInteger("chathack.out.lowMessages", 1_024);
+	static final int OUT_BUFFER_SIZE = Integer.getInteger("chathack.out.bufferSize", 16 << 10);
+	/*
+	 * a producer paused by a client of the blocking engine waits that long for
+	 * the queue of the client to drain, then the client is closed
+	 */
+	static final long OUT_STALL_MILLIS = Long.getLong("chathack.out.stallMillis", 10_000);
+	/*
+	 * the frames queued to a client are flushed at the end of the select round,
+	 * or once the oldest one waited that long if it is not 0
+	 */
+	static final long COALESCE_MICROS = Long.getLong("chathack.coalesce.micros", 0);
+	/* direct buffers of each pool of a reactor, heap buffers are lent past them */
+	static final int POOL_MAX_BUFFERS = Integer.getInteger("chathack.pool.maxBuffers", 4_096);
+	/* the threads checking the passwords, and the logins waiting for one of them */
+	static final int AUTH_THREADS = Integer.getInteger("chathack.auth.threads",
+			Runtime.getRuntime().availableProcessors());
+	static final int AUTH_QUEUE = Integer.getInteger("chathack.auth.queue", 1_024);
+	/* the rooms a client can be a member of at the same time */
+	static final int MAX_ROOMS = Integer.getInteger("chathack.maxRooms", 64);
+	/* the last public messages replayed to a client when it logs in */
+	static final int HISTORY_COUNT = Integer.getInteger("chathack.history.count", 100);
+	static final int HISTORY_BYTES = Integer.getInteger("chathack.history.bytes", 64 << 10);
+	/* the directory of the segments of the MessageLog, disabled when it is not set */
+	static final String LOG_DIRECTORY = System.getProperty("chathack.log");
+	/* the highest level of compression granted to a client, none if it is 0 */
+	static final int COMPRESSION_MAX_LEVEL = Math.min(Compression.MAX_LEVEL,
+			Integer.getInteger("chathack.compression.maxLevel", 6));
+	/*
+	 * a frame shared by compressed clients is deflated once for each level from
+	 * this size, a smaller one gains more from the history of each stream
+	 */
+	static final int COMPRESSION_SHARED_BYTES = Integer.getInteger("chathack.compression.sharedBytes", 256);
+	/* the keystore of the certificate of the server, every client is served in TLS when it is set */
+	static final String TLS_KEYSTORE = System.getProperty("chathack.tls.keystore");
+	static final String TLS_PASSWORD = System.getProperty("chathack.tls.password", "");
+	/* the sessions kept for the clients resuming them when they reconnect, and for how many seconds */
+	static final int TLS_SESSION_CACHE = Integer.getInteger("chathack.tls.sessionCache", 10_000);
+	static final int TLS_SESSION_TIMEOUT = Integer.getInteger("chathack.tls.sessionTimeout", 3_600);
+	/*
+	 * the threads running the delegated tasks of the handshakes, their queue is
+	 * unbounded as a connection has at most one batch of tasks at a time
+	 */
+	static final int TLS_THREADS = Integer.getInteger("chathack.tls.threads",
+			Runtime.getRuntime().availableProcessors());
+	/* a client which did not log in that long after its connection is closed, never if it is 0 */
+	static final long LOGIN_TIMEOUT_MILLIS = Long.getLong("chathack.login.timeoutMillis", 10_000);
+	/*
+	 * a logged client silent for idle.pingMillis is sent a PING, and closed once
+	 * silent for idle.timeoutMillis, never if they are 0
+	 */
+	static final long IDLE_PING_MILLIS = Long.getLong("chathack.idle.pingMillis", 30_000);
+	static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chathack.idle.timeoutMillis", 90_000);
+	/* the resolution of the timers of a reactor, and the slots of its wheel, a power of 2 */
+	static final long TIMER_TICK_MILLIS = Long.getLong("chathack.timer.tickMillis", 100);
+	static final int TIMER_SLOTS = Integer.getInteger("chathack.timer.slots", 512);
+	/*
+	 * the frames of a client over its rate.<class>.messages or rate.<class>.bytes
+	 * per second, after a burst of rate.burstSeconds, are not read until it is
+	 * under them again, and rate.policy applies
+	 */
+	static final double RATE_BURST_SECONDS = Double.parseDouble(System.getProperty("chathack.rate.burstSeconds", "2"));
+	static final InboundLimiter.Policy RATE_POLICY = InboundLimiter.Policy
+			.valueOf(System.getProperty("chathack.rate.policy", InboundLimiter.Policy.THROTTLE.name()));
 	static final Logger logger = Logger.getLogger(ServerChat.class.getName());
 
 	private final ServerSocketChannel serverSocketChannel;
 	private final Random rad = new Random(System.currentTimeMillis());
-	private final Selector selector;
-	final HashMap<String, String> mapNameMdp;
+	private final Reactor acceptor;
+	private final Reactor[] reactors;
+	private int nextReactor;
+	private final AtomicInteger transferts = new AtomicInteger();
+	private final OutboundQueue.Policy[] policies = readPolicies();
+	private final AtomicLongArray slowConsumers = new AtomicLongArray(OutboundQueue.Policy.values().length);
+	/* the frames then the bytes per second of each class of inbound frames, none limited if null */
+	private final long[] rates;
+	/* the clients with a compressed stream at each level */
+	private final AtomicIntegerArray compressed = new AtomicIntegerArray(Compression.MAX_LEVEL + 1);
+	private final SessionRegistry sessions = new SessionRegistry();
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+	final HistoryRing history = new HistoryRing(HISTORY_COUNT, HISTORY_BYTES);
+	final MessageLog log;
+	final CredentialStore credentials;
+	/* the context of the TLS sessions, null if the clients are served in plaintext */
+	final SSLContext tls;
+	private final ThreadPoolExecutor authenticators;
+	/* null if the clients are served in plaintext */
+	private final ThreadPoolExecutor handshakers;
+	private final AtomicInteger pendingAuthentications = new AtomicInteger();
+	private final AtomicLong rejectedAuthentications = new AtomicLong();
+	final ServerMetrics metrics;
 
-	public ServerChat(int port, HashMap<String, String> mapNameMdp) throws IOException {
+	public ServerChat(int port, CredentialStore credentials) throws IOException {
+		this(port, credentials, REACTORS);
+	}
+
+	/**
+	 * With nbReactors == 0 a single select loop accepts and serves every client,
+	 * otherwise the accepting loop hands each client to one of nbReactors loops
+	 * running in their own thread.
+	 *
+	 * @param port
+	 * @param credentials
+	 * @param nbReactors
+	 * @throws IOException
+	 */
+	public ServerChat(int port, CredentialStore credentials, int nbReactors) throws IOException {
+		if (nbReactors < 0)
+			throw new IllegalArgumentException("nbReactors < 0");
 		serverSocketChannel = ServerSocketChannel.open();
 		serverSocketChannel.bind(new InetSocketAddress(port));
-		selector = Selector.open();
-		this.mapNameMdp = mapNameMdp;
+		tls = openTls();
+		acceptor = new Reactor(this);
+		if (nbReactors == 0) {
+			reactors = new Reactor[] { acceptor };
+		} else {
+			reactors = new Reactor[nbReactors];
+			for (int i = 0; i < nbReactors; i++)
+				reactors[i] = new Reactor(this);
+		}
+		metrics = new ServerMetrics(this, reactors);
+		log = openLog();
+		this.credentials = credentials;
+		authenticators = new ThreadPoolExecutor(AUTH_THREADS, AUTH_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(AUTH_QUEUE), daemons("auth-"));
+		handshakers = tls == null ? null
+				: new ThreadPoolExecutor(TLS_THREADS, TLS_THREADS, 0, TimeUnit.MILLISECONDS,
+						new LinkedBlockingQueue<>(), daemons("tls-"));
+		rates = readRates();
 	}
 
-	public void launch() throws IOException {
-		serverSocketChannel.configureBlocking(false);
-		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-		try (Console c = Console.CreateConsole(serverSocketChannel, selector, this::closeAll)) {
-			while (!Thread.interrupted()) {
-				printKeys(); // for debug
-				System.out.println("Starting select");
-				try {
-					selector.select(this::treatKey);
-				} catch (UncheckedIOException tunneled) {
-					throw tunneled.getCause();
+	/**
+	 * @return the policy of each class of frames, by ordinal, shared by the
+	 *         engines
+	 */
+	static OutboundQueue.Policy[] readPolicies() {
+		OutboundQueue.Policy[] policies = new OutboundQueue.Policy[OutboundQueue.FrameClass.values().length];
+		for (OutboundQueue.FrameClass frameClass : OutboundQueue.FrameClass.values())
+			policies[frameClass.ordinal()] = OutboundQueue.Policy.valueOf(System.getProperty(
+					"chathack.policy." + frameClass.name().toLowerCase(), frameClass.defaultPolicy.name()));
+		return policies;
+	}
 
-				}
-				System.out.println("Select finished");
-			}
+	/* the rates of the properties, null if they are all 0 */
+	private static long[] readRates() {
+		long[] rates = new long[2 * InboundLimiter.FrameClass.values().length];
+		for (InboundLimiter.FrameClass frameClass : InboundLimiter.FrameClass.values()) {
+			String prefix = "chathack.rate." + frameClass.name().toLowerCase();
+			rates[2 * frameClass.ordinal()] = Long.getLong(prefix + ".messages", frameClass.defaultMessages);
+			rates[2 * frameClass.ordinal() + 1] = Long.getLong(prefix + ".bytes", frameClass.defaultBytes);
 		}
+		return Arrays.stream(rates).anyMatch(rate -> rate > 0) ? rates : null;
 	}
 
-	private void closeAll(Selector e) {
-		e.keys().forEach(f -> {
-			if (f == null)
-				return;
-			Context context = ((Context) f.attachment());
-			if (context != null)
-				context.silentlyClose();
-		});
+	/**
+	 * @param now the current System.nanoTime()
+	 * @return the token buckets of a new client, null if no frame is limited
+	 */
+	InboundLimiter inboundLimiter(long now) {
+		return rates == null ? null : new InboundLimiter(rates, RATE_BURST_SECONDS, now);
+	}
+
+	/**
+	 * @return the log of the relayed frames in LOG_DIRECTORY, a disabled one if
+	 *         it is not set
+	 * @throws IOException
+	 */
+	static MessageLog openLog() throws IOException {
+		return LOG_DIRECTORY == null ? MessageLog.disabled() : MessageLog.open(Paths.get(LOG_DIRECTORY));
 	}
 
-	private void treatKey(SelectionKey key) {
-		printSelectedKey(key); // for debug
+	/**
+	 * @return the context of the TLS sessions with the certificate of
+	 *         TLS_KEYSTORE, null if it is not set
+	 * @throws IOException if the keystore cannot be read
+	 */
+	static SSLContext openTls() throws IOException {
+		if (TLS_KEYSTORE == null)
+			return null;
+		char[] password = TLS_PASSWORD.toCharArray();
 		try {
-			if (key.isValid() && key.isAcceptable()) {
-				doAccept(key);
-			}
-		} catch (IOException ioe) {
-			// lambda call in select requires to tunnel IOException
-			throw new UncheckedIOException(ioe);
+			KeyStore keyStore = KeyStore.getInstance(new File(TLS_KEYSTORE), password);
+			KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keyManagers.init(keyStore, password);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keyManagers.getKeyManagers(), null, null);
+			SSLSessionContext sessions = context.getServerSessionContext();
+			sessions.setSessionCacheSize(TLS_SESSION_CACHE);
+			sessions.setSessionTimeout(TLS_SESSION_TIMEOUT);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot use the keystore " + TLS_KEYSTORE, e);
 		}
-		try {
-			if (key.isValid() && key.isWritable()) {
-				((Context) key.attachment()).doWrite();
-			}
-			if (key.isValid() && key.isReadable()) {
-				((Context) key.attachment()).doRead();
+	}
+
+	/* the threads of the pools, which do not keep the JVM alive */
+	private static ThreadFactory daemons(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return task -> {
+			Thread thread = new Thread(task, prefix + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * @return the executor of the delegated tasks of the TLS handshakes, off the
+	 *         select loops as the passwords but on their own pool, so that a
+	 *         burst of handshakes never refuses a login
+	 */
+	Executor tlsTasks() {
+		return handshakers;
+	}
+
+	OutboundQueue.Policy policy(OutboundQueue.FrameClass frameClass) {
+		return policies[frameClass.ordinal()];
+	}
+
+	void slowConsumer(OutboundQueue.Policy policy) {
+		slowConsumers.incrementAndGet(policy.ordinal());
+	}
+
+	/**
+	 * Print how many times each policy fired, in total and for each client still
+	 * connected
+	 */
+	void printSlowConsumers() {
+		for (OutboundQueue.Policy policy : OutboundQueue.Policy.values())
+			System.out.println(policy + " : " + slowConsumers.get(policy.ordinal()));
+		for (Reactor reactor : reactors)
+			reactor.execute(() -> reactor.forEachContext(cxt -> {
+				if (Arrays.stream(cxt.slowConsumer).anyMatch(count -> count != 0))
+					System.out.println("\t" + cxt.name + " " + Arrays.toString(cxt.slowConsumer) + " queued "
+							+ cxt.queue.messages() + " frames / " + cxt.queue.bytes() + " bytes, dropped "
+							+ cxt.droppedFrames);
+			}));
+	}
+
+	/**
+	 * @param level the level asked by a client
+	 * @return the level granted, 0 if its streams are not compressed
+	 */
+	int compressionLevel(int level) {
+		if (level < 1 || level > Compression.MAX_LEVEL)
+			return 0;
+		return Math.max(0, Math.min(level, COMPRESSION_MAX_LEVEL));
+	}
+
+	void compressionStarted(int level) {
+		compressed.incrementAndGet(level);
+	}
+
+	void compressionEnded(int level) {
+		compressed.decrementAndGet(level);
+	}
+
+	/**
+	 * @return the number of clients with a compressed stream
+	 */
+	int compressedClients() {
+		int count = 0;
+		for (int level = 1; level <= Compression.MAX_LEVEL; level++)
+			count += compressed.get(level);
+		return count;
+	}
+
+	/**
+	 * Deflate a frame shared by many clients once for each level in use, unless
+	 * it is smaller than COMPRESSION_SHARED_BYTES
+	 *
+	 * @param frame in read-mode, left unchanged
+	 * @return the blocks by level, null if the frame is not deflated
+	 */
+	private ByteBuffer[] deflateOnce(ByteBuffer frame) {
+		if (frame.remaining() < COMPRESSION_SHARED_BYTES)
+			return null;
+		ByteBuffer[] deflated = null;
+		for (int level = 1; level <= Compression.MAX_LEVEL; level++) {
+			if (compressed.get(level) == 0)
+				continue;
+			if (deflated == null)
+				deflated = new ByteBuffer[Compression.MAX_LEVEL + 1];
+			deflated[level] = Compression.deflateAlone(level, frame);
+		}
+		return deflated;
+	}
+
+	/**
+	 * Print the level of each compressed client and the bytes its streams saved
+	 */
+	void printCompression() {
+		System.out.println(compressedClients() + " compressed clients, " + metrics.getCompressionSavedBytes()
+				+ " bytes saved");
+		for (Reactor reactor : reactors)
+			reactor.execute(() -> reactor.forEachContext(cxt -> {
+				Compression compression = cxt.compression();
+				if (compression != null)
+					System.out.println("\t" + cxt.name + " level " + compression.level() + " in "
+							+ compression.deflatedIn() + " / " + compression.plainIn() + " bytes, out "
+							+ compression.deflatedOut() + " / " + compression.plainOut() + " bytes, saved "
+							+ compression.saved());
+			}));
+	}
+
+	public void launch() throws IOException {
+		serverSocketChannel.configureBlocking(false);
+		serverSocketChannel.register(acceptor.selector, SelectionKey.OP_ACCEPT);
+		for (int i = 0; i < reactors.length; i++)
+			if (reactors[i] != acceptor)
+				reactors[i].start("reactor-" + i);
+		metrics.register();
+		try (Console c = Console.CreateConsole(this)) {
+			acceptor.run();
+		}
+	}
+
+	/**
+	 * Stop accepting new clients
+	 *
+	 * @throws IOException
+	 */
+	void shutdown() throws IOException {
+		serverSocketChannel.close();
+		acceptor.selector.wakeup();
+	}
+
+	/**
+	 * Disconnect every client, each reactor closing its own Contexts
+	 */
+	void closeAll() {
+		for (Reactor reactor : reactors)
+			reactor.closeAll();
+	}
+
+	/**
+	 * Print the journals of every reactor, merged by time
+	 */
+	void printJournal() {
+		if (!Journal.ENABLED) {
+			System.out.println("The journal is disabled, start the server with -Dchathack.journal=N");
+			return;
+		}
+		List<Journal.Entry> entries = new ArrayList<>();
+		for (int i = 0; i < reactors.length; i++) {
+			Reactor reactor = reactors[i];
+			String name = "reactor-" + i;
+			CompletableFuture<List<Journal.Entry>> snapshot = new CompletableFuture<>();
+			reactor.execute(() -> snapshot.complete(reactor.journal.snapshot(name)));
+			try {
+				entries.addAll(snapshot.get(1, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException | TimeoutException e) {
+				System.out.println(name + " did not answer");
 			}
-		} catch (IOException e) {
-			logger.log(Level.INFO, "Connection closed with client due to IOException", e);
-			silentlyClose(key);
 		}
+		entries.sort(Comparator.comparingLong(entry -> entry.time));
+		long origin = entries.isEmpty() ? 0 : entries.get(0).time;
+		for (Journal.Entry entry : entries)
+			System.out.printf("%12.3fms %s%n", (entry.time - origin) / 1e6, entry);
+	}
+
+	/**
+	 * @return the passwords being checked or waiting for the authentication pool
+	 */
+	int pendingAuthentications() {
+		return pendingAuthentications.get();
+	}
+
+	/**
+	 * @return the logins refused because the authentication pool was saturated
+	 */
+	long rejectedAuthentications() {
+		return rejectedAuthentications.get();
+	}
+
+	/**
+	 * @return the number of clients over all the reactors
+	 */
+	int clientCount() {
+		int count = 0;
+		for (Reactor reactor : reactors)
+			count += reactor.clients;
+		return count;
 	}
 
-	private void doAccept(SelectionKey key) throws IOException {
+	void doAccept() throws IOException {
 		SocketChannel sc = serverSocketChannel.accept();
 		if (sc == null)
 			return;
 		sc.configureBlocking(false);
-		SelectionKey clientKey = sc.register(selector, SelectionKey.OP_READ);
-		clientKey.attach(new Context(this, clientKey));
-	}
-
-	private void silentlyClose(SelectionKey key) {
-		Channel sc = (Channel) key.channel();
-		try {
-			sc.close();
-		} catch (IOException e) {
-			// ignore exception
-		}
+		Reactor reactor = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+		reactor.register(sc);
 	}
 
 	/**
 	 * Add a message to all connected clients queue
 	 *
+	 * Contexts are only touched by the thread of their reactor, so each reactor
+	 * is asked to deliver to its own clients. A public message is encoded once
+	 * and every recipient gets a read-only view of the same frame, deflated once
+	 * for the compressed ones if it is large enough. Every frame relayed is also
+	 * handed to the message log.
+	 *
 	 * @param msg
 	 */
 	void broadcast(Message msg, Context ctxt) {
 		switch (msg.indice) {
 		case Message.ENVOIE_MESSAGE_PUBLIC:
-			for (SelectionKey key : selector.keys()) {
-				Object attachment = key.attachment();
-				if (attachment == null)
-					continue;
-				Context cxt = (Context) attachment;
-				cxt.queueMessage(msg);
-			}
+			ByteBuffer frame = Message.createNomMessage(ctxt.name, msg.getMessage()).getBuffer();
+			fanOut(frame, history.add(frame), ctxt);
+			break;
+
+		case Message.DEBUT_MESSAGE_PUBLIC:
+			debutMessagePublic(msg, ctxt);
+			break;
+
+		case Message.FRAGMENT_MESSAGE_PUBLIC:
+			fragmentMessagePublic(msg, ctxt);
+			break;
+
+		case Message.REJOINDRE_SALON:
+			rejoindreSalon(msg.getSalon(), ctxt);
+			break;
+
+		case Message.QUITTER_SALON:
+			quitterSalon(msg.getSalon(), ctxt);
+			break;
+
+		case Message.ENVOIE_MESSAGE_SALON:
+			messageSalon(msg, ctxt);
 			break;
 
 		case Message.DEMANDE_CONNEXION_PRIVEE_DU_CLIENT:
-			selector.keys().forEach(e -> {
-				Context tmp = ((Context) e.attachment());
-				if (tmp != null && msg.getNom().equals(tmp.name))
-					tmp.queueMessage(Message.createNon(Message.DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR, ctxt.name));
-			});
+			Message demande = Message.createNon(Message.DEMANDE_CONNEXION_PRIVEE_DU_SERVEUR, ctxt.name);
+			sendTo(msg.getNom(), demande, ctxt);
 			break;
 
 		case Message.ACCEPTE_LA_CONNEXION_PRIVEE_DU_CLIENT:
@@ -137,24 +506,195 @@ public class ServerChat {
 		case Message.REFUS_DE_CONNEXION_PRIVEE_DU_CLIENT:
 			connexionPrive(false, msg, ctxt);
 			break;
+
+		case Message.DEBUT_DE_FICHIER:
+			debutFichier(msg, ctxt);
+			break;
+
+		case Message.MORCEAU_DE_FICHIER:
+			morceauFichier(msg, ctxt);
+			break;
 		default:
 			ctxt.silentlyClose();
 			return;
 		}
 	}
 
+	/**
+	 * Queue msg to every logged client, encoded once and shared by all the
+	 * recipients
+	 *
+	 * @param msg
+	 * @param producer
+	 */
+	private void fanOut(Message msg, Context producer) {
+		fanOut(msg.getBuffer(), HistoryRing.NOT_KEPT, producer);
+	}
+
+	/*
+	 * Only the logged clients get the frame, and not those which already got it
+	 * in the replay of the history at their login
+	 */
+	private void fanOut(ByteBuffer encoded, long sequence, Context producer) {
+		ByteBuffer frame = encoded.asReadOnlyBuffer();
+		log.append(null, frame);
+		ByteBuffer[] deflated = deflateOnce(frame);
+		for (Reactor reactor : reactors)
+			reactor.execute(() -> reactor.forEachContext(cxt -> {
+				if (cxt.name != null && cxt.replayed < sequence)
+					cxt.queueFrame(frame.duplicate(), deflated, producer);
+			}));
+	}
+
+	/**
+	 * Queue msg to the client called name, in the thread of its reactor
+	 *
+	 * @param name
+	 * @param msg
+	 */
+	private void sendTo(String name, Message msg, Context producer) {
+		Context target = sessions.find(name);
+		if (target == null)
+			return;
+		sendTo(target, msg, producer);
+	}
+
+	private void sendTo(Context target, Message msg, Context producer) {
+		log.append(target.name, msg);
+		target.reactor.execute(() -> {
+			if (target.isOpen())
+				target.queueMessage(msg, producer);
+		});
+	}
+
 	private void connexionPrive(boolean b, Message msg, Context ctxt) {
-		selector.keys().forEach(e -> {
-			Context tmp = ((Context) e.attachment());
-			if (tmp != null && msg.getNom().equals(tmp.name)) {
-				if (!tmp.map.getOrDefault(tmp.name, false)) {
-					ctxt.silentlyClose();
-					return;
-				}
-				tmp.queueMessage(Message.createValidationConnexionPrive(true, ctxt.name, rad.nextLong()));
-			}
+		// only answer a request the server really forwarded to ctxt
+		if (!ctxt.map.getOrDefault(msg.getNom(), false)) {
+			ctxt.silentlyClose();
+			return;
+		}
+		ctxt.map.remove(msg.getNom());
+		sendTo(msg.getNom(), Message.createValidationConnexionPrive(b, ctxt.name, rad.nextLong()), ctxt);
+	}
+
+	/**
+	 * Announce a file to its recipient under an id unique on the server, the
+	 * chunks are then relayed one by one as they arrive. The chunks of a file to
+	 * an unknown recipient are counted as well but dropped. As for the public
+	 * messages, a client sending too many files at once, a chunk of a file it did
+	 * not announce or more bytes than announced is closed.
+	 *
+	 * @param msg
+	 * @param ctxt
+	 */
+	private void debutFichier(Message msg, Context ctxt) {
+		if (ctxt.transferts.containsKey(msg.getIdTransfert()) || ctxt.transferts.size() >= MAX_OPEN_TRANSFERS) {
+			ctxt.silentlyClose();
+			return;
+		}
+		Context target = sessions.find(msg.getNom());
+		Context.Transfert transfert = new Context.Transfert(target, transferts.incrementAndGet(), msg.getTaille());
+		if (transfert.remaining != 0)
+			ctxt.transferts.put(msg.getIdTransfert(), transfert);
+		if (target != null)
+			sendTo(target, Message.createDebutFichier(ctxt.name, msg.getFile(), msg.getTaille(), transfert.id), ctxt);
+	}
+
+	private void morceauFichier(Message msg, Context ctxt) {
+		Context.Transfert transfert = ctxt.transferts.get(msg.getIdTransfert());
+		ByteBuffer morceau = msg.getMorceau();
+		if (transfert == null || morceau.remaining() > transfert.remaining) {
+			ctxt.silentlyClose();
+			return;
+		}
+		transfert.remaining -= morceau.remaining();
+		if (transfert.remaining == 0)
+			ctxt.transferts.remove(msg.getIdTransfert());
+		if (transfert.target != null)
+			sendTo(transfert.target, Message.createMorceauFichier(transfert.id, morceau), ctxt);
+	}
+
+	/*
+	 * A public message sent by fragments is forwarded fragment by fragment as
+	 * they arrive: the server only keeps the number of bytes left for each one.
+	 * Each recipient assembles it, so a client may only send a few at once.
+	 */
+	private void debutMessagePublic(Message msg, Context ctxt) {
+		if (msg.getTaille() > MAX_PUBLIC_MESSAGE || ctxt.publics.containsKey(msg.getIdTransfert())
+				|| ctxt.publics.size() >= MAX_OPEN_PUBLIC_MESSAGES) {
+			ctxt.silentlyClose();
+			return;
+		}
+		Context.Transfert transfert = new Context.Transfert(null, transferts.incrementAndGet(), msg.getTaille());
+		ctxt.publics.put(msg.getIdTransfert(), transfert);
+		fanOut(Message.createDebutMessagePublic(ctxt.name, msg.getTaille(), transfert.id), ctxt);
+	}
+
+	private void fragmentMessagePublic(Message msg, Context ctxt) {
+		Context.Transfert transfert = ctxt.publics.get(msg.getIdTransfert());
+		ByteBuffer fragment = msg.getMorceau();
+		if (transfert == null || fragment.remaining() > transfert.remaining) {
+			ctxt.silentlyClose();
+			return;
+		}
+		transfert.remaining -= fragment.remaining();
+		if (transfert.remaining == 0)
+			ctxt.publics.remove(msg.getIdTransfert());
+		fanOut(Message.createFragmentMessagePublic(transfert.id, fragment), ctxt);
+	}
+
+	/*
+	 * The rooms are created by their first member and removed with their last
+	 * one, inside the compute of the map so that a room being removed is never
+	 * joined.
+	 */
+	private void rejoindreSalon(String name, Context ctxt) {
+		if (ctxt.rooms.containsKey(name) || ctxt.rooms.size() >= MAX_ROOMS)
+			return;
+		Room room = rooms.compute(name, (key, existing) -> {
+			Room joined = existing == null ? new Room(key) : existing;
+			joined.count++;
+			return joined;
 		});
+		ctxt.rooms.put(name, room);
+		room.members(ctxt.reactor).add(ctxt);
+	}
+
+	private void quitterSalon(String name, Context ctxt) {
+		Room room = ctxt.rooms.remove(name);
+		if (room == null)
+			return;
+		room.members(ctxt.reactor).remove(ctxt);
+		rooms.computeIfPresent(name, (key, left) -> --left.count == 0 ? null : left);
+	}
+
+	/**
+	 * Queue msg to the members of its room, encoded once: each reactor queues it
+	 * to its own members. Only a member can send to a room.
+	 *
+	 * @param msg
+	 * @param ctxt
+	 */
+	private void messageSalon(Message msg, Context ctxt) {
+		Room room = ctxt.rooms.get(msg.getSalon());
+		if (room == null)
+			return;
+		ByteBuffer frame = Message.createReceptionMessageSalon(room.name, ctxt.name, msg.getMessage()).getBuffer()
+				.asReadOnlyBuffer();
+		log.append(null, frame);
+		ByteBuffer[] deflated = deflateOnce(frame);
+		room.forEachReactor((reactor, members) -> reactor.execute(() -> {
+			for (Context member : members.toArray())
+				if (member.isOpen())
+					member.queueFrame(frame.duplicate(), deflated, ctxt);
+		}));
+	}
 
+	/**
+	 * @return the number of rooms with at least one member
+	 */
+	int roomCount() {
+		return rooms.size();
 	}
 
 	public static void main(String[] args) throws NumberFormatException, IOException {
@@ -162,15 +702,49 @@ public class ServerChat {
 			usage();
 			return;
 		}
-		HashMap<String, String> mapNameMdp = new HashMap<>();
-		if (args.length == 2)
-			for (String s : Parsing.parsing(args[1]))
-				mapNameMdp.put(s.split(": ")[0], s.split(": ")[0]);
-		new ServerChat(Integer.parseInt(args[0]), mapNameMdp).launch();
+		CredentialStore credentials;
+		try {
+			credentials = args.length == 2 ? CredentialStore.open(Paths.get(args[1])) : CredentialStore.empty();
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		switch (System.getProperty("chathack.engine", "reactor")) {
+		case "reactor":
+			new ServerChat(Integer.parseInt(args[0]), credentials).launch();
+			break;
+		case "virtual":
+			if (TLS_KEYSTORE != null) {
+				System.out.println("The virtual engine does not serve TLS, use the reactor engine");
+				return;
+			}
+			new BlockingServer(Integer.parseInt(args[0]), credentials).launch();
+			break;
+		default:
+			usage();
+		}
 	}
 
 	private static void usage() {
-		System.out.println("Usage : ServerSumBetter port");
+		System.out.println("Usage : ServerChat port [passwordFile]");
+		System.out.println("\tthe passwordFile is looked up in passwordFile.idx, built ahead by CredentialStore");
+		System.out.println("\t-Dchathack.engine=virtual to serve each client with a thread and blocking I/O");
+		System.out.println("\t-Dchathack.reactors=N to serve the clients with N select loops");
+		System.out.println("\t-Dchathack.maxFrameSize=N to accept frames of at most N bytes");
+		System.out.println("\t-Dchathack.maxOpenPublicMessages=N to close the clients sending more public messages by fragments at once");
+		System.out.println("\t-Dchathack.maxOpenTransfers=N to close the clients sending more files at once");
+		System.out.println("\t-Dchathack.history.count=N and history.bytes=N to replay the last public messages at login");
+		System.out.println("\t-Dchathack.log=directory to keep the relayed frames in segments, see MessageLog to read them");
+		System.out.println("\t-Dchathack.compression.maxLevel=N to grant at most the level N to the clients asking for compression");
+		System.out.println("\t-Dchathack.coalesce.micros=N to hold the frames of a client up to N us to write them together");
+		System.out.println("\t-Dchathack.tls.keystore=file and tls.password=secret to serve the clients in TLS");
+		System.out.println("\t-Dchathack.login.timeoutMillis=N to close the clients not logged in after N ms, 0 for never");
+		System.out.println("\t-Dchathack.idle.pingMillis=N and idle.timeoutMillis=N to PING the silent clients, then close them");
+		System.out.println("\t-Dchathack.rate.public.messages=N and rate.public.bytes=N, or file, control, to read at most N per second");
+		System.out.println("\t-Dchathack.rate.policy=THROTTLE|WARN|DISCONNECT to only slow down, also log, or close the clients over it");
+		System.out.println("\t-Dchathack.auth.threads=N to check the passwords with N threads, off the select loops");
+		System.out.println("\t-Dchathack.tls.threads=N to run the tasks of the TLS handshakes with N threads, off the select loops");
+		System.out.println("\t-Dchathack.journal=N to keep the last N events of each loop for the JOURNAL command");
 	}
 
 	/***
@@ -192,7 +766,7 @@ public class ServerChat {
 		return String.join("|", list);
 	}
 
-	public void printKeys() {
+	public void printKeys(Selector selector) {
 		Set<SelectionKey> selectionKeySet = selector.keys();
 		if (selectionKeySet.isEmpty()) {
 			System.out.println("The selector contains no key : this should not happen!");
@@ -243,21 +817,66 @@ public class ServerChat {
 		return String.join(" and ", list);
 	}
 
+	/**
+	 * Check the password of name on the authentication pool, off the select
+	 * loops, and give the result to the reactor of context which completes the
+	 * login with {@link Context#authenticated(boolean, String)}
+	 *
+	 * @param name
+	 * @param passWord
+	 * @param context
+	 * @return false if the pool is saturated and the login must be refused
+	 */
 	boolean connexionAvecMdp(String name, String passWord, Context context) {
-		if (null == mapNameMdp.getOrDefault(name, null))
+		pendingAuthentications.incrementAndGet();
+		try {
+			authenticators.execute(() -> {
+				boolean valid = false;
+				try {
+					valid = credentials.check(name, passWord);
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Cannot check the password of " + name, e);
+				} finally {
+					// the client is not read until it has its answer, even a refusal
+					pendingAuthentications.decrementAndGet();
+					boolean checked = valid;
+					context.reactor.execute(() -> context.authenticated(checked, name));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pendingAuthentications.decrementAndGet();
+			rejectedAuthentications.incrementAndGet();
 			return false;
+		}
 		return true;
 	}
 
-	boolean connexionSansMdp(String name) {
-		if (selector.keys().stream().filter(e -> {
-			Context tmp = ((Context) e.attachment());
-			return tmp != null && name.equals(tmp.name);
-		}).count() != 0)
-			return false;
+	/**
+	 * Reserve name for a client whose password was checked
+	 *
+	 * @param name
+	 * @param context
+	 * @return false if the name is already used by another client
+	 */
+	boolean login(String name, Context context) {
+		return sessions.login(name, context);
+	}
 
-		if (mapNameMdp.containsKey(name))
+	boolean connexionSansMdp(String name, Context context) {
+		if (credentials.contains(name))
 			return false;
-		return true;
+		return sessions.login(name, context);
+	}
+
+	/**
+	 * Release the name of a closed Context
+	 *
+	 * @param context
+	 */
+	void logout(Context context) {
+		if (context.name != null)
+			sessions.logout(context.name, context);
+		for (String room : context.rooms.keySet().toArray(new String[0]))
+			quitterSalon(room, context);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,365 @@
+package fr.upem.net.tcp.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The sum of the Metrics of every reactor of a ServerChat.
+ *
+ * The rates are computed between two samples taken at least one second apart,
+ * when they are asked for.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+	static final Logger logger = Logger.getLogger(ServerMetrics.class.getName());
+	static final String NAME = "fr.upem.net.tcp.server:type=ServerMetrics";
+
+	private final ServerChat server;
+	private final Reactor[] reactors;
+
+	private long sampleTime = System.nanoTime();
+	private long sampleConnections;
+	private long sampleLogins;
+	private double connectionsRate;
+	private double loginsRate;
+
+	ServerMetrics(ServerChat server, Reactor[] reactors) {
+		this.server = server;
+		this.reactors = reactors;
+	}
+
+	/**
+	 * Register in the platform MBeanServer, a failure is only logged
+	 */
+	void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Metrics not registered in JMX", e);
+		}
+	}
+
+	private long sum(ToLongFunction<Metrics> counter) {
+		long sum = 0;
+		for (Reactor reactor : reactors)
+			sum += counter.applyAsLong(reactor.metrics);
+		return sum;
+	}
+
+	private long[] sumAll(Function<Metrics, long[]> counters) {
+		long[] sum = new long[counters.apply(reactors[0].metrics).length];
+		for (Reactor reactor : reactors) {
+			long[] values = counters.apply(reactor.metrics);
+			for (int i = 0; i < sum.length; i++)
+				sum[i] += values[i];
+		}
+		return sum;
+	}
+
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		long elapsed = now - sampleTime;
+		if (elapsed < TimeUnit.SECONDS.toNanos(1))
+			return;
+		long connections = getConnections();
+		long logins = getLogins();
+		connectionsRate = (connections - sampleConnections) * 1e9 / elapsed;
+		loginsRate = (logins - sampleLogins) * 1e9 / elapsed;
+		sampleTime = now;
+		sampleConnections = connections;
+		sampleLogins = logins;
+	}
+
+	@Override
+	public int getClients() {
+		return server.clientCount();
+	}
+
+	@Override
+	public int getRooms() {
+		return server.roomCount();
+	}
+
+	@Override
+	public int getHistoryFrames() {
+		return server.history.size();
+	}
+
+	@Override
+	public int getHistoryBytes() {
+		return server.history.bytes();
+	}
+
+	@Override
+	public long getLogRecords() {
+		return server.log.records();
+	}
+
+	@Override
+	public long getLogBytes() {
+		return server.log.bytes();
+	}
+
+	@Override
+	public long getLogDropped() {
+		return server.log.dropped();
+	}
+
+	@Override
+	public long getLogSyncs() {
+		return server.log.syncs();
+	}
+
+	@Override
+	public long getConnections() {
+		return sum(m -> m.connections);
+	}
+
+	@Override
+	public long getLogins() {
+		return sum(m -> m.logins);
+	}
+
+	@Override
+	public synchronized double getConnectionsPerSecond() {
+		sample();
+		return connectionsRate;
+	}
+
+	@Override
+	public synchronized double getLoginsPerSecond() {
+		sample();
+		return loginsRate;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return sum(m -> m.bytesIn);
+	}
+
+	@Override
+	public long getBytesOut() {
+		return sum(m -> m.bytesOut);
+	}
+
+	@Override
+	public long getWrites() {
+		return sum(m -> m.writes);
+	}
+
+	@Override
+	public int getCompressedClients() {
+		return server.compressedClients();
+	}
+
+	@Override
+	public long getCompressionSavedBytes() {
+		return sum(m -> m.compressionSaved);
+	}
+
+	@Override
+	public long getTlsHandshakes() {
+		return sum(m -> m.tlsHandshakes);
+	}
+
+	@Override
+	public long getTlsResumedHandshakes() {
+		return sum(m -> m.tlsResumed);
+	}
+
+	@Override
+	public double getTlsHandshakeMeanMicros() {
+		long handshakes = getTlsHandshakes();
+		return handshakes == 0 ? 0 : sum(m -> m.tlsHandshakeNanos) / 1_000.0 / handshakes;
+	}
+
+	@Override
+	public long getLoginTimeouts() {
+		return sum(m -> m.loginTimeouts);
+	}
+
+	@Override
+	public long getIdleTimeouts() {
+		return sum(m -> m.idleTimeouts);
+	}
+
+	@Override
+	public long getPingsSent() {
+		return sum(m -> m.pings);
+	}
+
+	@Override
+	public long getThrottles() {
+		return sum(m -> m.throttles);
+	}
+
+	@Override
+	public long getRateWarnings() {
+		return sum(m -> m.rateWarnings);
+	}
+
+	@Override
+	public long getRateDisconnects() {
+		return sum(m -> m.rateDisconnects);
+	}
+
+	@Override
+	public int getScheduledTimers() {
+		int timers = 0;
+		for (Reactor reactor : reactors)
+			timers += reactor.timers.size();
+		return timers;
+	}
+
+	@Override
+	public long[] getFramesIn() {
+		return sumAll(m -> m.framesIn);
+	}
+
+	@Override
+	public long[] getFramesOut() {
+		return sumAll(m -> m.framesOut);
+	}
+
+	@Override
+	public long[] getQueueDepthHistogram() {
+		return sumAll(m -> m.queueDepth);
+	}
+
+	@Override
+	public long[] getSelectLoopHistogram() {
+		return sumAll(m -> m.loopMicros);
+	}
+
+	@Override
+	public double getSelectLoopMeanMicros() {
+		long loops = sum(m -> m.loops);
+		return loops == 0 ? 0 : sum(m -> m.loopNanos) / 1_000.0 / loops;
+	}
+
+	@Override
+	public double getSelectLoopMaxMicros() {
+		long max = 0;
+		for (Reactor reactor : reactors)
+			max = Math.max(max, reactor.metrics.loopMaxNanos);
+		return max / 1_000.0;
+	}
+
+	private long sumPools(ToLongFunction<BufferPool> counter) {
+		long sum = 0;
+		for (Reactor reactor : reactors) {
+			sum += counter.applyAsLong(reactor.inputBuffers) + counter.applyAsLong(reactor.outputBuffers);
+			if (reactor.tlsBuffers != null)
+				sum += counter.applyAsLong(reactor.tlsBuffers);
+		}
+		return sum;
+	}
+
+	@Override
+	public long getPoolHits() {
+		return sumPools(p -> p.hits);
+	}
+
+	@Override
+	public long getPoolMisses() {
+		return sumPools(p -> p.misses);
+	}
+
+	@Override
+	public int getPoolBuffersInUse() {
+		return (int) sumPools(p -> p.inUse);
+	}
+
+	@Override
+	public long getPoolGrowths() {
+		return sumPools(p -> p.grown);
+	}
+
+	@Override
+	public int getPoolBuffersAllocated() {
+		return (int) sumPools(p -> p.allocated);
+	}
+
+	@Override
+	public long getPoolBytesAllocated() {
+		return sumPools(p -> (long) p.allocated * p.bufferSize());
+	}
+
+	@Override
+	public int getPendingAuthentications() {
+		return server.pendingAuthentications();
+	}
+
+	@Override
+	public long getRejectedAuthentications() {
+		return server.rejectedAuthentications();
+	}
+
+	private double framesPerWrite() {
+		long writes = getWrites();
+		return writes == 0 ? 0 : (double) Arrays.stream(getFramesOut()).sum() / writes;
+	}
+
+	private static String opcodes(long[] frames) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < frames.length; i++) {
+			if (frames[i] == 0)
+				continue;
+			sb.append(' ').append(i == Metrics.OPCODES ? "other" : i).append(':').append(frames[i]);
+		}
+		return sb.toString();
+	}
+
+	private static String histogram(long[] buckets) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < buckets.length; i++) {
+			if (buckets[i] == 0)
+				continue;
+			sb.append(' ');
+			if (i <= 1)
+				sb.append(i);
+			else if (i == buckets.length - 1)
+				sb.append(">=").append(1L << (i - 1));
+			else
+				sb.append(1L << (i - 1)).append('-').append((1L << i) - 1);
+			sb.append(':').append(buckets[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the metrics as printed by the STATS command of the Console
+	 */
+	String format() {
+		return String.format(
+				"clients %d, rooms %d, connections %d (%.1f/s), logins %d (%.1f/s)%n"
+						+ "history %d frames / %d bytes, log %d records / %d bytes, dropped %d, syncs %d%n"
+						+ "bytes in %d, bytes out %d, writes %d (%.2f frames per write)%n"
+						+ "compression %d clients, %d bytes saved%n"
+						+ "tls %d handshakes, %d resumed, mean %.1fus%n"
+						+ "timeouts %d login, %d idle, pings %d, timers %d%n"
+						+ "rate limits %d throttled, %d warned, %d disconnected%n"
+						+ "frames in by opcode:%s%n" + "frames out by opcode:%s%n" + "outbound queue depth:%s%n"
+						+ "select loop mean %.1fus, max %.1fus, in us:%s%n"
+						+ "buffer pools hits %d, misses %d, in use %d of %d allocated (%d bytes), grown %d%n"
+						+ "authentications pending %d, rejected %d",
+				getClients(), getRooms(), getConnections(), getConnectionsPerSecond(), getLogins(), getLoginsPerSecond(),
+				getHistoryFrames(), getHistoryBytes(), getLogRecords(), getLogBytes(), getLogDropped(), getLogSyncs(),
+				getBytesIn(), getBytesOut(), getWrites(), framesPerWrite(), getCompressedClients(),
+				getCompressionSavedBytes(), getTlsHandshakes(), getTlsResumedHandshakes(),
+				getTlsHandshakeMeanMicros(), getLoginTimeouts(), getIdleTimeouts(), getPingsSent(),
+				getScheduledTimers(), getThrottles(), getRateWarnings(), getRateDisconnects(), opcodes(getFramesIn()), opcodes(getFramesOut()),
+				histogram(getQueueDepthHistogram()), getSelectLoopMeanMicros(), getSelectLoopMaxMicros(),
+				histogram(getSelectLoopHistogram()), getPoolHits(), getPoolMisses(), getPoolBuffersInUse(),
+				getPoolBuffersAllocated(), getPoolBytesAllocated(), getPoolGrowths(), getPendingAuthentications(),
+				getRejectedAuthentications());
+	}
+}
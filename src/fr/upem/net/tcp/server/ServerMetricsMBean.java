@@ -0,0 +1,176 @@
+package fr.upem.net.tcp.server;
+
+/**
+ * The metrics of ServerChat exposed through JMX, as
+ * fr.upem.net.tcp.server:type=ServerMetrics
+ */
+public interface ServerMetricsMBean {
+
+	int getClients();
+
+	/**
+	 * @return the chat rooms with at least one member
+	 */
+	int getRooms();
+
+	/**
+	 * @return the public messages kept to be replayed at login
+	 */
+	int getHistoryFrames();
+
+	int getHistoryBytes();
+
+	/**
+	 * @return the frames written in the message log
+	 */
+	long getLogRecords();
+
+	long getLogBytes();
+
+	/**
+	 * @return the frames not logged because the queue of the log was full
+	 */
+	long getLogDropped();
+
+	/**
+	 * @return the forces of the message log, each one for a group of records
+	 */
+	long getLogSyncs();
+
+	long getConnections();
+
+	long getLogins();
+
+	double getConnectionsPerSecond();
+
+	double getLoginsPerSecond();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	/**
+	 * @return the write calls on the sockets of the clients
+	 */
+	long getWrites();
+
+	/**
+	 * @return the clients whose streams are compressed
+	 */
+	int getCompressedClients();
+
+	/**
+	 * @return the bytes the compression saved on the sockets, in both directions
+	 */
+	long getCompressionSavedBytes();
+
+	/**
+	 * @return the TLS handshakes completed with the clients
+	 */
+	long getTlsHandshakes();
+
+	/**
+	 * @return the TLS handshakes resuming the session of a previous connection
+	 */
+	long getTlsResumedHandshakes();
+
+	/**
+	 * @return the mean duration of a TLS handshake, from the accept
+	 */
+	double getTlsHandshakeMeanMicros();
+
+	/**
+	 * @return the clients closed because they did not log in in time
+	 */
+	long getLoginTimeouts();
+
+	/**
+	 * @return the logged clients closed because they stayed silent
+	 */
+	long getIdleTimeouts();
+
+	/**
+	 * @return the PINGs sent to the silent clients
+	 */
+	long getPingsSent();
+
+	/**
+	 * @return the frames putting a client over its budget, its reading stopped
+	 */
+	long getThrottles();
+
+	/**
+	 * @return the clients logged for going over their budget
+	 */
+	long getRateWarnings();
+
+	/**
+	 * @return the clients closed for going over their budget
+	 */
+	long getRateDisconnects();
+
+	/**
+	 * @return the timers in the wheels of the reactors
+	 */
+	int getScheduledTimers();
+
+	/**
+	 * @return the number of frames received for each opcode
+	 */
+	long[] getFramesIn();
+
+	/**
+	 * @return the number of frames queued to the clients for each opcode
+	 */
+	long[] getFramesOut();
+
+	/**
+	 * @return the depth of the outbound queues, bucket i counting the depths d
+	 *         with 2^(i-1) <= d < 2^i
+	 */
+	long[] getQueueDepthHistogram();
+
+	/**
+	 * @return the duration of the select loop iterations in microseconds, bucket
+	 *         i counting the durations t with 2^(i-1) <= t < 2^i
+	 */
+	long[] getSelectLoopHistogram();
+
+	double getSelectLoopMeanMicros();
+
+	double getSelectLoopMaxMicros();
+
+	/**
+	 * @return the borrows of a pooled direct buffer served by a free one
+	 */
+	long getPoolHits();
+
+	/**
+	 * @return the borrows which needed a new slab or a heap buffer
+	 */
+	long getPoolMisses();
+
+	int getPoolBuffersInUse();
+
+	/**
+	 * @return the receive buffers grown for a frame larger than a pooled buffer
+	 */
+	long getPoolGrowths();
+
+	int getPoolBuffersAllocated();
+
+	/**
+	 * @return the direct memory allocated by the pools
+	 */
+	long getPoolBytesAllocated();
+
+	/**
+	 * @return the passwords being checked or waiting for the authentication pool
+	 */
+	int getPendingAuthentications();
+
+	/**
+	 * @return the logins refused because the authentication pool was saturated
+	 */
+	long getRejectedAuthentications();
+}
@@ -0,0 +1,53 @@
+package fr.upem.net.tcp.server;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The logged clients of the server, indexed by name.
+ *
+ * Shared by every reactor: a name is reserved at login and released when its
+ * Context is closed.
+ */
+class SessionRegistry {
+
+	private final ConcurrentHashMap<String, Context> sessions = new ConcurrentHashMap<>();
+
+	/**
+	 * Reserve name for context
+	 *
+	 * @param name
+	 * @param context
+	 * @return false if the name is already used by another client
+	 */
+	boolean login(String name, Context context) {
+		Objects.requireNonNull(name);
+		Objects.requireNonNull(context);
+		return sessions.putIfAbsent(name, context) == null;
+	}
+
+	/**
+	 * Release name if it is still owned by context
+	 *
+	 * @param name
+	 * @param context
+	 */
+	void logout(String name, Context context) {
+		sessions.remove(name, context);
+	}
+
+	/**
+	 * @param name
+	 * @return the Context logged as name, or null
+	 */
+	Context find(String name) {
+		return sessions.get(name);
+	}
+
+	/**
+	 * @return the number of logged clients
+	 */
+	int size() {
+		return sessions.size();
+	}
+}
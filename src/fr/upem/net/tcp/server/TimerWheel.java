@@ -0,0 +1,156 @@
+package fr.upem.net.tcp.server;
+
+/**
+ * The timers of a reactor, in a hashed timing wheel.
+ *
+ * The time is cut in ticks, and a timer is kept in the slot of the tick of its
+ * deadline, modulo the number of slots: a timer further than one turn stays in
+ * its slot for the next turns. The slots are intrusive doubly linked lists, so
+ * schedule and cancel are O(1) without allocation, and each tick only visits
+ * the timers of one slot. The deadlines are rounded up to the next tick.
+ *
+ * Only the reactor thread uses its wheel: the select waits until the next tick
+ * while timers are scheduled, then advance runs the expired ones.
+ */
+class TimerWheel {
+
+	/**
+	 * A timer, scheduled again as many times as needed by its owner
+	 */
+	static class Timer {
+		private final Runnable task;
+		private long deadlineTick;
+		private Timer previous;
+		private Timer next;
+		private boolean scheduled;
+		/* taken out of its slot by advance, run unless cancelled meanwhile */
+		private boolean expiring;
+		private Timer nextExpiring;
+
+		/**
+		 * @param task run by the reactor thread when the timer expires
+		 */
+		Timer(Runnable task) {
+			this.task = task;
+		}
+
+		boolean isScheduled() {
+			return scheduled;
+		}
+	}
+
+	private final long tickNanos;
+	private final Timer[] slots;
+	private final int mask;
+	private final long origin;
+	/* the last tick whose slot was visited */
+	private long tick;
+	private int size;
+
+	/**
+	 * @param tickNanos the duration of a tick
+	 * @param slots     the number of slots, a power of 2
+	 * @param now       the current System.nanoTime()
+	 */
+	TimerWheel(long tickNanos, int slots, long now) {
+		if (tickNanos <= 0 || slots <= 0 || Integer.bitCount(slots) != 1)
+			throw new IllegalArgumentException();
+		this.tickNanos = tickNanos;
+		this.slots = new Timer[slots];
+		this.mask = slots - 1;
+		this.origin = now;
+	}
+
+	/**
+	 * Schedule timer to expire in delayNanos, at the next tick at the earliest,
+	 * cancelling its previous deadline
+	 *
+	 * @param timer
+	 * @param delayNanos
+	 * @param now        the current System.nanoTime()
+	 */
+	void schedule(Timer timer, long delayNanos, long now) {
+		cancel(timer);
+		long deadline = (now - origin + Math.max(0, delayNanos) + tickNanos - 1) / tickNanos;
+		timer.deadlineTick = Math.max(tick + 1, deadline);
+		int slot = (int) (timer.deadlineTick & mask);
+		timer.next = slots[slot];
+		if (timer.next != null)
+			timer.next.previous = timer;
+		slots[slot] = timer;
+		timer.scheduled = true;
+		size++;
+	}
+
+	/**
+	 * @param timer a timer which may not be scheduled
+	 */
+	void cancel(Timer timer) {
+		timer.expiring = false;
+		if (!timer.scheduled)
+			return;
+		if (timer.previous != null)
+			timer.previous.next = timer.next;
+		else
+			slots[(int) (timer.deadlineTick & mask)] = timer.next;
+		if (timer.next != null)
+			timer.next.previous = timer.previous;
+		timer.previous = timer.next = null;
+		timer.scheduled = false;
+		size--;
+	}
+
+	/**
+	 * @param now the current System.nanoTime()
+	 * @return the nanoseconds until the next tick, -1 if no timer is scheduled
+	 */
+	long nanosToNextTick(long now) {
+		if (size == 0)
+			return -1;
+		return Math.max(0, origin + (tick + 1) * tickNanos - now);
+	}
+
+	/**
+	 * Visit the slots of the ticks elapsed and run the timers expired. They are
+	 * taken out of the slot before any of them runs, since a task may schedule
+	 * or cancel any timer, those of the same slot included.
+	 *
+	 * @param now the current System.nanoTime()
+	 * @return the number of timers run
+	 */
+	int advance(long now) {
+		int expired = 0;
+		long last = (now - origin) / tickNanos;
+		while (tick < last && size > 0) {
+			tick++;
+			Timer expiring = null;
+			for (Timer timer = slots[(int) (tick & mask)]; timer != null;) {
+				Timer next = timer.next;
+				if (timer.deadlineTick <= tick) {
+					cancel(timer);
+					timer.expiring = true;
+					timer.nextExpiring = expiring;
+					expiring = timer;
+				}
+				timer = next;
+			}
+			while (expiring != null) {
+				Timer timer = expiring;
+				expiring = timer.nextExpiring;
+				timer.nextExpiring = null;
+				if (!timer.expiring)
+					continue;
+				timer.expiring = false;
+				timer.task.run();
+				expired++;
+			}
+		}
+		if (size == 0)
+			tick = Math.max(tick, last);
+		return expired;
+	}
+
+	int size() {
+		return size;
+	}
+}